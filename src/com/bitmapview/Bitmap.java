@@ -1,8 +1,31 @@
 package com.bitmapview;
 
+import com.bitmapview.kernel.ColorLUT;
+import com.bitmapview.kernel.Convolution;
+import com.bitmapview.kernel.KernelExecutor;
+import com.bitmapview.kernel.PixelKernel;
+import com.bitmapview.kernel.RangeTask;
+import com.bitmapview.kernel.Resampler;
+import com.bitmapview.kernel.RowKernel;
+import com.bitmapview.kernel.Statistics;
+import com.bitmapview.storage.DirectStorage;
+import com.bitmapview.storage.HeapStorage;
+import com.bitmapview.storage.IndexedStorage;
+import com.bitmapview.storage.RunLengthStorage;
+import com.bitmapview.storage.Storage;
+import com.bitmapview.storage.SubStorage;
+import com.bitmapview.storage.TiledStorage;
+
 import javax.swing.*;
 import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * Trida reprezentujici bitmapu zobrazenou v okne Window. Zobrazuje bitmapu jako
@@ -15,8 +38,90 @@ public class Bitmap
 	Dimension size;
 	String name;
 	HashMap<String, String> headers;
-	//Color palette[];
-	Color pixels[][];
+	// Bila barva pouzivana pro doplneni pri zvetseni bitmapy
+	static final int WHITE = 0xFFFFFF;
+	/**
+	 * Uloziste pixelu, kazdy pixel je zabalen do int ve tvaru 0x00RRGGBB.
+	 */
+	Storage pixels;
+
+	/**
+	 * Orientace bitmapy. Rotace a zrcadleni pouze meni orientaci, pixely v
+	 * ulozisti jsou preusporadany az pri materialize().
+	 */
+	Orientation orientation = Orientation.IDENTITY;
+
+	/**
+	 * Zamek stavu bitmapy (uloziste, orientace a rozmery). Zmeny probihaji
+	 * pod zamkem pro zapis, cteni pod sdilenym zamkem pro cteni nebo
+	 * opticky bez zamku (getRGB()). StampedLock neni reentrantni, vlakno
+	 * drzici zamek pro zapis a hloubku vnoreni cteni si proto pamatujeme.
+	 */
+	final StampedLock lock = new StampedLock();
+	Thread writer;
+	int writeDepth;
+	final ThreadLocal<int[]> reading = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+
+	/**
+	 * Pocet pixelu, nad ktery jsou pixely ukladany mimo haldu JVM. Lze
+	 * nastavit systemovou vlastnosti bitmapview.offheap.threshold.
+	 */
+	static long offHeapThreshold = Long.getLong(
+			"bitmapview.offheap.threshold", 32L * 1024 * 1024);
+
+	/**
+	 * Pocet pixelu, nad ktery jsou pixely ukladany po dlazdicich s
+	 * odkladanim na disk, a pametovy rozpocet pro tyto dlazdice v bytes.
+	 * Lze nastavit systemovymi vlastnostmi bitmapview.tiled.threshold a
+	 * bitmapview.tiled.budget.
+	 */
+	static long tiledThreshold = Long.getLong(
+			"bitmapview.tiled.threshold", 256L * 1024 * 1024);
+	static long tiledBudget = Long.getLong(
+			"bitmapview.tiled.budget", 256L * 1024 * 1024);
+
+	/**
+	 * Ukladat nove alokovane bitmapy s plnymi barvami po behech (RLE). Lze
+	 * zapnout systemovou vlastnosti bitmapview.rle.
+	 */
+	static boolean runLength = Boolean.getBoolean("bitmapview.rle");
+
+	/**
+	 * Statistiky pixelu spoctene pri prvnim dotazu. Zahodi se pri kazde
+	 * zmene bitmapy (ziskani zamku pro zapis).
+	 */
+	volatile Statistics statistics;
+
+	/**
+	 * Obrazek pro vykresleni s pixely ve fyzickem poradi (orientace se
+	 * provede transformaci pri vykresleni). Pixely uloziste na halde
+	 * obrazek sdili, jinak jsou do nej kopirovany a po zmenach se
+	 * obnovuji jen zmenene oblasti. Bitmapy nad imageCacheThreshold pixelu
+	 * nemaji obrazek a vykresluji se po blocich (jen viditelna cast). Lze
+	 * nastavit systemovou vlastnosti bitmapview.image.cache.
+	 */
+	static long imageCacheThreshold = Long.getLong(
+			"bitmapview.image.cache", 32L * 1024 * 1024);
+	BufferedImage image;
+	int imageData[];
+	BufferedImage blockImage;
+	// Obrazek je treba vytvorit znovu, jinak obnovit zmenenou oblast
+	boolean imageStale = true;
+	Rectangle imageDirty;
+	// Zmena pod zamkem pro zapis uvedla, co zmenila (jinak vse)
+	boolean imageDeclared;
+
+	/**
+	 * Meritko zobrazeni (1 = skutecna velikost). Pri zmenseni se kresli z
+	 * pyramidy zmensenin, ktera se pocita na pozadi (viz Mipmap).
+	 */
+	double zoom = 1;
+	final Mipmap mipmap = new Mipmap(this);
 
 
 	// Konstruktor
@@ -26,7 +131,6 @@ public class Bitmap
 	public Bitmap(String name) {
 		this.name = (name == null) ? "Unnamed" : name;
 		this.headers = new HashMap<String, String>();
-		//this.palette = null;
 
 		this.setSize(0, 0);
 	}
@@ -41,27 +145,59 @@ public class Bitmap
 	 * @param height			vyska bitmapy
 	 */
 	public void setSize(int width, int height) {
-		Color newPixels[][] = new Color[width][height];
-
-		// Zkopriovat puvodni obrazek do leveho horniho rohu a doplnit bilou
-		// barvou. V pripade zmenseni useknout.
-		for(int x = 0; x < width; x++)
-			for(int y = 0; y < height; y++) {
-				if (x < this.getSize().width && y < this.getSize().height) {
-					// Zkopirovat puvodni barvu
-					newPixels[x][y] = pixels[x][y];
+		long stamp = this.lockWrite();
+		try {
+			// Orezani/doplneni pracuje s fyzickymi pixely
+			this.materialize();
+
+			int oldWidth = (this.size == null) ? 0 : this.size.width;
+			int oldHeight = (this.size == null) ? 0 : this.size.height;
+
+			// Behy lze orezat a doplnit primo
+			if (this.pixels instanceof RunLengthStorage) {
+				this.replacePixels(((RunLengthStorage) this.pixels).resize(
+						width, height, WHITE));
+				this.size = new Dimension(width, height);
+				this.repaint();
+				this.updateUI();
+				return;
+			}
+
+			// Bitmapa s paletou zustane s paletou, pokud se do ni vejde i bila
+			// barva pro doplneni
+			Storage newPixels;
+			if (this.pixels instanceof IndexedStorage
+					&& ((width <= oldWidth && height <= oldHeight)
+							|| this.pixels.accepts(WHITE)))
+				newPixels = this.pixels.create(width, height);
+			else
+				newPixels = allocate(width, height);
+
+			// Zkopriovat puvodni obrazek do leveho horniho rohu a doplnit bilou
+			// barvou. V pripade zmenseni useknout.
+			int row[] = new int[width];
+			int copyWidth = Math.min(width, oldWidth);
+			for (int y = 0; y < height; y++) {
+				if (y < oldHeight) {
+					// Zkopirovat puvodni cast radku
+					this.pixels.getRegion(0, y, copyWidth, 1, row, 0, width);
+					Arrays.fill(row, copyWidth, width, WHITE);
 				} else {
-					newPixels[x][y] = Color.WHITE;
+					Arrays.fill(row, WHITE);
 				}
+				newPixels.setRow(y, row, 0);
 			}
 
-		// Nastavit novy obrazek a velikost
-		this.pixels = newPixels;
-		this.size = new Dimension(width, height);
+			// Nastavit novy obrazek a velikost
+			this.replacePixels(newPixels);
+			this.size = new Dimension(width, height);
 
-		// Prekreslit bitmapu (nutne pro bitmapy zobrazene ve Window)
-		this.repaint();
-		this.updateUI();
+			// Prekreslit bitmapu (nutne pro bitmapy zobrazene ve Window)
+			this.repaint();
+			this.updateUI();
+		} finally {
+			this.unlockWrite(stamp);
+		}
 	}
 
 	/**
@@ -75,6 +211,103 @@ public class Bitmap
 			this.setSize(d.width, d.height);
 	}
 
+	/**
+	 * Nastavi bitmapu jako obrazek s paletou o danych rozmerech. Misto barev
+	 * jsou ukladany pouze indexy do palety a na plne barvy je bitmapa
+	 * prevedena az pokud je to nutne (viz expandPalette()). Puvodni obsah je
+	 * zahozen a vsechny pixely maji index 0.
+	 * @param size				rozmery bitmapy
+	 * @param palette			paleta (barvy ve tvaru 0xRRGGBB)
+	 * @param bits				pocet bitu na index (1, 2, 4 nebo 8)
+	 */
+	public void setIndexed(Dimension size, int palette[], int bits) {
+		long stamp = this.lockWrite();
+		try {
+			this.replacePixels(
+					new IndexedStorage(size.width, size.height, palette, bits));
+			this.orientation = Orientation.IDENTITY;
+			this.size = new Dimension(size);
+
+			this.repaint();
+			this.updateUI();
+		} finally {
+			this.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Vrati paletu bitmapy.
+	 * @return					kopie palety nebo null pokud bitmapa nema
+	 *							paletu
+	 */
+	public int[] getPalette() {
+		long stamp = this.lockRead();
+		try {
+			IndexedStorage indexed = this.indexedStorage();
+			return (indexed == null) ? null : indexed.getPalette();
+		} finally {
+			this.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Vrati pocet bitu na jeden index do palety.
+	 * @return					pocet bitu (1, 2, 4 nebo 8) nebo 0 pokud
+	 *							bitmapa nema paletu
+	 */
+	public int getBits() {
+		long stamp = this.lockRead();
+		try {
+			IndexedStorage indexed = this.indexedStorage();
+			return (indexed == null) ? 0 : indexed.getBits();
+		} finally {
+			this.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Nahradi paletu bitmapy (indexy pixelu zustavaji).
+	 * @param palette			paleta se stejnym poctem barev
+	 * @throws IllegalStateException pokud bitmapa nema paletu
+	 */
+	public void setPalette(int palette[]) {
+		long stamp = this.lockWrite();
+		try {
+			this.compact();
+			if (!(this.pixels instanceof IndexedStorage))
+				throw new IllegalStateException("Bitmap has no palette");
+			((IndexedStorage) this.pixels).setPalette(palette);
+			this.repaint();
+		} finally {
+			this.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Prevede bitmapu s paletou na bitmapu s plnymi barvami. Pokud bitmapa
+	 * paletu nema nedela nic.
+	 */
+	public void expandPalette() {
+		long stamp = this.lockWrite();
+		try {
+			if (!(this.pixels instanceof IndexedStorage))
+				return;
+
+			// Kopirujeme fyzicke pixely, orientace zustava
+			int width = this.pixels.getWidth();
+			int height = this.pixels.getHeight();
+			Storage newPixels = allocate(width, height);
+			int row[] = new int[width];
+			for (int y = 0; y < height; y++) {
+				this.pixels.getRow(y, row, 0);
+				newPixels.setRow(y, row, 0);
+			}
+			this.replacePixels(newPixels);
+		} finally {
+			this.unlockWrite(stamp);
+		}
+	}
+
 	/**
 	 * Vrati aktualni rozmery bitmapy.
 	 * @return					aktualni rozmery bitmapy
@@ -100,6 +333,171 @@ public class Bitmap
 		return this.headers;
 	}
 
+	/**
+	 * Uvolni pamet obsazenou pixely bitmapy (dulezite zejmena pro velke
+	 * obrazky ulozene mimo haldu). Bitmapa je pak prazdna s rozmery 0x0.
+	 */
+	public void close() {
+		long stamp = this.lockWrite();
+		try {
+			this.replacePixels(allocate(0, 0));
+			this.orientation = Orientation.IDENTITY;
+			this.size = new Dimension(0, 0);
+			this.repaint();
+		} finally {
+			this.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Vrati vyrez bitmapy, ktery sdili pixely s touto bitmapou (nic se
+	 * nekopiruje). Pred prvni zmenou pixelu kterekoli z bitmap (i teto) jsou
+	 * pixely zmenene bitmapy zkopirovany (viz compact()), zmeny se tedy
+	 * navzajem neovlivnuji.
+	 * @param r					oblast bitmapy
+	 * @return					nova bitmapa s vyrezem
+	 */
+	public Bitmap subImage(Rectangle r) {
+		long stamp = this.lockWrite();
+		try {
+			// Pohled pracuje s fyzickymi pixely
+			this.materialize();
+
+			Bitmap sub = new Bitmap(this.name);
+			sub.replacePixels(new SubStorage(this.pixels,
+					r.x, r.y, r.width, r.height));
+			sub.size = new Dimension(r.width, r.height);
+			return sub;
+		} finally {
+			this.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Odpoji bitmapu od sdilenych pixelu. Pokud je bitmapa vyrezem (viz
+	 * subImage()) nebo z ni byl vyrez vytvoren, pixely se zkopiruji. Vola se
+	 * automaticky pred kazdou zmenou pixelu.
+	 */
+	public void compact() {
+		long stamp = this.lockWrite();
+		try {
+			if (this.pixels.isView() || this.pixels.isShared())
+				this.replacePixels(this.pixels.copy());
+		} finally {
+			this.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Ziska zamek pro cteni. Mezi lockRead() a unlockRead() nemuze bitmapu
+	 * zmenit jine vlakno, nekolik volani (napr. cteni vsech radku pri
+	 * ukladani) tak vidi stejny obrazek. Soubezne muze cist vice vlaken.
+	 * Behem cteni nelze bitmapu menit ani ze stejneho vlakna.
+	 * @return					razitko pro unlockRead()
+	 */
+	public long lockRead() {
+		int depth[] = this.reading.get();
+		depth[0]++;
+		if (depth[0] > 1 || this.writer == Thread.currentThread())
+			return 0;
+		return this.lock.readLock();
+	}
+
+	/**
+	 * Uvolni zamek pro cteni.
+	 * @param stamp				razitko vracene lockRead()
+	 */
+	public void unlockRead(long stamp) {
+		this.reading.get()[0]--;
+		if (stamp != 0)
+			this.lock.unlockRead(stamp);
+	}
+
+	/**
+	 * Vrati statistiky pixelu (histogramy, pocet barev). Pri prvnim dotazu
+	 * po zmene bitmapy se spocitaji (paralelne), pak se vraci ulozene.
+	 * @return					statistiky
+	 */
+	public Statistics getStatistics() {
+		Statistics stats = this.statistics;
+		if (stats != null)
+			return stats;
+		long stamp = this.lockRead();
+		try {
+			// Barvy nezavisi na orientaci, staci fyzicke pixely
+			stats = Statistics.compute(this.pixels);
+			this.statistics = stats;
+			return stats;
+		} finally {
+			this.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Nastavi meritko zobrazeni bitmapy (meni se jen velikost komponenty,
+	 * pixely zustavaji).
+	 * @param zoom				meritko (1 = skutecna velikost)
+	 */
+	public void setZoom(double zoom) {
+		if (!(zoom > 0))
+			throw new IllegalArgumentException("Invalid zoom");
+		this.zoom = zoom;
+		this.revalidate();
+		this.repaint();
+	}
+
+	/**
+	 * Vrati meritko zobrazeni bitmapy.
+	 * @return					meritko (1 = skutecna velikost)
+	 */
+	public double getZoom() {
+		return this.zoom;
+	}
+
+	/**
+	 * Prekresli oblast bitmapy, napr. po zapisu pixelu z jineho vlakna
+	 * (lze volat z libovolneho vlakna). Oblast se prepocte podle meritka
+	 * zobrazeni a o pixel rozsiri kvuli vyhlazovani.
+	 * @param r					oblast bitmapy
+	 */
+	public void repaintPixels(Rectangle r) {
+		double zoom = this.zoom;
+		int left = (int) Math.floor(r.x * zoom) - 1;
+		int top = (int) Math.floor(r.y * zoom) - 1;
+		int right = (int) Math.ceil((r.x + r.width) * zoom) + 1;
+		int bottom = (int) Math.ceil((r.y + r.height) * zoom) + 1;
+		this.repaint(left, top, right - left, bottom - top);
+	}
+
+	/**
+	 * Nastavi pocet pixelu, nad ktery jsou nove alokovane bitmapy ukladany
+	 * mimo haldu JVM.
+	 * @param pixels			pocet pixelu
+	 */
+	public static void setOffHeapThreshold(long pixels) {
+		offHeapThreshold = pixels;
+	}
+
+	/**
+	 * Nastavi pocet pixelu, nad ktery jsou nove alokovane bitmapy ukladany
+	 * po dlazdicich, a pametovy rozpocet pro dlazdice jedne bitmapy.
+	 * @param pixels			pocet pixelu
+	 * @param budget			pametovy rozpocet v bytes
+	 */
+	public static void setTiledThreshold(long pixels, long budget) {
+		tiledThreshold = pixels;
+		tiledBudget = budget;
+	}
+
+	/**
+	 * Zapne nebo vypne ukladani nove alokovanych bitmap s plnymi barvami po
+	 * behech stejne barvy (vhodne pro perokresby a skeny).
+	 * @param enabled			true pro ukladani po behech
+	 */
+	public static void setRunLength(boolean enabled) {
+		runLength = enabled;
+	}
+
 	/**
 	 * Vrati nazev obrazku
 	 */
@@ -112,113 +510,1020 @@ public class Bitmap
 	 * Nastavi barvu pixelu na pozici x, y.
 	 * @param x					souradnice pixelu v ose X
 	 * @param y					souradnice pixelu v ose Y
+	 * @param rgb				barva pixelu ve tvaru 0xRRGGBB
+	 */
+	public void setRGB(int x, int y, int rgb) {
+		long stamp = this.lockWrite();
+		try {
+			// TODO overit rozsah souradnic jinak vyjimka
+			this.compact();
+			// Barva, ktera neni v palete vynuti prevod na plne barvy
+			if (!this.pixels.accepts(rgb))
+				this.expandPalette();
+			if (this.orientation.isIdentity())
+				this.pixels.setRGB(x, y, rgb);
+			else
+				this.pixels.setRGB(this.physicalX(x, y), this.physicalY(x, y),
+						rgb);
+			this.markDirty(new Rectangle(x, y, 1, 1));
+		} finally {
+			this.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Vrati barvu pixelu na pozici x, y.
+	 * @param x					souradnice pixelu v ose X
+	 * @param y					souradnice pixelu v ose Y
+	 * @return					barva pixelu ve tvaru 0xRRGGBB
+	 */
+	public int getRGB(int x, int y) {
+		// TODO overit rozsah souradnic jinak vyjimka
+		// Opticke cteni bez zamku, pokud mezitim nikdo nezapisoval. Jen u
+		// soubeznych ulozist, ostatni (napr. dlazdice) meni stav i pri cteni
+		// a nesmi bezet soucasne se zapisem.
+		long stamp = this.lock.tryOptimisticRead();
+		Storage pixels = this.pixels;
+		if (stamp != 0 && pixels.isConcurrent()) {
+			try {
+				int rgb = this.readRGB(pixels, x, y);
+				if (this.lock.validate(stamp))
+					return rgb;
+			} catch (RuntimeException e) {
+				// Uloziste bylo mezitim zmeneno, jinak jde o skutecnou chybu
+				if (this.lock.validate(stamp))
+					throw e;
+			}
+		}
+
+		stamp = this.lockRead();
+		try {
+			return this.readRGB(this.pixels, x, y);
+		} finally {
+			this.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Nacte cely radek pixelu do pole.
+	 * @param y					index radku
+	 * @param dst				cilove pole (alespon off + sirka prvku)
+	 * @param off				index prvniho pixelu v cilovem poli
+	 */
+	public void getRow(int y, int dst[], int off) {
+		long stamp = this.lockRead();
+		try {
+			if (this.orientation.isIdentity())
+				this.pixels.getRow(y, dst, off);
+			else
+				this.getRegion(new Rectangle(0, y, this.getSize().width, 1),
+						dst, off, 0);
+		} finally {
+			this.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Zapise cely radek pixelu z pole.
+	 * @param y					index radku
+	 * @param src				zdrojove pole (alespon off + sirka prvku)
+	 * @param off				index prvniho pixelu ve zdrojovem poli
+	 */
+	public void setRow(int y, int src[], int off) {
+		long stamp = this.lockWrite();
+		try {
+			this.compact();
+			if (this.orientation.isIdentity()) {
+				this.acceptRegion(this.getSize().width, 1, src, off, 0);
+				this.pixels.setRow(y, src, off);
+			} else {
+				this.setRegion(new Rectangle(0, y, this.getSize().width, 1),
+						src, off, 0);
+			}
+			this.markDirty(new Rectangle(0, y, this.getSize().width, 1));
+		} finally {
+			this.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Nacte obdelnikovou oblast pixelu do pole.
+	 * @param r					oblast bitmapy
+	 * @param dst				cilove pole
+	 * @param off				index prvniho pixelu v cilovem poli
+	 * @param stride			vzdalenost radku v cilovem poli
+	 */
+	public void getRegion(Rectangle r, int dst[], int off, int stride) {
+		long stamp = this.lockRead();
+		try {
+			this.readRegion(this.orientation, this.getSize(), r,
+					dst, off, stride);
+		} finally {
+			this.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Zapise obdelnikovou oblast pixelu z pole.
+	 * @param r					oblast bitmapy
+	 * @param src				zdrojove pole
+	 * @param off				index prvniho pixelu ve zdrojovem poli
+	 * @param stride			vzdalenost radku ve zdrojovem poli
+	 */
+	public void setRegion(Rectangle r, int src[], int off, int stride) {
+		long stamp = this.lockWrite();
+		try {
+			this.compact();
+			this.acceptRegion(r.width, r.height, src, off, stride);
+			this.markDirty(r);
+			if (this.orientation.isIdentity()) {
+				this.pixels.setRegion(r.x, r.y, r.width, r.height,
+						src, off, stride);
+				return;
+			}
+
+			// Preskladat oblast do fyzickeho usporadani a zapsat ji
+			Rectangle p = this.orientation.toPhysical(r,
+					this.getSize().width, this.getSize().height);
+			int buffer[] = new int[p.width * p.height];
+			for (int j = 0; j < r.height; j++)
+				for (int i = 0; i < r.width; i++)
+					buffer[physicalIndex(this.orientation, i, j,
+							r.width, r.height)]
+							= src[off + j * stride + i];
+			this.pixels.setRegion(p.x, p.y, p.width, p.height,
+					buffer, 0, p.width);
+		} finally {
+			this.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Nacte cely radek indexu do palety zabalenych po bitech od
+	 * nejvyznamnejsiho (stejne jako setPackedRow()).
+	 * @param y					index radku
+	 * @param dst				cilove pole
+	 * @param off				index prvniho byte v cilovem poli
+	 * @throws IllegalStateException pokud bitmapa nema paletu
+	 */
+	public void getPackedRow(int y, byte dst[], int off) {
+		long stamp = this.lockRead();
+		try {
+			IndexedStorage indexed = this.indexedStorage();
+			if (indexed == null)
+				throw new IllegalStateException("Bitmap has no palette");
+			if (indexed == this.pixels && this.orientation.isIdentity()) {
+				indexed.getPackedRow(y, dst, off);
+				return;
+			}
+
+			// Vyrez nebo zmenena orientace, radek skladame po pixelech
+			int width = this.getSize().width;
+			int bits = indexed.getBits();
+			Arrays.fill(dst, off, off + (width * bits + 7) / 8, (byte) 0);
+			for (int x = 0; x < width; x++) {
+				int bit = x * bits;
+				dst[off + (bit >> 3)] |= (byte) (this.getIndex(x, y)
+						<< (8 - bits - (bit & 7)));
+			}
+		} finally {
+			this.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Zapise cely radek indexu do palety zabalenych po bitech od
+	 * nejvyznamnejsiho (stejne jako v BMP a PCX), tj. (sirka * bits + 7) / 8
+	 * bytes.
+	 * @param y					index radku
+	 * @param src				zdrojove pole
+	 * @param off				index prvniho byte ve zdrojovem poli
+	 * @throws IllegalStateException pokud bitmapa nema paletu
+	 */
+	public void setPackedRow(int y, byte src[], int off) {
+		long stamp = this.lockWrite();
+		try {
+			// Vyrez s paletou je az po zkopirovani IndexedStorage
+			this.compact();
+			if (!(this.pixels instanceof IndexedStorage))
+				throw new IllegalStateException("Bitmap has no palette");
+			this.materialize();
+			((IndexedStorage) this.pixels).setPackedRow(y, src, off);
+			this.markDirty(new Rectangle(0, y, this.getSize().width, 1));
+		} finally {
+			this.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Nastavi index do palety pixelu na pozici x, y.
+	 * @param x					souradnice pixelu v ose X
+	 * @param y					souradnice pixelu v ose Y
+	 * @param index				index do palety
+	 * @throws IllegalStateException pokud bitmapa nema paletu
+	 */
+	public void setIndex(int x, int y, int index) {
+		long stamp = this.lockWrite();
+		try {
+			this.compact();
+			if (!(this.pixels instanceof IndexedStorage))
+				throw new IllegalStateException("Bitmap has no palette");
+			((IndexedStorage) this.pixels).setIndex(
+					this.physicalX(x, y), this.physicalY(x, y), index);
+			this.markDirty(new Rectangle(x, y, 1, 1));
+		} finally {
+			this.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Vrati index do palety pixelu na pozici x, y.
+	 * @param x					souradnice pixelu v ose X
+	 * @param y					souradnice pixelu v ose Y
+	 * @return					index do palety
+	 * @throws IllegalStateException pokud bitmapa nema paletu
+	 */
+	public int getIndex(int x, int y) {
+		long stamp = this.lockRead();
+		try {
+			IndexedStorage indexed = this.indexedStorage();
+			if (indexed == null)
+				throw new IllegalStateException("Bitmap has no palette");
+			int px = this.physicalX(x, y);
+			int py = this.physicalY(x, y);
+			// Vyrez cte primo z puvodniho uloziste
+			if (this.pixels instanceof SubStorage) {
+				SubStorage sub = (SubStorage) this.pixels;
+				px += sub.getLeft();
+				py += sub.getTop();
+			}
+			return indexed.getIndex(px, py);
+		} finally {
+			this.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Nastavi barvu pixelu na pozici x, y. Pouze pro kompatibilitu, kde je to
+	 * mozne je lepsi pouzit setRGB().
+	 * @param x					souradnice pixelu v ose X
+	 * @param y					souradnice pixelu v ose Y
 	 * @param color				barva pixelu
 	 */
 	public void setPixel(int x, int y, Color color) {
-		// TODO overit rozsah souradnic jinak vyjimka
-		this.pixels[x][y] = color;
+		this.setRGB(x, y, color.getRGB());
 	}
 
 	/**
-	 * Vrati barvu pixelu na pozici x, y.
+	 * Vrati barvu pixelu na pozici x, y. Pouze pro kompatibilitu, kde je to
+	 * mozne je lepsi pouzit getRGB() (nevytvari novy objekt Color).
 	 * @param x					souradnice pixelu v ose X
 	 * @param y					souradnice pixelu v ose Y
 	 * @return					barva pixelu
 	 */
 	public Color getPixel(int x, int y) {
-		// TODO overit rozsah souradnic jinak vyjimka
-		return this.pixels[x][y];
+		return new Color(this.getRGB(x, y));
 	}
 
 
 	// Operace
 	/**
-	 * Provede rotaci obrazku o 90 stupnu po smeru hodinovych rucicek
+	 * Provede rotaci obrazku o 90 stupnu po smeru hodinovych rucicek. Meni
+	 * se pouze orientace bitmapy, pixely zustavaji na miste.
 	 * @param counterClockwise	rotace proti smeru
 	 */
 	public void rotate(boolean counterClockwise) {
-		int width = this.getSize().width;
-		int height = this.getSize().height;
-		Color newPixels[][] = new Color[height][width];
+		long stamp = this.lockWrite();
+		try {
+			this.orientation = this.orientation.rotate(counterClockwise);
+			this.keepImage();
 
-		// Provedeme rotaci (presoupeme pixely do noveho 2D pole)
-		for (int y = 0; y < height; y++)
-			for (int x = 0; x < width; x++)
-				if (counterClockwise == false) {
-					newPixels[height - y - 1][x] = this.pixels[x][y];
-				} else {
-					newPixels[y][width - x - 1] = this.pixels[x][y];
-				}
-		// Nastavime nove rozmery a nahradime pixely
-		this.setSize(height, width);
-		this.pixels = newPixels;
+			// Nastavime nove rozmery (prohozene)
+			this.size = new Dimension(this.getSize().height,
+					this.getSize().width);
+			this.repaint();
+			this.updateUI();
+		} finally {
+			this.unlockWrite(stamp);
+		}
 	}
 
 	/**
-	 * Provede efekt zrcadleni obrazku v jedne nebo druhe ose
+	 * Provede efekt zrcadleni obrazku v jedne nebo druhe ose. Meni se pouze
+	 * orientace bitmapy, pixely zustavaji na miste.
 	 * @param horizontal		zrcadleni v ose Y
 	 */
 	public void mirror(boolean horizontal) {
-		int width = this.getSize().width;
-		int height = this.getSize().height;
-		Color newPixels[][] = new Color[width][height];
+		long stamp = this.lockWrite();
+		try {
+			this.orientation = this.orientation.mirror(horizontal);
+			this.keepImage();
+			this.repaint();
+		} finally {
+			this.unlockWrite(stamp);
+		}
+	}
 
-		// Provedeme operaci zrcadleni do noveho 2D pole
-		for (int y = 0; y < height; y++)
-			for (int x = 0; x < width; x++)
-				if (horizontal == false) {
-					newPixels[x][y] = this.pixels[width - x - 1][y];
-				} else {
-					newPixels[x][y] = this.pixels[x][height - y - 1];
-				}
-		// Nahradime pixely a prekreslime obrazek
-		this.pixels = newPixels;
-		this.repaint();
+	/**
+	 * Vrati aktualni orientaci bitmapy (vuci pixelum v ulozisti).
+	 * @return					orientace
+	 */
+	public Orientation getOrientation() {
+		return this.orientation;
 	}
 
 	/**
-	 * Provedeme barevnou inverzi v celem RGB prostoru bez ohledu na paletu,
-	 * pocet barev bude tedy zachovan (akorat budou jine).
+	 * Preusporada pixely v ulozisti podle aktualni orientace, ktera se pak
+	 * stane vychozi. Volano pred ulozenim a operacemi, ktere potrebuji
+	 * pixely ve fyzickem poradi. Pokud to uloziste umi, probehne vse na
+	 * miste bez alokace druhe kopie obrazku.
+	 */
+	public void materialize() {
+		long stamp = this.lockWrite();
+		try {
+			if (this.orientation.isIdentity()) {
+				this.keepImage();
+				return;
+			}
+			this.compact();
+			this.invalidateImage();
+
+			// Fyzicky pixel je na transponovane pozici zrcadlenych logickych
+			// souradnic. Nejprve tedy transponujeme, pak zbyvaji zrcadleni.
+			if (this.orientation.isTransposed() && !this.pixels.transpose()) {
+				this.materializeCopy();
+				return;
+			}
+			if (this.orientation.isFlipX())
+				this.pixels.flipX();
+			if (this.orientation.isFlipY())
+				this.pixels.flipY();
+
+			this.orientation = Orientation.IDENTITY;
+		} finally {
+			this.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Provedeme barevnou inverzi v celem RGB prostoru. U bitmapy s paletou
+	 * se invertuje jen paleta, pocet barev bude tedy zachovan (akorat budou
+	 * jine).
 	 */
 	public void invertColors() {
+		this.apply(ColorLUT.INVERT);
+	}
+
+	/**
+	 * Aplikuje barevnou operaci na vsechny pixely bitmapy (paralelne).
+	 * @param kernel			operace nad jednim pixelem
+	 */
+	public void apply(PixelKernel kernel) {
+		long stamp = this.lockWrite();
+		try {
+			this.compact();
+
+			// Barva nezavisi na orientaci, pracujeme primo s ulozistem. Bitmape
+			// s paletou staci zmenit paletu.
+			if (!this.pixels.applyColors(kernel))
+				KernelExecutor.apply(this.pixels, kernel);
+
+			// Prekreslime obrazek
+			this.repaint();
+		} finally {
+			this.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Aplikuje operaci na vsechny radky bitmapy (paralelne). Radky jsou
+	 * predany v zobrazenem poradi (orientace je pred zpracovanim
+	 * materializovana).
+	 * @param kernel			operace nad radkem
+	 */
+	public void apply(RowKernel kernel) {
+		long stamp = this.lockWrite();
+		try {
+			this.compact();
+			this.expandPalette();
+			this.materialize();
+			KernelExecutor.apply(this.pixels, kernel);
+			this.repaint();
+		} finally {
+			this.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Provede konvoluci bitmapy (rozmazani, doostreni, detekce hran).
+	 * Vysledek se zapisuje do noveho uloziste s plnymi barvami, okoli pixelu
+	 * se cte z puvodniho.
+	 * @param convolution		konvoluce
+	 */
+	public void convolve(Convolution convolution) {
+		long stamp = this.lockWrite();
+		try {
+			this.compact();
+			this.materialize();
+			Storage newPixels = allocate(this.pixels.getWidth(),
+					this.pixels.getHeight());
+			convolution.apply(this.pixels, newPixels);
+			this.replacePixels(newPixels);
+			this.repaint();
+		} finally {
+			this.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Zmeni velikost bitmapy prevzorkovanim (na rozdil od setSize() se
+	 * obrazek roztahne nebo zmensi). Pri velkem zmenseni se obrazek
+	 * nejprve opakovane puli. Bitmapa s paletou zustane s paletou jen pri
+	 * filtru nejblizsiho souseda, ostatni filtry vytvari nove barvy.
+	 * @param width				nova sirka
+	 * @param height			nova vyska
+	 * @param filter			filtr (viz Resampler)
+	 */
+	public void scale(int width, int height, int filter) {
+		if (width < 1 || height < 1)
+			throw new IllegalArgumentException("Invalid size");
+
+		Resampler resampler = new Resampler(filter);
+		long stamp = this.lockWrite();
+		try {
+			this.compact();
+			this.materialize();
+
+			// Postupne pulit, mezivysledky hned uvolnit
+			Storage src = this.pixels;
+			while (resampler.canHalve(src.getWidth(), src.getHeight(),
+					width, height)) {
+				Storage half = allocate((src.getWidth() + 1) / 2,
+						(src.getHeight() + 1) / 2);
+				Resampler.halve(src, half);
+				if (src != this.pixels)
+					src.close();
+				src = half;
+			}
+
+			Storage newPixels;
+			if (filter == Resampler.NEAREST
+					&& this.pixels instanceof IndexedStorage)
+				newPixels = this.pixels.create(width, height);
+			else
+				newPixels = allocate(width, height);
+			resampler.apply(src, newPixels);
+			if (src != this.pixels)
+				src.close();
+
+			this.replacePixels(newPixels);
+			this.size = new Dimension(width, height);
+			this.repaint();
+			this.updateUI();
+		} finally {
+			this.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Provede najednou zmenu orientace a barevnou operaci (viz Pipeline).
+	 * Pokud neni zadana barevna operace (nebo ji lze provest jen na palete),
+	 * zmeni se jen orientace. Jinak jsou pixely jednou nacteny v nove
+	 * orientaci, zpracovany a zapsany do noveho uloziste uz ve fyzickem
+	 * poradi.
+	 * @param o					orientace aplikovana na bitmapu
+	 * @param kernel			barevna operace nebo null
+	 */
+	public void transform(Orientation o, final PixelKernel kernel) {
+		long stamp = this.lockWrite();
+		try {
+			final Orientation target = this.orientation.then(o);
+			final Dimension newSize = o.isTransposed()
+					? new Dimension(this.getSize().height, this.getSize().width)
+					: new Dimension(this.getSize());
+
+			// Bitmape s paletou staci zmenit paletu, zbyva pak jen orientace
+			if (kernel != null)
+				this.compact();
+			if (kernel != null && !this.pixels.applyColors(kernel)) {
+				// Vysledne barvy obecne nejsou v palete, nove uloziste proto
+				// bude vzdy s plnymi barvami
+				final Storage newPixels = allocate(newSize.width,
+						newSize.height);
+
+				// Pri prohozenych osach cteme po ctvercovych blocich, aby se
+				// fyzicke sloupce cetly z cache
+				final int block = target.isTransposed()
+						? Storage.BLOCK_SIZE : Math.max(1, newSize.width);
+				final int stripe = target.isTransposed()
+						? Storage.BLOCK_SIZE : 1;
+				int stripes = (newSize.height + stripe - 1) / stripe;
+				KernelExecutor.forRange(stripes, (long) stripe * newSize.width,
+						new RangeTask() {
+					@Override
+					public void run(int from, int to) {
+						int buffer[] = new int[stripe * newSize.width];
+						Rectangle r = new Rectangle();
+						for (int s = from; s < to; s++) {
+							r.y = s * stripe;
+							r.height = Math.min(stripe, newSize.height - r.y);
+							for (r.x = 0; r.x < newSize.width; r.x += block) {
+								r.width = Math.min(block, newSize.width - r.x);
+								Bitmap.this.readRegion(target, newSize, r,
+										buffer, r.x, newSize.width);
+							}
+							kernel.apply(buffer, 0, r.height * newSize.width);
+							newPixels.setRegion(0, r.y, newSize.width, r.height,
+									buffer, 0, newSize.width);
+						}
+					}
+				}, this.pixels.isConcurrent() && newPixels.isConcurrent());
+
+				this.replacePixels(newPixels);
+				this.orientation = Orientation.IDENTITY;
+			} else {
+				this.orientation = target;
+				if (kernel == null)
+					this.keepImage();
+			}
+
+			this.size = newSize;
+			this.repaint();
+			this.updateUI();
+		} finally {
+			this.unlockWrite(stamp);
+		}
+	}
+
+
+	// Privatni metody
+	/**
+	 * Ziska zamek pro zapis. Vlakno, ktere uz zamek pro zapis drzi, ho
+	 * ziska znovu.
+	 * @return					razitko pro unlockWrite() nebo 0 pokud uz
+	 *							vlakno zamek drzi
+	 * @throws IllegalStateException pokud vlakno drzi zamek pro cteni
+	 */
+	private long lockWrite() {
+		if (this.writer == Thread.currentThread()) {
+			this.writeDepth++;
+			return 0;
+		}
+		if (this.reading.get()[0] > 0)
+			throw new IllegalStateException("Bitmap is locked for reading");
+		long stamp = this.lock.writeLock();
+		this.writer = Thread.currentThread();
+		this.writeDepth = 1;
+		this.statistics = null;
+		this.imageDeclared = false;
+		return stamp;
+	}
+
+	/**
+	 * Uvolni zamek pro zapis.
+	 * @param stamp				razitko vracene lockWrite()
+	 */
+	private void unlockWrite(long stamp) {
+		this.writeDepth--;
+		if (stamp == 0)
+			return;
+		// Zmena, ktera neuvedla zmenenou oblast, mohla zmenit cokoliv
+		if (!this.imageDeclared) {
+			this.imageStale = true;
+			this.mipmap.invalidate();
+		}
+		this.writer = null;
+		this.lock.unlockWrite(stamp);
+	}
+
+	/**
+	 * Precte barvu pixelu (bez zamku).
+	 * @param pixels			uloziste, ze ktereho se cte (pri optickem cteni
+	 *							to, jehoz soubeznost byla overena)
+	 * @param x					souradnice pixelu v ose X
+	 * @param y					souradnice pixelu v ose Y
+	 * @return					barva pixelu ve tvaru 0xRRGGBB
+	 */
+	private int readRGB(Storage pixels, int x, int y) {
+		Orientation orientation = this.orientation;
+		Dimension size = this.size;
+		if (orientation.isIdentity())
+			return pixels.getRGB(x, y);
+		return pixels.getRGB(orientation.physicalX(x, y, size.width,
+				size.height), orientation.physicalY(x, y, size.width,
+				size.height));
+	}
+
+	/**
+	 * Alokuje nove uloziste pixelu. Podle poctu pixelu vybere uloziste na
+	 * halde, mimo ni nebo rozdelene na dlazdice odkladane na disk. Pokud je
+	 * zapnuto ukladani po behech, pouzije ho bez ohledu na velikost.
+	 * @param width				sirka v px
+	 * @param height			vyska v px
+	 * @return					nove uloziste
+	 */
+	private static Storage allocate(int width, int height) {
+		long count = (long) width * height;
+		if (runLength)
+			return new RunLengthStorage(width, height);
+		if (count > tiledThreshold)
+			return new TiledStorage(width, height, tiledBudget);
+		if (count > offHeapThreshold || count > HeapStorage.MAX_PIXELS)
+			return new DirectStorage(width, height);
+		return new HeapStorage(width, height);
+	}
+
+	/**
+	 * Preusporada pixely podle aktualni orientace kopirovanim do noveho
+	 * uloziste (pro uloziste, ktera neumi transpozici na miste).
+	 */
+	private void materializeCopy() {
 		int width = this.getSize().width;
 		int height = this.getSize().height;
-		Color newPixels[][] = new Color[width][height];
+		Storage newPixels = this.pixels.create(width, height);
 
-		// Pro kazdy pixel spocitame inverzni barvu (odecteme od 255)
-		for (int y = 0; y < height; y++)
-			for (int x = 0; x < width; x++) {
-				int r = this.pixels[x][y].getRed();
-				int g = this.pixels[x][y].getGreen();
-				int b = this.pixels[x][y].getBlue();
-				newPixels[x][y] = new Color(255-r, 255-g, 255-b);
+		// Kopirujeme po blocich (radcich nebo dlazdicich) v logickych
+		// souradnicich, getRegion() se postara o prevod
+		Dimension block = this.getBlockSize();
+		int buffer[] = new int[block.width * block.height];
+		for (int by = 0; by < height; by += block.height)
+			for (int bx = 0; bx < width; bx += block.width) {
+				int w = Math.min(block.width, width - bx);
+				int h = Math.min(block.height, height - by);
+				this.getRegion(new Rectangle(bx, by, w, h), buffer, 0, w);
+				newPixels.setRegion(bx, by, w, h, buffer, 0, w);
 			}
 
-		// Nahradime pixely a prekreslime obrazek
+		this.replacePixels(newPixels);
+		this.orientation = Orientation.IDENTITY;
+	}
+
+	/**
+	 * Vrati rozmery bloku, po kterych je vhodne zpracovavat pixely. Pro
+	 * uloziste s dlazdicemi je to dlazdice, pri prohozenych osach ctvercovy
+	 * blok (logicky radek by byl fyzickym sloupcem a kazdy pixel by byl
+	 * v jine radce cache), jinak jeden radek (dost dlouhy pro logicke
+	 * i fyzicke rozmery).
+	 * @return					rozmery bloku v px
+	 */
+	private Dimension getBlockSize() {
+		int tile = this.pixels.getTileSize();
+		if (tile > 0)
+			return new Dimension(tile, tile);
+		if (this.orientation.isTransposed())
+			return new Dimension(Storage.BLOCK_SIZE, Storage.BLOCK_SIZE);
+		return new Dimension(Math.max(1, Math.max(this.pixels.getWidth(),
+				this.pixels.getHeight())), 1);
+	}
+
+	/**
+	 * Prevede logickou souradnici na fyzickou souradnici X.
+	 * @param x					logicka souradnice X
+	 * @param y					logicka souradnice Y
+	 * @return					fyzicka souradnice X
+	 */
+	private int physicalX(int x, int y) {
+		return this.orientation.physicalX(x, y,
+				this.getSize().width, this.getSize().height);
+	}
+
+	/**
+	 * Prevede logickou souradnici na fyzickou souradnici Y.
+	 * @param x					logicka souradnice X
+	 * @param y					logicka souradnice Y
+	 * @return					fyzicka souradnice Y
+	 */
+	private int physicalY(int x, int y) {
+		return this.orientation.physicalY(x, y,
+				this.getSize().width, this.getSize().height);
+	}
+
+	/**
+	 * Vrati index pixelu v bufferu s fyzickou oblasti odpovidajici logicke
+	 * oblasti o rozmerech w x h.
+	 * @param o					orientace
+	 * @param i					logicka souradnice X v ramci oblasti
+	 * @param j					logicka souradnice Y v ramci oblasti
+	 * @param w					logicka sirka oblasti
+	 * @param h					logicka vyska oblasti
+	 * @return					index v bufferu s fyzickou oblasti
+	 */
+	private static int physicalIndex(Orientation o, int i, int j,
+			int w, int h) {
+		int x = o.physicalX(i, j, w, h);
+		int y = o.physicalY(i, j, w, h);
+		return o.isTransposed() ? y * h + x : y * w + x;
+	}
+
+	/**
+	 * Nacte logickou oblast pixelu pro danou orientaci uloziste.
+	 * @param o					orientace
+	 * @param size				logicke rozmery bitmapy pri teto orientaci
+	 * @param r					logicka oblast
+	 * @param dst				cilove pole
+	 * @param off				index prvniho pixelu v cilovem poli
+	 * @param stride			vzdalenost radku v cilovem poli
+	 */
+	private void readRegion(Orientation o, Dimension size, Rectangle r,
+			int dst[], int off, int stride) {
+		if (o.isIdentity()) {
+			this.pixels.getRegion(r.x, r.y, r.width, r.height,
+					dst, off, stride);
+			return;
+		}
+
+		// Nacist odpovidajici fyzickou oblast a preskladat ji
+		Rectangle p = o.toPhysical(r, size.width, size.height);
+		int buffer[] = new int[p.width * p.height];
+		this.pixels.getRegion(p.x, p.y, p.width, p.height,
+				buffer, 0, p.width);
+		for (int j = 0; j < r.height; j++)
+			for (int i = 0; i < r.width; i++)
+				dst[off + j * stride + i]
+						= buffer[physicalIndex(o, i, j, r.width, r.height)];
+	}
+
+	/**
+	 * Vrati uloziste s paletou, ve kterem jsou pixely bitmapy, at uz primo
+	 * nebo pres vyrez (SubStorage).
+	 * @return					uloziste s paletou nebo null
+	 */
+	private IndexedStorage indexedStorage() {
+		Storage storage = this.pixels;
+		if (storage instanceof SubStorage)
+			storage = ((SubStorage) storage).getParent();
+		if (storage instanceof IndexedStorage)
+			return (IndexedStorage) storage;
+		return null;
+	}
+
+	/**
+	 * Pokud ma bitmapa paletu a nektera z barev oblasti v ni neni, prevede
+	 * bitmapu na plne barvy.
+	 * @param w					sirka oblasti
+	 * @param h					vyska oblasti
+	 * @param src				zdrojove pole
+	 * @param off				index prvniho pixelu ve zdrojovem poli
+	 * @param stride			vzdalenost radku ve zdrojovem poli
+	 */
+	private void acceptRegion(int w, int h, int src[], int off, int stride) {
+		if (!(this.pixels instanceof IndexedStorage))
+			return;
+		for (int j = 0; j < h; j++)
+			for (int i = 0; i < w; i++)
+				if (!this.pixels.accepts(src[off + j * stride + i])) {
+					this.expandPalette();
+					return;
+				}
+	}
+
+	/**
+	 * Nahradi uloziste pixelu a uvolni puvodni (pokud na nej nejsou
+	 * pohledy).
+	 * @param newPixels			nove uloziste
+	 */
+	private void replacePixels(Storage newPixels) {
+		Storage oldPixels = this.pixels;
 		this.pixels = newPixels;
-		this.repaint();
+		if (oldPixels != null && oldPixels != newPixels)
+			oldPixels.release();
+		this.invalidateImage();
+	}
+
+	/**
+	 * Oznaci obrazek pro vykresleni k vytvoreni znovu (zmenilo se uloziste
+	 * nebo fyzicke poradi pixelu).
+	 */
+	private void invalidateImage() {
+		this.imageStale = true;
+		this.mipmap.invalidate();
+	}
+
+	/**
+	 * Oznaci zmenenou oblast bitmapy. Pokud ji oznaci zmena, ktera neni
+	 * vnorena v jine zmene, obrazek pro vykresleni se obnovi jen v ni
+	 * (vnejsi zmena mohla zmenit i neco dalsiho).
+	 * @param r					logicka oblast
+	 */
+	private void markDirty(Rectangle r) {
+		Rectangle p = this.orientation.toPhysical(r, this.getSize().width,
+				this.getSize().height);
+		this.imageDirty = (this.imageDirty == null) ? p
+				: this.imageDirty.union(p);
+		this.mipmap.invalidate(p);
+		if (this.writeDepth == 1)
+			this.imageDeclared = true;
+	}
+
+	/**
+	 * Oznaci zmenu, ktera nemeni pixely uloziste (jen orientaci). Plati
+	 * jen pro zmenu, ktera neni vnorena v jine zmene.
+	 */
+	private void keepImage() {
+		if (this.writeDepth == 1)
+			this.imageDeclared = true;
+	}
+
+	/**
+	 * Pripravi obrazek pro vykresleni: vytvori ho, pokud je zastaraly, nebo
+	 * do nej zkopiruje zmenenou oblast. Volano pod zamkem pro cteni.
+	 */
+	private void updateImage() {
+		final Storage pixels = this.pixels;
+		final int width = pixels.getWidth();
+		int height = pixels.getHeight();
+		if (width == 0 || height == 0) {
+			this.image = null;
+			this.imageData = null;
+			return;
+		}
+
+		if (this.imageStale || this.image == null) {
+			int buffer[] = pixels.getBuffer();
+			if (buffer != null) {
+				// Sdilet pole uloziste, nic se nekopiruje
+				DirectColorModel model = new DirectColorModel(24,
+						0xFF0000, 0x00FF00, 0x0000FF);
+				WritableRaster raster = Raster.createPackedRaster(
+						new DataBufferInt(buffer, width * height), width,
+						height, width, model.getMasks(), null);
+				this.image = new BufferedImage(model, raster, false, null);
+				this.imageData = null;
+			} else if (pixels.getPixelCount() <= imageCacheThreshold) {
+				if (this.imageData == null || this.image.getWidth() != width
+						|| this.image.getHeight() != height) {
+					this.image = new BufferedImage(width, height,
+							BufferedImage.TYPE_INT_RGB);
+					this.imageData = ((DataBufferInt) this.image.getRaster()
+							.getDataBuffer()).getData();
+				}
+				this.copyImage(new Rectangle(0, 0, width, height));
+			} else {
+				this.image = null;
+				this.imageData = null;
+			}
+			this.imageStale = false;
+			this.imageDirty = null;
+			return;
+		}
+
+		if (this.imageDirty != null && this.imageData != null)
+			this.copyImage(this.imageDirty.intersection(
+					new Rectangle(0, 0, width, height)));
+		this.imageDirty = null;
+	}
+
+	/**
+	 * Zkopiruje fyzickou oblast uloziste do obrazku pro vykresleni (po pasech
+	 * radku paralelne).
+	 * @param r					fyzicka oblast
+	 */
+	private void copyImage(final Rectangle r) {
+		if (r.isEmpty())
+			return;
+		final Storage pixels = this.pixels;
+		final int data[] = this.imageData;
+		final int stride = pixels.getWidth();
+		final int stripe = Storage.BLOCK_SIZE;
+		int stripes = (r.height + stripe - 1) / stripe;
+		KernelExecutor.forRange(stripes, (long) stripe * r.width,
+				new RangeTask() {
+			@Override
+			public void run(int from, int to) {
+				for (int s = from; s < to; s++) {
+					int y = r.y + s * stripe;
+					int h = Math.min(stripe, r.y + r.height - y);
+					pixels.getRegion(r.x, y, r.width, h, data,
+							y * stride + r.x, stride);
+				}
+			}
+		}, pixels.isConcurrent());
 	}
 
 	// Pretizeni metod
 	@Override
 	public Dimension getPreferredSize() {
-		return this.getSize();
+		return new Dimension((int) Math.ceil(this.getSize().width * this.zoom),
+				(int) Math.ceil(this.getSize().height * this.zoom));
 	}
 
 	@Override
 	public Dimension getMinimumSize() {
-		return this.getSize();
+		return this.getPreferredSize();
 	}
 
 	@Override
 	public void paintComponent(Graphics g) {
-		super.paintComponent(g);
+		long stamp = this.lockRead();
+		try {
+			super.paintComponent(g);
+			this.updateImage();
+
+			// Obrazek je ve fyzickem poradi, orientaci provede transformace
+			Graphics2D g2 = (Graphics2D) g.create();
+			try {
+				double zoom = this.zoom;
+				g2.scale(zoom, zoom);
+				g2.transform(this.orientation.getTransform(
+						this.getSize().width, this.getSize().height));
+				if (zoom < 1)
+					g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+							RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+
+				// Pri zmenseni alespon na polovinu kreslime z nejblizsi
+				// spoctene urovne pyramidy
+				int level = (zoom < 1) ? (int) Math.floor(
+						Math.log(1 / zoom) / Math.log(2) + 1e-9) : 0;
+				BufferedImage levels[] = (level > 0)
+						? this.mipmap.getLevels() : null;
+				int k = (levels != null) ? Mipmap.nearest(levels, level) : 0;
+				if (k > 0)
+					this.paintLevel(g2, levels[k], k);
+				else if (this.image != null)
+					this.paintImage(g2);
+				else
+					this.paintBlocks(g2);
+			} finally {
+				g2.dispose();
+			}
+		} finally {
+			this.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Vykresli viditelnou cast obrazku pro vykresleni (v posuvnem vyrezu
+	 * okna je obrazek casto vetsi nez viditelna oblast).
+	 * @param g					grafika s transformaci do fyzickych
+	 *							souradnic
+	 */
+	private void paintImage(Graphics2D g) {
+		Rectangle r = this.visiblePhysical(g);
+		if (r.isEmpty())
+			return;
+		g.drawImage(this.image, r.x, r.y, r.x + r.width, r.y + r.height,
+				r.x, r.y, r.x + r.width, r.y + r.height, null);
+	}
+
+	/**
+	 * Vykresli viditelnou cast urovne pyramidy zmensenin.
+	 * @param g					grafika s transformaci do fyzickych
+	 *							souradnic
+	 * @param level				obrazek urovne
+	 * @param k					uroven (pixel urovne je 2^k x 2^k
+	 *							fyzickych pixelu)
+	 */
+	private void paintLevel(Graphics2D g, BufferedImage level, int k) {
+		g.scale(1 << k, 1 << k);
+		Rectangle r = new Rectangle(0, 0, level.getWidth(),
+				level.getHeight());
+		Rectangle clip = g.getClipBounds();
+		if (clip != null)
+			r = r.intersection(clip);
+		if (r.isEmpty())
+			return;
+		g.drawImage(level, r.x, r.y, r.x + r.width, r.y + r.height,
+				r.x, r.y, r.x + r.width, r.y + r.height, null);
+	}
+
+	/**
+	 * Vrati viditelnou oblast uloziste (prunik oblasti oriznuti grafiky s
+	 * ulozistem).
+	 * @param g					grafika s transformaci do fyzickych
+	 *							souradnic
+	 * @return					fyzicka oblast
+	 */
+	private Rectangle visiblePhysical(Graphics2D g) {
+		Rectangle r = new Rectangle(0, 0, this.pixels.getWidth(),
+				this.pixels.getHeight());
+		Rectangle clip = g.getClipBounds();
+		return (clip == null) ? r : r.intersection(clip);
+	}
+
+	/**
+	 * Vykresli viditelnou cast uloziste po blocich pres pomocny obrazek
+	 * (pro bitmapy bez obrazku pro vykresleni).
+	 * @param g					grafika s transformaci do fyzickych
+	 *							souradnic
+	 */
+	private void paintBlocks(Graphics2D g) {
+		Rectangle r = this.visiblePhysical(g);
+		if (r.isEmpty())
+			return;
 
-		// Vykreslit jednotlive body
-		for(int x = 0; x < this.getSize().width; x++)
-			for(int y = 0; y < this.getSize().height; y++) {
-				g.setColor(this.getPixel(x, y));
-				g.drawLine(x, y, x, y);
+		int size = TiledStorage.TILE_SIZE;
+		if (this.blockImage == null)
+			this.blockImage = new BufferedImage(size, size,
+					BufferedImage.TYPE_INT_RGB);
+		int data[] = ((DataBufferInt) this.blockImage.getRaster()
+				.getDataBuffer()).getData();
+		for (int by = r.y; by < r.y + r.height; by += size)
+			for (int bx = r.x; bx < r.x + r.width; bx += size) {
+				int w = Math.min(size, r.x + r.width - bx);
+				int h = Math.min(size, r.y + r.height - by);
+				this.pixels.getRegion(bx, by, w, h, data, 0, size);
+				g.drawImage(this.blockImage, bx, by, bx + w, by + h,
+						0, 0, w, h, null);
 			}
 	}
 }
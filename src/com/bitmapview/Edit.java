@@ -0,0 +1,382 @@
+package com.bitmapview;
+
+import com.bitmapview.kernel.ColorLUT;
+import com.bitmapview.kernel.Convolution;
+import com.bitmapview.kernel.PixelKernel;
+
+import java.awt.Dimension;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Uprava bitmapy, kterou lze vratit (viz History). Upravy s presnou
+ * inverzi (rotace, zrcadleni, invertovatelne barevne LUT) si nepamatuji
+ * zadne pixely, vraceni provede inverzni operaci. Ostatni upravy si pred
+ * provedenim ulozi komprimovany snimek toho, co zmeni (u bitmapy s paletou
+ * jen paletu).
+ */
+public abstract class Edit {
+	// Verejne metody
+	/**
+	 * Provede upravu bitmapy.
+	 * @param bitmap			bitmapa
+	 */
+	public abstract void apply(Bitmap bitmap);
+
+	/**
+	 * Vrati upravu bitmapy (bitmapa musi byt ve stavu po apply()).
+	 * @param bitmap			bitmapa
+	 */
+	public abstract void revert(Bitmap bitmap);
+
+	/**
+	 * Vrati velikost pameti drzene upravou (snimek pixelu).
+	 * @return					velikost v bytes
+	 */
+	public long getSize() {
+		return 0;
+	}
+
+
+	// Tovarni metody
+	/**
+	 * Vrati upravu pro rotaci o 90 stupnu.
+	 * @param counterClockwise	rotace proti smeru hodinovych rucicek
+	 * @return					uprava
+	 */
+	public static Edit rotate(boolean counterClockwise) {
+		return new OrientationEdit(
+				Orientation.IDENTITY.rotate(counterClockwise));
+	}
+
+	/**
+	 * Vrati upravu pro zrcadleni.
+	 * @param horizontal		zrcadleni v ose Y (jinak v ose X)
+	 * @return					uprava
+	 */
+	public static Edit mirror(boolean horizontal) {
+		return new OrientationEdit(Orientation.IDENTITY.mirror(horizontal));
+	}
+
+	/**
+	 * Vrati upravu pro barevnou inverzi.
+	 * @return					uprava
+	 */
+	public static Edit invertColors() {
+		return colors(ColorLUT.INVERT);
+	}
+
+	/**
+	 * Vrati upravu pro barevnou operaci. Pokud jde o invertovatelnou LUT,
+	 * vraceni provede inverzni LUT, jinak se pouzije snimek.
+	 * @param kernel			operace nad jednim pixelem
+	 * @return					uprava
+	 */
+	public static Edit colors(PixelKernel kernel) {
+		if (kernel instanceof ColorLUT) {
+			ColorLUT inverse = ((ColorLUT) kernel).inverse();
+			if (inverse != null)
+				return new ColorEdit(kernel, inverse);
+		}
+		return new SnapshotEdit(kernel);
+	}
+
+	/**
+	 * Vrati upravu pro konvoluci. Vraceni vzdy pouzije snimek vsech pixelu.
+	 * @param convolution		konvoluce
+	 * @return					uprava
+	 */
+	public static Edit convolve(Convolution convolution) {
+		return new ConvolutionEdit(convolution);
+	}
+
+	/**
+	 * Vrati upravu pro zmenu velikosti prevzorkovanim (viz Bitmap.scale()).
+	 * @param width				nova sirka
+	 * @param height			nova vyska
+	 * @param filter			filtr (viz Resampler)
+	 * @return					uprava
+	 */
+	public static Edit scale(int width, int height, int filter) {
+		return new ScaleEdit(width, height, filter);
+	}
+
+
+	/**
+	 * Zmena orientace, vraceni je inverzni orientace.
+	 */
+	static class OrientationEdit
+		extends Edit
+	{
+		final Orientation orientation;
+
+		OrientationEdit(Orientation orientation) {
+			this.orientation = orientation;
+		}
+
+		@Override
+		public void apply(Bitmap bitmap) {
+			bitmap.transform(this.orientation, null);
+		}
+
+		@Override
+		public void revert(Bitmap bitmap) {
+			bitmap.transform(this.orientation.inverse(), null);
+		}
+	}
+
+	/**
+	 * Barevna operace s presnou inverzi.
+	 */
+	static class ColorEdit
+		extends Edit
+	{
+		final PixelKernel kernel;
+		final PixelKernel inverse;
+
+		ColorEdit(PixelKernel kernel, PixelKernel inverse) {
+			this.kernel = kernel;
+			this.inverse = inverse;
+		}
+
+		@Override
+		public void apply(Bitmap bitmap) {
+			bitmap.apply(this.kernel);
+		}
+
+		@Override
+		public void revert(Bitmap bitmap) {
+			bitmap.apply(this.inverse);
+		}
+	}
+
+	/**
+	 * Barevna operace bez inverze. Pred provedenim se ulozi paleta (u bitmapy
+	 * s paletou) nebo snimek vsech pixelu (viz Snapshot). Snimek je po
+	 * vraceni zahozen, opetovne provedeni ho vytvori znovu.
+	 */
+	static class SnapshotEdit
+		extends Edit
+	{
+		final PixelKernel kernel;
+		int palette[];
+		Snapshot snapshot;
+
+		SnapshotEdit(PixelKernel kernel) {
+			this.kernel = kernel;
+		}
+
+		@Override
+		public void apply(Bitmap bitmap) {
+			this.palette = bitmap.getPalette();
+			if (this.palette == null)
+				this.snapshot = new Snapshot(bitmap);
+			bitmap.apply(this.kernel);
+		}
+
+		@Override
+		public void revert(Bitmap bitmap) {
+			// Bitmapa s paletou zustava po barevne operaci s paletou a
+			// nasledne upravy ji pri vraceni s paletou obnovi
+			if (this.palette != null)
+				bitmap.setPalette(this.palette);
+			else
+				this.snapshot.restore(bitmap);
+			this.palette = null;
+			this.snapshot = null;
+		}
+
+		@Override
+		public long getSize() {
+			if (this.snapshot != null)
+				return this.snapshot.getSize();
+			if (this.palette != null)
+				return this.palette.length * 4;
+			return 0;
+		}
+	}
+
+	/**
+	 * Konvoluce. Meni i bitmapu s paletou na plne barvy, pred provedenim se
+	 * proto vzdy ulozi snimek vsech pixelu (viz Snapshot).
+	 */
+	static class ConvolutionEdit
+		extends Edit
+	{
+		final Convolution convolution;
+		Snapshot snapshot;
+
+		ConvolutionEdit(Convolution convolution) {
+			this.convolution = convolution;
+		}
+
+		@Override
+		public void apply(Bitmap bitmap) {
+			this.snapshot = new Snapshot(bitmap);
+			bitmap.convolve(this.convolution);
+		}
+
+		@Override
+		public void revert(Bitmap bitmap) {
+			this.snapshot.restore(bitmap);
+			this.snapshot = null;
+		}
+
+		@Override
+		public long getSize() {
+			return this.snapshot != null ? this.snapshot.getSize() : 0;
+		}
+	}
+
+	/**
+	 * Zmena velikosti prevzorkovanim. Pred provedenim se ulozi snimek vsech
+	 * pixelu i s puvodnimi rozmery (viz Snapshot).
+	 */
+	static class ScaleEdit
+		extends Edit
+	{
+		final int width;
+		final int height;
+		final int filter;
+		Snapshot snapshot;
+
+		ScaleEdit(int width, int height, int filter) {
+			this.width = width;
+			this.height = height;
+			this.filter = filter;
+		}
+
+		@Override
+		public void apply(Bitmap bitmap) {
+			this.snapshot = new Snapshot(bitmap);
+			bitmap.scale(this.width, this.height, this.filter);
+		}
+
+		@Override
+		public void revert(Bitmap bitmap) {
+			this.snapshot.restore(bitmap);
+			this.snapshot = null;
+		}
+
+		@Override
+		public long getSize() {
+			return this.snapshot != null ? this.snapshot.getSize() : 0;
+		}
+	}
+
+	/**
+	 * Snimek pixelu bitmapy komprimovany algoritmem Deflate (po radcich).
+	 * U bitmapy s paletou se ulozi paleta a zabalene indexy, jinak plne
+	 * barvy (3 bytes na pixel). Obnoveni vrati bitmape rozmery i typ
+	 * uloziste, takze ji lze dal vracet i upravami, ktere si pamatuji jen
+	 * paletu.
+	 */
+	static class Snapshot {
+		final Dimension size;
+		final int palette[];
+		final int bits;
+		final byte data[];
+
+		/**
+		 * Vytvori snimek bitmapy.
+		 * @param bitmap			bitmapa
+		 */
+		Snapshot(Bitmap bitmap) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			long stamp = bitmap.lockRead();
+			try {
+				this.size = new Dimension(bitmap.getSize());
+				this.palette = bitmap.getPalette();
+				this.bits = bitmap.getBits();
+				int width = this.size.width;
+				int row[] = new int[width];
+				byte bytes[] = new byte[this.getRowLength()];
+				DeflaterOutputStream writer
+						= new DeflaterOutputStream(out, deflater, 65536);
+				for (int y = 0; y < this.size.height; y++) {
+					if (this.palette != null) {
+						bitmap.getPackedRow(y, bytes, 0);
+					} else {
+						bitmap.getRow(y, row, 0);
+						for (int x = 0, i = 0; x < width; x++) {
+							bytes[i++] = (byte) (row[x] >> 16);
+							bytes[i++] = (byte) (row[x] >> 8);
+							bytes[i++] = (byte) row[x];
+						}
+					}
+					writer.write(bytes);
+				}
+				writer.finish();
+			} catch (IOException e) {
+				// Zapis do pameti neselze
+				throw new IllegalStateException(e);
+			} finally {
+				bitmap.unlockRead(stamp);
+				deflater.end();
+			}
+			this.data = out.toByteArray();
+		}
+
+		/**
+		 * Obnovi bitmapu ze snimku (rozmery, paletu a pixely).
+		 * @param bitmap			bitmapa
+		 */
+		void restore(Bitmap bitmap) {
+			int width = this.size.width;
+			int row[] = new int[width];
+			byte bytes[] = new byte[this.getRowLength()];
+			if (this.palette != null) {
+				bitmap.setIndexed(this.size, this.palette, this.bits);
+			} else {
+				// Bitmapu s paletou by setRow() nemusel prevest
+				bitmap.expandPalette();
+				bitmap.setSize(this.size);
+			}
+			try {
+				DataInputStream reader = new DataInputStream(
+						new InflaterInputStream(
+								new ByteArrayInputStream(this.data)));
+				for (int y = 0; y < this.size.height; y++) {
+					reader.readFully(bytes);
+					if (this.palette != null) {
+						bitmap.setPackedRow(y, bytes, 0);
+						continue;
+					}
+					for (int x = 0, i = 0; x < width; x++, i += 3)
+						row[x] = (bytes[i] & 0xFF) << 16
+								| (bytes[i + 1] & 0xFF) << 8
+								| (bytes[i + 2] & 0xFF);
+					bitmap.setRow(y, row, 0);
+				}
+				reader.close();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			bitmap.repaint();
+		}
+
+		/**
+		 * Vrati velikost komprimovanych pixelu.
+		 * @return					velikost v bytes
+		 */
+		long getSize() {
+			return this.data.length;
+		}
+
+		/**
+		 * Vrati delku jednoho ulozeneho radku.
+		 * @return					delka v bytes
+		 */
+		int getRowLength() {
+			if (this.palette != null)
+				return (this.size.width * this.bits + 7) / 8;
+			return this.size.width * 3;
+		}
+	}
+}
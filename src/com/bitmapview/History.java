@@ -0,0 +1,135 @@
+package com.bitmapview;
+
+import java.util.LinkedList;
+
+/**
+ * Historie uprav bitmapy pro vraceni (undo) a opakovani (redo). Historie
+ * drzi samotne upravy (viz Edit), ne kopie obrazku, takze vetsina uprav
+ * nestoji zadnou pamet. Pokud snimky uprav bez inverze prekroci limit,
+ * nejstarsi upravy jsou z historie vyrazeny.
+ */
+public class History {
+	/**
+	 * Implicitni limit pameti pro snimky (64 MiB). Lze nastavit systemovou
+	 * vlastnosti bitmapview.history.limit.
+	 */
+	public static final long DEFAULT_LIMIT = Long.getLong(
+			"bitmapview.history.limit", 64L * 1024 * 1024);
+
+	LinkedList<Edit> undo = new LinkedList<Edit>();
+	LinkedList<Edit> redo = new LinkedList<Edit>();
+	long limit;
+	long size = 0;
+
+
+	// Konstruktory
+	/**
+	 * Vytvori prazdnou historii s danym limitem pameti pro snimky.
+	 * @param limit				limit v bytes
+	 */
+	public History(long limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Implicitni konstruktor.
+	 */
+	public History() {
+		this(DEFAULT_LIMIT);
+	}
+
+
+	// Verejne metody
+	/**
+	 * Provede upravu bitmapy a zapamatuje si ji. Upravy vracene pred timto
+	 * volanim uz nelze opakovat.
+	 * @param bitmap			bitmapa
+	 * @param edit				uprava
+	 */
+	public void perform(Bitmap bitmap, Edit edit) {
+		edit.apply(bitmap);
+		for (Edit e : this.redo)
+			this.size -= e.getSize();
+		this.redo.clear();
+		this.undo.addLast(edit);
+		this.size += edit.getSize();
+		this.trim();
+	}
+
+	/**
+	 * Vrati posledni upravu.
+	 * @param bitmap			bitmapa
+	 * @return					false pokud neni co vracet
+	 */
+	public boolean undo(Bitmap bitmap) {
+		if (this.undo.isEmpty())
+			return false;
+		Edit edit = this.undo.removeLast();
+		this.size -= edit.getSize();
+		edit.revert(bitmap);
+		this.redo.addLast(edit);
+		this.size += edit.getSize();
+		return true;
+	}
+
+	/**
+	 * Znovu provede posledni vracenou upravu.
+	 * @param bitmap			bitmapa
+	 * @return					false pokud neni co opakovat
+	 */
+	public boolean redo(Bitmap bitmap) {
+		if (this.redo.isEmpty())
+			return false;
+		Edit edit = this.redo.removeLast();
+		this.size -= edit.getSize();
+		edit.apply(bitmap);
+		this.undo.addLast(edit);
+		this.size += edit.getSize();
+		this.trim();
+		return true;
+	}
+
+	/**
+	 * Zjisti, jestli je co vracet.
+	 * @return					true pokud existuje uprava pro vraceni
+	 */
+	public boolean canUndo() {
+		return !this.undo.isEmpty();
+	}
+
+	/**
+	 * Zjisti, jestli je co opakovat.
+	 * @return					true pokud existuje vracena uprava
+	 */
+	public boolean canRedo() {
+		return !this.redo.isEmpty();
+	}
+
+	/**
+	 * Vrati velikost pameti drzene snimky v historii.
+	 * @return					velikost v bytes
+	 */
+	public long getSize() {
+		return this.size;
+	}
+
+	/**
+	 * Vymaze historii.
+	 */
+	public void clear() {
+		this.undo.clear();
+		this.redo.clear();
+		this.size = 0;
+	}
+
+
+	// Privatni metody
+	/**
+	 * Vyradi nejstarsi upravy, dokud snimky prekracuji limit. Posledni
+	 * upravu ponechame vzdy.
+	 */
+	private void trim() {
+		while (this.size > this.limit && this.undo.size() > 1)
+			this.size -= this.undo.removeFirst().getSize();
+	}
+}
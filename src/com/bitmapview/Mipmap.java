@@ -0,0 +1,394 @@
+package com.bitmapview;
+
+import com.bitmapview.kernel.KernelExecutor;
+import com.bitmapview.kernel.PackedOps;
+import com.bitmapview.kernel.RangeTask;
+import com.bitmapview.storage.Storage;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Pyramida zmensenin bitmapy pro vykresleni pri zmenseni (zoom < 1).
+ * Uroven k ma rozmery (w + 2^k - 1) / 2^k a kazdy jeji pixel je prumerem
+ * ctverce 2x2 pixelu urovne k - 1 (viz Resampler.halve()), uroven 0 jsou
+ * fyzicke pixely uloziste. Urovne se pocitaji az na vyzadani a na pozadi,
+ * po zmene pixelu se prepocitaji jen zmenene radky. Urovne, ktere by mely
+ * vic pixelu nez Bitmap.imageCacheThreshold, se neukladaji (prvni ulozena
+ * uroven se pocita primo z uloziste).
+ */
+class Mipmap {
+	// Vlakno pro vypocet urovni (vypocet sam probiha paralelne)
+	static final ExecutorService builder = Executors.newSingleThreadExecutor(
+			new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "bitmapview-mipmap");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	final Bitmap bitmap;
+
+	// Spoctene urovne (null pro neulozenou uroven), index je uroven
+	volatile BufferedImage levels[];
+
+	// Rozmery uloziste, pro ktere jsou urovne spocteny
+	int width;
+	int height;
+
+	// Cekajici prace: vse znovu, nebo jen zmenene fyzicke radky
+	boolean full = true;
+	int dirtyFrom;
+	int dirtyTo;
+	// Pocitadlo uplnych zneplatneni, rozpracovany vypocet se pak zahodi
+	long generation;
+	boolean running;
+
+
+	// Konstruktor
+	/**
+	 * Vytvori prazdnou pyramidu bitmapy.
+	 * @param bitmap			bitmapa
+	 */
+	Mipmap(Bitmap bitmap) {
+		this.bitmap = bitmap;
+	}
+
+
+	// Verejne metody
+	/**
+	 * Zahodi vsechny urovne (zmenilo se uloziste nebo poradi pixelu).
+	 * Volano pod zamkem bitmapy pro zapis.
+	 */
+	synchronized void invalidate() {
+		this.full = true;
+		this.generation++;
+		this.levels = null;
+	}
+
+	/**
+	 * Oznaci zmenenou oblast uloziste. Volano pod zamkem bitmapy pro zapis.
+	 * @param r					fyzicka oblast
+	 */
+	synchronized void invalidate(Rectangle r) {
+		if (this.full || r.isEmpty())
+			return;
+		if (this.dirtyFrom == this.dirtyTo) {
+			this.dirtyFrom = r.y;
+			this.dirtyTo = r.y + r.height;
+		} else {
+			this.dirtyFrom = Math.min(this.dirtyFrom, r.y);
+			this.dirtyTo = Math.max(this.dirtyTo, r.y + r.height);
+		}
+	}
+
+	/**
+	 * Vrati spoctene urovne. Pokud nektera uroven neni spoctena nebo je
+	 * zastarala, naplanuje jeji vypocet na pozadi a po nem bitmapu
+	 * prekresli.
+	 * @return					urovne (null pro neulozenou uroven) nebo
+	 *							null pokud nejsou spocteny
+	 */
+	BufferedImage[] getLevels() {
+		this.request();
+		return this.levels;
+	}
+
+	/**
+	 * Vrati ulozenou uroven nejblize pozadovane (nejprve jemnejsi, pak
+	 * hrubsi).
+	 * @param levels			urovne
+	 * @param level				pozadovana uroven (alespon 1)
+	 * @return					uroven nebo 0 pokud zadna neni ulozena
+	 */
+	static int nearest(BufferedImage levels[], int level) {
+		level = Math.min(level, levels.length - 1);
+		for (int k = level; k >= 1; k--)
+			if (levels[k] != null)
+				return k;
+		for (int k = level + 1; k < levels.length; k++)
+			if (levels[k] != null)
+				return k;
+		return 0;
+	}
+
+	/**
+	 * Vrati pocet urovni pro uloziste danych rozmeru (vcetne urovne 0,
+	 * posledni uroven ma 1x1 px).
+	 * @param width				sirka uloziste
+	 * @param height			vyska uloziste
+	 * @return					pocet urovni
+	 */
+	static int levelCount(int width, int height) {
+		int count = 1;
+		while (width > 1 || height > 1) {
+			width = (width + 1) / 2;
+			height = (height + 1) / 2;
+			count++;
+		}
+		return count;
+	}
+
+
+	// Privatni metody
+	/**
+	 * Naplanuje vypocet, pokud je co pocitat a vypocet uz nebezi.
+	 */
+	private synchronized void request() {
+		if (this.running || (!this.full && this.dirtyFrom == this.dirtyTo))
+			return;
+		this.running = true;
+		builder.execute(new Runnable() {
+			@Override
+			public void run() {
+				Mipmap.this.build();
+			}
+		});
+	}
+
+	/**
+	 * Spocita cekajici praci (bezi ve vlakne builder).
+	 */
+	private void build() {
+		boolean rebuild;
+		int from;
+		int to;
+		long generation;
+		BufferedImage levels[];
+		synchronized (this) {
+			rebuild = this.full;
+			from = this.dirtyFrom;
+			to = this.dirtyTo;
+			generation = this.generation;
+			levels = this.levels;
+			this.full = false;
+			this.dirtyFrom = 0;
+			this.dirtyTo = 0;
+		}
+
+		boolean done = false;
+		try {
+			// Rozmery uloziste zjistime pod zamkem
+			long stamp = this.bitmap.lockRead();
+			try {
+				this.width = this.bitmap.pixels.getWidth();
+				this.height = this.bitmap.pixels.getHeight();
+			} finally {
+				this.bitmap.unlockRead(stamp);
+			}
+			if (rebuild || levels == null) {
+				levels = this.allocate(this.width, this.height);
+				from = 0;
+				to = this.height;
+			}
+			done = this.compute(levels, from, to, generation);
+		} finally {
+			synchronized (this) {
+				if (done && generation == this.generation)
+					this.levels = levels;
+				else if (generation == this.generation)
+					this.full = true;
+				this.running = false;
+			}
+		}
+
+		// Prekreslit a pripadne pokracovat
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				Mipmap.this.bitmap.repaint();
+			}
+		});
+	}
+
+	/**
+	 * Vytvori prazdne urovne pro uloziste danych rozmeru.
+	 * @param width				sirka uloziste
+	 * @param height			vyska uloziste
+	 * @return					urovne
+	 */
+	private BufferedImage[] allocate(int width, int height) {
+		BufferedImage levels[] = new BufferedImage[levelCount(width, height)];
+		for (int k = 1; k < levels.length; k++) {
+			int w = levelSize(width, k);
+			int h = levelSize(height, k);
+			if ((long) w * h <= Bitmap.imageCacheThreshold)
+				levels[k] = new BufferedImage(w, h,
+						BufferedImage.TYPE_INT_RGB);
+		}
+		return levels;
+	}
+
+	/**
+	 * Prepocita radky from az to - 1 (fyzicke) ve vsech ulozenych urovnich.
+	 * @param levels			urovne
+	 * @param from				prvni zmeneny radek uloziste
+	 * @param to				radek za poslednim zmenenym radkem
+	 * @param generation		pocitadlo zneplatneni pri zahajeni
+	 * @return					false pokud byl vypocet prerusen
+	 */
+	private boolean compute(final BufferedImage levels[], int from, int to,
+			final long generation) {
+		if (this.width == 0 || this.height == 0)
+			return true;
+
+		for (int k = 1; k < levels.length; k++) {
+			if (levels[k] == null)
+				continue;
+			final int level = k;
+			final int first = from >> k;
+			int last = Math.min(levels[k].getHeight(), ((to - 1) >> k) + 1);
+			final boolean direct = levels[k - 1] == null;
+			final int stripe = Storage.BLOCK_SIZE;
+			int stripes = (last - first + stripe - 1) / stripe;
+			final int end = last;
+			final boolean aborted[] = new boolean[1];
+
+			// Z uloziste se cte jen v tomto vlakne: ulohy ve spolecnem poolu
+			// by cekanim na zamek mohly zablokovat zapisujiciho, ktery na
+			// pool sam ceka
+			KernelExecutor.forRange(stripes,
+					4L * stripe * levels[k].getWidth(), new RangeTask() {
+				@Override
+				public void run(int a, int b) {
+					for (int s = a; s < b && !aborted[0]; s++) {
+						int y = first + s * stripe;
+						int h = Math.min(stripe, end - y);
+						if (direct) {
+							// Z uloziste pod zamkem, ktery mezitim mohl
+							// ziskat zapisujici
+							long stamp = Mipmap.this.bitmap.lockRead();
+							try {
+								if (Mipmap.this.generation(generation)) {
+									aborted[0] = true;
+									return;
+								}
+								Mipmap.this.reduce(levels, level, y, h);
+							} finally {
+								Mipmap.this.bitmap.unlockRead(stamp);
+							}
+						} else {
+							Mipmap.this.halve(levels, level, y, h);
+						}
+					}
+				}
+			}, !direct);
+			if (aborted[0])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Zjisti, jestli od zahajeni vypoctu doslo k uplnemu zneplatneni.
+	 * @param generation		pocitadlo zneplatneni pri zahajeni
+	 * @return					true pokud ano
+	 */
+	private synchronized boolean generation(long generation) {
+		return generation != this.generation;
+	}
+
+	/**
+	 * Spocita radky urovne z predchozi (ulozene) urovne.
+	 * @param levels			urovne
+	 * @param level				uroven
+	 * @param y					prvni radek
+	 * @param h					pocet radku
+	 */
+	private void halve(BufferedImage levels[], int level, int y, int h) {
+		BufferedImage src = levels[level - 1];
+		int srcWidth = src.getWidth();
+		int srcHeight = src.getHeight();
+		int data[] = data(src);
+		int width = levels[level].getWidth();
+		int out[] = data(levels[level]);
+		int top[] = new int[2 * width];
+		int bottom[] = new int[2 * width];
+		int row[] = new int[width];
+		for (int j = y; j < y + h; j++) {
+			System.arraycopy(data, 2 * j * srcWidth, top, 0, srcWidth);
+			System.arraycopy(data, Math.min(srcHeight - 1, 2 * j + 1)
+					* srcWidth, bottom, 0, srcWidth);
+			top[2 * width - 1] = top[srcWidth - 1];
+			bottom[2 * width - 1] = bottom[srcWidth - 1];
+			PackedOps.halve(top, bottom, row, width);
+			System.arraycopy(row, 0, out, j * width, width);
+		}
+	}
+
+	/**
+	 * Spocita radky urovne primo z uloziste (predchozi urovne nejsou
+	 * ulozene). Radek urovne k je pulenim dvou radku urovne k - 1, ktere se
+	 * rekurzivne spocitaji az z radku uloziste.
+	 * @param levels			urovne
+	 * @param level				uroven
+	 * @param y					prvni radek
+	 * @param h					pocet radku
+	 */
+	private void reduce(BufferedImage levels[], int level, int y, int h) {
+		int width = levels[level].getWidth();
+		int out[] = data(levels[level]);
+		int buffers[][] = new int[2 * level + 1][];
+		for (int k = 0; k <= level; k++) {
+			int w = 2 * levelSize(this.width, k) + 2;
+			buffers[2 * k] = new int[w];
+			if (k > 0)
+				buffers[2 * k - 1] = new int[w];
+		}
+		for (int j = y; j < y + h; j++) {
+			this.row(level, j, buffers, buffers[2 * level]);
+			System.arraycopy(buffers[2 * level], 0, out, j * width, width);
+		}
+	}
+
+	/**
+	 * Spocita radek urovne (rekurzivne z radku uloziste).
+	 * @param level				uroven
+	 * @param y					radek urovne
+	 * @param buffers			pomocne buffery (dva pro kazdou uroven)
+	 * @param out				vystupni radek
+	 */
+	private void row(int level, int y, int buffers[][], int out[]) {
+		if (level == 0) {
+			this.bitmap.pixels.getRow(y, out, 0);
+			return;
+		}
+		int srcWidth = levelSize(this.width, level - 1);
+		int srcHeight = levelSize(this.height, level - 1);
+		int width = levelSize(this.width, level);
+		int top[] = buffers[2 * level - 2];
+		int bottom[] = buffers[2 * level - 1];
+		this.row(level - 1, 2 * y, buffers, top);
+		this.row(level - 1, Math.min(srcHeight - 1, 2 * y + 1), buffers,
+				bottom);
+		top[2 * width - 1] = top[srcWidth - 1];
+		bottom[2 * width - 1] = bottom[srcWidth - 1];
+		PackedOps.halve(top, bottom, out, width);
+	}
+
+	/**
+	 * Vrati rozmer urovne.
+	 * @param size				rozmer uloziste
+	 * @param level				uroven
+	 * @return					rozmer urovne
+	 */
+	static int levelSize(int size, int level) {
+		return (int) (((long) size + (1L << level) - 1) >> level);
+	}
+
+	/**
+	 * Vrati pole pixelu obrazku.
+	 * @param image				obrazek TYPE_INT_RGB
+	 * @return					pole pixelu
+	 */
+	static int[] data(BufferedImage image) {
+		return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+	}
+}
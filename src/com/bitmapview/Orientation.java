@@ -0,0 +1,218 @@
+package com.bitmapview;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+
+/**
+ * Orientace bitmapy, tj. jedna z osmi symetrii ctverce (rotace o nasobky 90
+ * stupnu a zrcadleni). Orientace urcuje jak se souradnice zobrazene
+ * (logicke) bitmapy prevadeji na souradnice pixelu v ulozisti (fyzicke):
+ * nejprve se logicke souradnice pripadne zrcadli v osach X a Y a potom
+ * pripadne prohodi (transpozice). Objekty jsou nemenne.
+ */
+public final class Orientation {
+	/**
+	 * Vychozi orientace (logicke souradnice jsou fyzicke).
+	 */
+	public static final Orientation IDENTITY
+			= new Orientation(false, false, false);
+
+	final boolean transpose;
+	final boolean flipX;
+	final boolean flipY;
+
+
+	// Konstruktor
+	/**
+	 * Vytvori orientaci.
+	 * @param transpose			prohodit osy
+	 * @param flipX				zrcadlit logickou osu X
+	 * @param flipY				zrcadlit logickou osu Y
+	 */
+	public Orientation(boolean transpose, boolean flipX, boolean flipY) {
+		this.transpose = transpose;
+		this.flipX = flipX;
+		this.flipY = flipY;
+	}
+
+
+	// Verejne metody
+	/**
+	 * Vrati orientaci vzniklou rotaci teto orientace o 90 stupnu.
+	 * @param counterClockwise	rotace proti smeru hodinovych rucicek
+	 * @return					nova orientace
+	 */
+	public Orientation rotate(boolean counterClockwise) {
+		if (counterClockwise)
+			return new Orientation(!this.transpose, this.flipY, !this.flipX);
+		return new Orientation(!this.transpose, !this.flipY, this.flipX);
+	}
+
+	/**
+	 * Vrati orientaci vzniklou zrcadlenim teto orientace.
+	 * @param horizontal		zrcadleni v ose Y (jinak v ose X)
+	 * @return					nova orientace
+	 */
+	public Orientation mirror(boolean horizontal) {
+		if (horizontal)
+			return new Orientation(this.transpose, this.flipX, !this.flipY);
+		return new Orientation(this.transpose, !this.flipX, this.flipY);
+	}
+
+	/**
+	 * Vrati orientaci vzniklou aplikaci orientace next na bitmapu s touto
+	 * orientaci (napr. IDENTITY.rotate(false) aplikovana na orientaci o
+	 * dava stejny vysledek jako o.rotate(false)).
+	 * @param next				nasledujici orientace
+	 * @return					slozena orientace
+	 */
+	public Orientation then(Orientation next) {
+		// Souradnice se nejprve prevedou orientaci next na logicke
+		// souradnice teto orientace a pak touto orientaci na fyzicke. Pokud
+		// next prohazuje osy, zrcadleni teto orientace pusobi na opacnou osu.
+		if (next.transpose)
+			return new Orientation(this.transpose != next.transpose,
+					next.flipX != this.flipY, next.flipY != this.flipX);
+		return new Orientation(this.transpose,
+				next.flipX != this.flipX, next.flipY != this.flipY);
+	}
+
+	/**
+	 * Vrati inverzni orientaci, tj. orientaci, ktera aplikovana na bitmapu
+	 * s touto orientaci vrati vychozi orientaci.
+	 * @return					inverzni orientace
+	 */
+	public Orientation inverse() {
+		// Symetrii je jen osm, staci je vyzkouset
+		for (int i = 0; i < 8; i++) {
+			Orientation o = new Orientation((i & 4) != 0, (i & 2) != 0,
+					(i & 1) != 0);
+			if (this.then(o).isIdentity())
+				return o;
+		}
+		throw new IllegalStateException("Orientation has no inverse");
+	}
+
+	/**
+	 * Zjisti, jestli jde o vychozi orientaci.
+	 * @return					true pokud se souradnice neprevadi
+	 */
+	public boolean isIdentity() {
+		return !this.transpose && !this.flipX && !this.flipY;
+	}
+
+	/**
+	 * Zjisti, jestli orientace prohazuje osy (tj. i sirku a vysku).
+	 * @return					true pokud jsou osy prohozeny
+	 */
+	public boolean isTransposed() {
+		return this.transpose;
+	}
+
+	/**
+	 * Zjisti, jestli orientace zrcadli logickou osu X.
+	 * @return					true pokud je osa X zrcadlena
+	 */
+	public boolean isFlipX() {
+		return this.flipX;
+	}
+
+	/**
+	 * Zjisti, jestli orientace zrcadli logickou osu Y.
+	 * @return					true pokud je osa Y zrcadlena
+	 */
+	public boolean isFlipY() {
+		return this.flipY;
+	}
+
+	/**
+	 * Prevede logickou souradnici na fyzickou souradnici X.
+	 * @param x					logicka souradnice X
+	 * @param y					logicka souradnice Y
+	 * @param width				logicka sirka
+	 * @param height			logicka vyska
+	 * @return					fyzicka souradnice X
+	 */
+	public int physicalX(int x, int y, int width, int height) {
+		if (this.transpose)
+			return this.flipY ? height - y - 1 : y;
+		return this.flipX ? width - x - 1 : x;
+	}
+
+	/**
+	 * Prevede logickou souradnici na fyzickou souradnici Y.
+	 * @param x					logicka souradnice X
+	 * @param y					logicka souradnice Y
+	 * @param width				logicka sirka
+	 * @param height			logicka vyska
+	 * @return					fyzicka souradnice Y
+	 */
+	public int physicalY(int x, int y, int width, int height) {
+		if (this.transpose)
+			return this.flipX ? width - x - 1 : x;
+		return this.flipY ? height - y - 1 : y;
+	}
+
+	/**
+	 * Prevede logickou oblast na fyzickou.
+	 * @param r					logicka oblast
+	 * @param width				logicka sirka
+	 * @param height			logicka vyska
+	 * @return					fyzicka oblast
+	 */
+	public Rectangle toPhysical(Rectangle r, int width, int height) {
+		int x = this.flipX ? width - r.x - r.width : r.x;
+		int y = this.flipY ? height - r.y - r.height : r.y;
+		if (this.transpose)
+			return new Rectangle(y, x, r.height, r.width);
+		return new Rectangle(x, y, r.width, r.height);
+	}
+
+	/**
+	 * Vrati afinni transformaci, ktera prevadi fyzicke souradnice na
+	 * logicke (pro vykresleni pixelu uloziste v logicke orientaci).
+	 * @param width				logicka sirka
+	 * @param height			logicka vyska
+	 * @return					transformace
+	 */
+	public AffineTransform getTransform(int width, int height) {
+		// Fyzicke souradnice jsou afinni funkci logickych, matice je
+		// permutacni se znamenky a inverzni je tedy transponovana
+		int ox = this.physicalX(0, 0, width, height);
+		int oy = this.physicalY(0, 0, width, height);
+		int ax = this.physicalX(1, 0, width, height) - ox;
+		int ay = this.physicalY(1, 0, width, height) - oy;
+		int cx = this.physicalX(0, 1, width, height) - ox;
+		int cy = this.physicalY(0, 1, width, height) - oy;
+
+		// Posun pro spojite souradnice (pixel zabira jednotkovy ctverec)
+		double bx = ox + 0.5 - 0.5 * (ax + cx);
+		double by = oy + 0.5 - 0.5 * (ay + cy);
+		return new AffineTransform(ax, cx, ay, cy,
+				-(ax * bx + ay * by), -(cx * bx + cy * by));
+	}
+
+
+	// Pretizeni metod
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Orientation))
+			return false;
+		Orientation other = (Orientation) o;
+		return this.transpose == other.transpose
+				&& this.flipX == other.flipX
+				&& this.flipY == other.flipY;
+	}
+
+	@Override
+	public int hashCode() {
+		return (this.transpose ? 4 : 0) | (this.flipX ? 2 : 0)
+				| (this.flipY ? 1 : 0);
+	}
+
+	@Override
+	public String toString() {
+		return "Orientation[transpose=" + this.transpose
+				+ ",flipX=" + this.flipX + ",flipY=" + this.flipY + "]";
+	}
+}
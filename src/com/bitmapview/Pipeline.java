@@ -0,0 +1,77 @@
+package com.bitmapview;
+
+import com.bitmapview.kernel.ColorLUT;
+import com.bitmapview.kernel.PixelKernel;
+
+/**
+ * Fronta operaci nad bitmapou, ktere jsou provedeny najednou. Geometricke
+ * operace (rotace, zrcadleni) jsou slozeny do jedne orientace a barevne
+ * operace do jedne operace nad pixelem. Protoze barevne operace nezavisi na
+ * poloze pixelu, lze je s geometrickymi libovolne prohodit a cela fronta je
+ * tak provedena jednim ctenim a jednim zapisem pixelu.
+ *
+ * <pre>
+ * new Pipeline().rotate(false).mirror(true).invertColors().applyTo(bitmap);
+ * </pre>
+ */
+public class Pipeline {
+	Orientation orientation = Orientation.IDENTITY;
+	PixelKernel kernel = null;
+
+
+	// Verejne metody
+	/**
+	 * Prida rotaci o 90 stupnu.
+	 * @param counterClockwise	rotace proti smeru hodinovych rucicek
+	 * @return					tato fronta
+	 */
+	public Pipeline rotate(boolean counterClockwise) {
+		this.orientation = this.orientation.rotate(counterClockwise);
+		return this;
+	}
+
+	/**
+	 * Prida zrcadleni.
+	 * @param horizontal		zrcadleni v ose Y
+	 * @return					tato fronta
+	 */
+	public Pipeline mirror(boolean horizontal) {
+		this.orientation = this.orientation.mirror(horizontal);
+		return this;
+	}
+
+	/**
+	 * Prida barevnou inverzi.
+	 * @return					tato fronta
+	 */
+	public Pipeline invertColors() {
+		return this.apply(ColorLUT.INVERT);
+	}
+
+	/**
+	 * Prida barevnou operaci.
+	 * @param kernel			operace nad pixelem
+	 * @return					tato fronta
+	 */
+	public Pipeline apply(PixelKernel kernel) {
+		this.kernel = (this.kernel == null) ? kernel : this.kernel.then(kernel);
+		return this;
+	}
+
+	/**
+	 * Zjisti, jestli je fronta prazdna.
+	 * @return					true pokud fronta nic nedela
+	 */
+	public boolean isEmpty() {
+		return this.orientation.isIdentity() && this.kernel == null;
+	}
+
+	/**
+	 * Provede vsechny operace ve fronte nad bitmapou. Fronta zustava
+	 * nezmenena a lze ji aplikovat na dalsi bitmapy.
+	 * @param bitmap			bitmapa
+	 */
+	public void applyTo(Bitmap bitmap) {
+		bitmap.transform(this.orientation, this.kernel);
+	}
+}
@@ -1,7 +1,12 @@
 package com.bitmapview;
 
 import com.bitmapview.format.BMP;
+import com.bitmapview.format.LoadListener;
 import com.bitmapview.format.PCX;
+import com.bitmapview.kernel.ColorLUT;
+import com.bitmapview.kernel.Convolution;
+import com.bitmapview.kernel.Resampler;
+import com.bitmapview.kernel.Statistics;
 import com.sun.glass.ui.CommonDialogs;
 
 import javax.swing.*;
@@ -10,10 +15,14 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
 import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Hlavni trida aplikace. Predstavuje okno, ktere je bud prazdne, nebo zobrazuje
@@ -25,9 +34,26 @@ public class Window
 {
 	private Bitmap bitmap = null;
 	private boolean modified = false;
+	private History history = new History();
+	private JMenuItem saveItem;
+	private JMenu editMenu;
+	private JMenuItem undoItem;
+	private JMenuItem redoItem;
+	private JPanel canvas;
+	private JScrollPane scrollPane;
+	private Loader loader = null;
 
 	final private Dimension emptySize = new Dimension(200, 200);
 
+	// Meze a krok meritka zobrazeni
+	static final double MIN_ZOOM = 1.0 / 1024;
+	static final double MAX_ZOOM = 32;
+	static final double ZOOM_STEP = Math.sqrt(2);
+
+	// Interval obnovy dialogu s prubehem nacitani a prekresleni nactenych
+	// radku v ms
+	static final int PROGRESS_INTERVAL = 100;
+
 
 	// Konstruktory
 	/**
@@ -64,58 +90,74 @@ public class Window
 		// Zeptame se na ulozeni predchozich zmen, pokud nejake jsou
 		this.saveModified();
 
-		// Nastavime novou bitmapu
+		this.showBitmap(bitmap);
+	}
+
+	/**
+	 * Vrati instanci aktualni bitmapy zobrazene v okne.
+	 * @return			bitmapa, ktera je zobrazena, nebo null
+	 */
+	public Bitmap getBitmap() {
+		return this.bitmap;
+	}
+
+
+	// Privatni metody
+	/**
+	 * Zobrazi bitmapu v okne bez dotazu na ulozeni predchozich zmen.
+	 * @param bitmap	bitmapa, ktera ma byt zobrazena, nebo null
+	 */
+	private void showBitmap(Bitmap bitmap) {
+		// Uvolnime pamet puvodni bitmapy a nastavime novou
+		if (this.bitmap != null && this.bitmap != bitmap)
+			this.bitmap.close();
 		this.bitmap = bitmap;
 		// Odstranime puvodni bitmapu z okna
-		this.getContentPane().removeAll();
+		this.canvas.removeAll();
+		this.setMinimumSize(this.emptySize);
 		if(this.bitmap != null) {
-			this.add(this.bitmap);
-			// Nastavime minimalni velikost okna tak aby neslo zmensit vice nez
-			// na velikost bitmapy (+ vyska menu). Pokud je bitmapa moc mala
-			// pouzijeme jako zaklad prazdnou velikost.
-			int exactWidth = this.bitmap.getMinimumSize().width;
-			int exactHeight = this.getJMenuBar().getHeight()
-					+ this.bitmap.getMinimumSize().height;
-			this.setMinimumSize(new Dimension(
-					exactWidth < this.emptySize.width
-							? this.emptySize.width
-							: exactWidth,
-					exactHeight < this.emptySize.height
-							? this.emptySize.height
-							: exactHeight));
+			this.canvas.add(this.bitmap);
 			// Nastavime titulek na jmeno obrazku
 			this.setTitle("Bitmap Viewer - " + this.bitmap.getName());
 		} else {
-			this.setMinimumSize(this.emptySize);
 			// Nastavime prazdny titulek
 			this.setTitle("Bitmap Viewer");
 		}
-		// Modifikacni priznak
+		// Modifikacni priznak a historie uprav
 		this.modified = false;
+		this.history.clear();
+		this.updateEditMenu();
 
-		// Prizpusobime velikost okna
+		// Prizpusobime velikost okna, nejvyse vsak na velikost obrazovky
+		// (zbytek obrazku je dostupny posuvniky)
+		this.canvas.revalidate();
 		this.pack();
+		Rectangle screen = GraphicsEnvironment.getLocalGraphicsEnvironment()
+				.getMaximumWindowBounds();
+		if (this.getWidth() > screen.width
+				|| this.getHeight() > screen.height)
+			this.setSize(Math.min(this.getWidth(), screen.width),
+					Math.min(this.getHeight(), screen.height));
+		this.repaint();
 	}
 
-	/**
-	 * Vrati instanci aktualni bitmapy zobrazene v okne.
-	 * @return			bitmapa, ktera je zobrazena, nebo null
-	 */
-	public Bitmap getBitmap() {
-		return this.bitmap;
-	}
-
-
-	// Privatni metody
 	/**
 	 * Inicializovat okno.
 	 */
 	private void initializeWindow() {
 		this.setTitle("Bitmap Viewer");
 		this.getContentPane().setBackground(Color.BLACK);
-		// Pouzivame GridBag layout manazer aby obrazek byl pri zvetseni okna
-		// vzdy vycentrovany na stred.
-		this.getContentPane().setLayout(new GridBagLayout());
+		// Obrazek je v posuvnem vyrezu, okno tak muze byt mensi nez obrazek
+		// a kresli se jen viditelna cast. Pouzivame GridBag layout manazer
+		// aby obrazek byl pri zvetseni okna vzdy vycentrovany na stred.
+		this.canvas = new JPanel(new GridBagLayout());
+		this.canvas.setBackground(Color.BLACK);
+		this.scrollPane = new JScrollPane(this.canvas);
+		this.scrollPane.setBorder(null);
+		this.scrollPane.getHorizontalScrollBar().setUnitIncrement(16);
+		this.scrollPane.getVerticalScrollBar().setUnitIncrement(16);
+		this.getContentPane().setLayout(new BorderLayout());
+		this.getContentPane().add(this.scrollPane, BorderLayout.CENTER);
 
 		// Uvolnit pamet okna pri zavreni, v pripade ze je zavreno posledni okno
 		// ukoncit aplikaci.
@@ -134,7 +176,8 @@ public class Window
 		// File
 		menu = new JMenu("File");
 		menu.add(new JMenuItem("Open", 'O')).addActionListener(this);
-		menu.add(new JMenuItem("Save", 'S')).addActionListener(this);
+		this.saveItem = menu.add(new JMenuItem("Save", 'S'));
+		this.saveItem.addActionListener(this);
 		menu.add(new JMenuItem("Info", 'I')).addActionListener(this);
 		menu.addSeparator();
 		menu.add(new JMenuItem("Exit", 'x')).addActionListener(this);
@@ -142,11 +185,53 @@ public class Window
 
 		// Edit
 		menu = new JMenu("Edit");
+		this.editMenu = menu;
+		this.undoItem = menu.add(new JMenuItem("Undo", 'U'));
+		this.undoItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z,
+				InputEvent.CTRL_DOWN_MASK));
+		this.undoItem.addActionListener(this);
+		this.redoItem = menu.add(new JMenuItem("Redo", 'e'));
+		this.redoItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y,
+				InputEvent.CTRL_DOWN_MASK));
+		this.redoItem.addActionListener(this);
+		menu.addSeparator();
 		menu.add(new JMenuItem("Rotate 90CW", 'R')).addActionListener(this);
 		menu.add(new JMenuItem("Rotate 90CCW", 't')).addActionListener(this);
 		menu.add(new JMenuItem("Vert. mirror", 'V')).addActionListener(this);
 		menu.add(new JMenuItem("Horiz. mirror", 'H')).addActionListener(this);
 		menu.add(new JMenuItem("Invert colors", 'n')).addActionListener(this);
+		menu.addSeparator();
+		menu.add(new JMenuItem("Grayscale", 'G')).addActionListener(this);
+		menu.add(new JMenuItem("Brightness...", 'B')).addActionListener(this);
+		menu.add(new JMenuItem("Contrast...", 'C')).addActionListener(this);
+		menu.add(new JMenuItem("Gamma...", 'a')).addActionListener(this);
+		menu.add(new JMenuItem("Threshold...", 'h')).addActionListener(this);
+		menu.add(new JMenuItem("Swap red/blue", 'w')).addActionListener(this);
+		menu.addSeparator();
+		menu.add(new JMenuItem("Box blur...", 'x')).addActionListener(this);
+		menu.add(new JMenuItem("Gaussian blur...", 'u'))
+				.addActionListener(this);
+		menu.add(new JMenuItem("Unsharp mask...", 'k')).addActionListener(this);
+		menu.add(new JMenuItem("Edge detect", 'E')).addActionListener(this);
+		menu.addSeparator();
+		menu.add(new JMenuItem("Scale...", 'S')).addActionListener(this);
+		menuBar.add(menu);
+
+		// View
+		menu = new JMenu("View");
+		JMenuItem item = menu.add(new JMenuItem("Zoom in", 'I'));
+		item.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_EQUALS,
+				InputEvent.CTRL_DOWN_MASK));
+		item.addActionListener(this);
+		item = menu.add(new JMenuItem("Zoom out", 'O'));
+		item.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_MINUS,
+				InputEvent.CTRL_DOWN_MASK));
+		item.addActionListener(this);
+		item = menu.add(new JMenuItem("Actual size", 'A'));
+		item.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_0,
+				InputEvent.CTRL_DOWN_MASK));
+		item.addActionListener(this);
+		menu.add(new JMenuItem("Fit to window", 'F')).addActionListener(this);
 		menuBar.add(menu);
 
 
@@ -197,24 +282,29 @@ public class Window
 
 		// Pokud byl vybran soubor bude f nastaveno
 		if (f != null) {
-			// Nacist soubor
-			try {
-				Bitmap bitmap = null;
-
-				// Podle koncovky pouzit prislusny format
-				if (f.getName().toLowerCase().endsWith(".bmp"))
-					bitmap = BMP.load(f);
-				else if (f.getName().toLowerCase().endsWith(".pcx"))
-					bitmap = PCX.load(f);
-				else
-					throw new Exception("Unsupported file type");
+			// Predchozi nedokoncene nacitani uz neni potreba
+			this.cancelLoading();
+			// Zeptame se na ulozeni zmen predem, bitmapa se zobrazi uz
+			// behem nacitani
+			this.saveModified();
+			// Nacist soubor na pozadi
+			this.loader = new Loader(f);
+			this.loader.start();
+		}
+	}
 
-				this.setBitmap(bitmap);
-			} catch (Exception e) {
-				e.printStackTrace();
-				JOptionPane.showMessageDialog(this, e.getMessage(), "Error",
-						JOptionPane.ERROR_MESSAGE);
-			}
+	/**
+	 * Zrusi probihajici nacitani souboru. Rozpracovanou bitmapu odstrani
+	 * z okna, uvolni ji az nacitani, jakmile do ni dekoder prestane
+	 * zapisovat.
+	 */
+	private void cancelLoading() {
+		if (this.loader != null) {
+			Loader loader = this.loader;
+			this.loader = null;
+			loader.cancel(false);
+			loader.discard();
+			loader.release();
 		}
 	}
 
@@ -226,6 +316,10 @@ public class Window
 	 * @param f					objekt souboru do ktereho bude obrazek ulozen
 	 */
 	public void save(File f) {
+		// Rozpracovanou bitmapu ulozit nelze
+		if (this.isLoading())
+			return;
+
 		// Pokud neni soubor zadan primo zobrazime dialog
 		if (f == null) {
 			JFileChooser chooser = new JFileChooser();
@@ -284,6 +378,18 @@ public class Window
 				Map.Entry pair = (Map.Entry) it.next();
 				info += pair.getKey() + ": " + pair.getValue() + "\n";
 			}
+
+			// Statistiky pixelu
+			Statistics stats = this.bitmap.getStatistics();
+			String names[] = {"Red", "Green", "Blue"};
+			info += "\nPixel Statistics\n";
+			for (int c = 0; c < 3; c++)
+				info += names[c] + ": min " + stats.getMin(c) + ", max "
+						+ stats.getMax(c) + ", mean "
+						+ String.format("%.2f", stats.getMean(c)) + "\n";
+			info += "Unique colors: " + stats.getColorCount()
+					+ (stats.isIndexable() ? " (fits 8-bit palette)" : "")
+					+ "\n";
 		}
 		// Zobrazit dialog
 		JOptionPane.showMessageDialog(this, info, "Info",
@@ -291,7 +397,148 @@ public class Window
 	}
 
 
+	/**
+	 * Aplikuje barevnou LUT na otevreny obrazek.
+	 * @param lut				barevna operace
+	 */
+	private void applyColors(ColorLUT lut) {
+		this.perform(Edit.colors(lut));
+	}
+
+	/**
+	 * Provede upravu otevreneho obrazku a zapamatuje si ji v historii.
+	 * @param edit				uprava
+	 */
+	private void perform(Edit edit) {
+		if (this.bitmap == null || this.isLoading())
+			return;
+		this.history.perform(this.bitmap, edit);
+		this.modified = true;
+		this.updateEditMenu();
+	}
+
+	/**
+	 * Povoli nebo zakaze ulozeni a polozky menu Edit. Behem nacitani jsou
+	 * zakazany (do bitmapy jeste zapisuje dekoder), jinak se Undo a Redo
+	 * ridi stavem historie.
+	 */
+	private void updateEditMenu() {
+		boolean editable = !this.isLoading();
+		this.saveItem.setEnabled(editable);
+		for (int i = 0; i < this.editMenu.getItemCount(); i++) {
+			// Oddelovace nejsou polozky (null)
+			JMenuItem item = this.editMenu.getItem(i);
+			if (item != null)
+				item.setEnabled(editable);
+		}
+		this.undoItem.setEnabled(editable && this.history.canUndo());
+		this.redoItem.setEnabled(editable && this.history.canRedo());
+	}
+
+	/**
+	 * Zjisti, zda okno zobrazuje bitmapu, kterou dekoder jeste nacita.
+	 * @return					true pokud nacitani zobrazene bitmapy bezi
+	 */
+	private boolean isLoading() {
+		return this.loader != null && this.bitmap != null
+				&& this.bitmap == this.loader.bitmap;
+	}
+
+	/**
+	 * Zepta se uzivatele na ciselnou hodnotu.
+	 * @param title				titulek dialogu (nazev operace)
+	 * @param message			text dotazu
+	 * @param initial			vychozi hodnota
+	 * @return					zadana hodnota nebo null pri zruseni
+	 */
+	private Double askNumber(String title, String message, String initial) {
+		Object value = JOptionPane.showInputDialog(this, message, title,
+				JOptionPane.QUESTION_MESSAGE, null, null, initial);
+		if (value == null)
+			return null;
+		try {
+			return Double.valueOf(value.toString().trim());
+		} catch (NumberFormatException e) {
+			JOptionPane.showMessageDialog(this, "Invalid number.", "Error",
+					JOptionPane.ERROR_MESSAGE);
+			return null;
+		}
+	}
+
+	/**
+	 * Nastavi meritko zobrazeni otevreneho obrazku.
+	 * @param zoom				meritko (1 = skutecna velikost)
+	 */
+	private void setZoom(double zoom) {
+		if (this.bitmap == null)
+			return;
+		this.bitmap.setZoom(Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom)));
+		this.canvas.revalidate();
+		this.canvas.repaint();
+	}
+
+	/**
+	 * Nastavi meritko tak, aby se cely obrazek vesel do okna.
+	 */
+	private void fitToWindow() {
+		if (this.bitmap == null)
+			return;
+		Dimension view = this.scrollPane.getViewport().getExtentSize();
+		Dimension size = this.bitmap.getSize();
+		if (size.width == 0 || size.height == 0)
+			return;
+		this.setZoom(Math.min((double) view.width / size.width,
+				(double) view.height / size.height));
+	}
+
+	/**
+	 * Zepta se uzivatele na novou velikost a filtr a zmeni velikost
+	 * otevreneho obrazku.
+	 */
+	private void scale() {
+		if (this.bitmap == null)
+			return;
+		Dimension size = this.bitmap.getSize();
+		JTextField width = new JTextField(String.valueOf(size.width));
+		JTextField height = new JTextField(String.valueOf(size.height));
+		JComboBox<String> filter = new JComboBox<String>(new String[] {
+				"Nearest neighbor", "Bilinear", "Box", "Lanczos"});
+		filter.setSelectedIndex(Resampler.LANCZOS);
+
+		JPanel panel = new JPanel(new GridLayout(3, 2, 5, 5));
+		panel.add(new JLabel("Width:"));
+		panel.add(width);
+		panel.add(new JLabel("Height:"));
+		panel.add(height);
+		panel.add(new JLabel("Filter:"));
+		panel.add(filter);
+		if (JOptionPane.showConfirmDialog(this, panel, "Scale",
+				JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION)
+			return;
+
+		try {
+			int w = Integer.parseInt(width.getText().trim());
+			int h = Integer.parseInt(height.getText().trim());
+			if (w < 1 || h < 1)
+				throw new NumberFormatException();
+			this.perform(Edit.scale(w, h, filter.getSelectedIndex()));
+		} catch (NumberFormatException e) {
+			JOptionPane.showMessageDialog(this, "Invalid size.", "Error",
+					JOptionPane.ERROR_MESSAGE);
+		}
+	}
+
 	// Pretizeni metod
+	@Override
+	public void dispose() {
+		// Zrusit probihajici nacitani, rozpracovanou bitmapu uvolni samo
+		this.cancelLoading();
+		// Uvolnit pamet zobrazene bitmapy (muze byt mimo haldu)
+		if (this.bitmap != null)
+			this.bitmap.close();
+		super.dispose();
+	}
+
 	@Override
 	public void actionPerformed(ActionEvent e) {
 		// File
@@ -312,26 +559,302 @@ public class Window
 			this.dispose();
 		}
 
+		// View
+		else if (e.getActionCommand().equals("Zoom in")) {
+			if (this.bitmap != null)
+				this.setZoom(this.bitmap.getZoom() * ZOOM_STEP);
+		}
+		else if (e.getActionCommand().equals("Zoom out")) {
+			if (this.bitmap != null)
+				this.setZoom(this.bitmap.getZoom() / ZOOM_STEP);
+		}
+		else if (e.getActionCommand().equals("Actual size")) {
+			this.setZoom(1);
+		}
+		else if (e.getActionCommand().equals("Fit to window")) {
+			this.fitToWindow();
+		}
+
 		// Edit
+		else if (e.getActionCommand().equals("Undo")) {
+			if (this.bitmap != null && !this.isLoading()
+					&& this.history.undo(this.bitmap))
+				this.modified = true;
+			this.updateEditMenu();
+		}
+		else if (e.getActionCommand().equals("Redo")) {
+			if (this.bitmap != null && !this.isLoading()
+					&& this.history.redo(this.bitmap))
+				this.modified = true;
+			this.updateEditMenu();
+		}
 		else if (e.getActionCommand().equals("Rotate 90CW")) {
-			this.bitmap.rotate(false);
-			this.modified = true;
+			this.perform(Edit.rotate(false));
 		}
 		else if (e.getActionCommand().equals("Rotate 90CCW")) {
-			this.bitmap.rotate(true);
-			this.modified = true;
+			this.perform(Edit.rotate(true));
 		}
 		else if (e.getActionCommand().equals("Vert. mirror")) {
-			this.bitmap.mirror(false);
-			this.modified = true;
+			this.perform(Edit.mirror(false));
 		}
 		else if (e.getActionCommand().equals("Horiz. mirror")) {
-			this.bitmap.mirror(true);
-			this.modified = true;
+			this.perform(Edit.mirror(true));
 		}
 		else if (e.getActionCommand().equals("Invert colors")) {
-			this.bitmap.invertColors();
-			this.modified = true;
+			this.perform(Edit.invertColors());
+		}
+		else if (e.getActionCommand().equals("Grayscale")) {
+			this.applyColors(ColorLUT.grayscale());
+		}
+		else if (e.getActionCommand().equals("Brightness...")) {
+			Double value = this.askNumber("Brightness",
+					"Brightness change (-255 - 255):", "0");
+			if (value != null)
+				this.applyColors(ColorLUT.brightness(value.intValue()));
+		}
+		else if (e.getActionCommand().equals("Contrast...")) {
+			Double value = this.askNumber("Contrast", "Contrast factor:",
+					"1.0");
+			if (value != null)
+				this.applyColors(ColorLUT.contrast(value));
+		}
+		else if (e.getActionCommand().equals("Gamma...")) {
+			Double value = this.askNumber("Gamma", "Gamma:", "1.0");
+			if (value != null && value > 0)
+				this.applyColors(ColorLUT.gamma(value));
+		}
+		else if (e.getActionCommand().equals("Threshold...")) {
+			Double value = this.askNumber("Threshold",
+					"Threshold (0 - 255):", "128");
+			if (value != null)
+				this.applyColors(ColorLUT.threshold(value.intValue()));
+		}
+		else if (e.getActionCommand().equals("Swap red/blue")) {
+			this.applyColors(ColorLUT.channels(ColorLUT.BLUE, ColorLUT.GREEN,
+					ColorLUT.RED));
+		}
+		else if (e.getActionCommand().equals("Box blur...")) {
+			Double value = this.askNumber("Box blur", "Radius (px):", "2");
+			if (value != null && value >= 1)
+				this.perform(Edit.convolve(Convolution.box(value.intValue())));
+		}
+		else if (e.getActionCommand().equals("Gaussian blur...")) {
+			Double value = this.askNumber("Gaussian blur", "Sigma (px):",
+					"1.5");
+			if (value != null && value > 0)
+				this.perform(Edit.convolve(Convolution.gaussian(value)));
+		}
+		else if (e.getActionCommand().equals("Unsharp mask...")) {
+			Double value = this.askNumber("Unsharp mask", "Amount:", "1.0");
+			if (value != null && value > 0)
+				this.perform(Edit.convolve(
+						Convolution.unsharpMask(1.5, value)));
+		}
+		else if (e.getActionCommand().equals("Edge detect")) {
+			this.perform(Edit.convolve(Convolution.sobel()));
+		}
+		else if (e.getActionCommand().equals("Scale...")) {
+			this.scale();
+		}
+	}
+
+
+	/**
+	 * Nacitani souboru na pozadi. Soubor se dekoduje mimo vlakno udalosti,
+	 * okno tak zustava funkcni. Bitmapa se zobrazi, jakmile jsou zname jeji
+	 * rozmery, a nove dekodovane radky se prekresluji nejvyse jednou za
+	 * PROGRESS_INTERVAL. Prubeh (radky a bytes) se zobrazuje v dialogu, ve
+	 * kterem lze nacitani zrusit. Dokud nacitani bezi, nelze bitmapu
+	 * upravovat ani ukladat.
+	 */
+	class Loader
+		extends SwingWorker<Bitmap, Void>
+		implements LoadListener
+	{
+		final File file;
+		final ProgressMonitor monitor;
+		final Timer timer;
+		// Prubeh hlaseny dekoderem, cte se ve vlakne udalosti
+		volatile int rows = 0;
+		volatile int height = 0;
+		volatile long bytes = 0;
+		volatile long length = 0;
+		// Nacitana bitmapa (po zjisteni rozmeru)
+		volatile Bitmap bitmap = null;
+		// Dekodovane radky, ktere jeste nebyly prekresleny
+		int dirtyFrom = Integer.MAX_VALUE;
+		int dirtyTo = 0;
+		// Dokoncena bitmapa, kterou okno jeste neprevzalo, a priznak, ze
+		// ji okno uz neprevezme (chraneno zamkem nacitani)
+		Bitmap result = null;
+		boolean released = false;
+
+		Loader(File file) {
+			this.file = file;
+			this.monitor = new ProgressMonitor(Window.this,
+					"Opening " + file.getName(), "", 0, 1000);
+			this.timer = new Timer(PROGRESS_INTERVAL, new ActionListener() {
+				@Override
+				public void actionPerformed(ActionEvent e) {
+					Loader.this.update();
+				}
+			});
+		}
+
+		/**
+		 * Spusti nacitani a obnovu dialogu s prubehem.
+		 */
+		void start() {
+			this.timer.start();
+			this.execute();
+		}
+
+		/**
+		 * Obnovi dialog s prubehem, pokud jej uzivatel zavrel zrusi
+		 * nacitani. Vola se ve vlakne udalosti.
+		 */
+		void update() {
+			this.repaintRows();
+			if (this.monitor.isCanceled()) {
+				this.cancel(false);
+				return;
+			}
+			long length = this.length;
+			if (length > 0)
+				this.monitor.setProgress((int) (this.bytes * 1000 / length));
+			this.monitor.setNote(this.rows + " / " + this.height + " rows, "
+					+ (this.bytes >> 10) + " / " + (length >> 10) + " KiB");
+		}
+
+		/**
+		 * Prekresli radky dekodovane od posledniho prekresleni.
+		 */
+		void repaintRows() {
+			int from;
+			int to;
+			synchronized (this) {
+				from = this.dirtyFrom;
+				to = this.dirtyTo;
+				this.dirtyFrom = Integer.MAX_VALUE;
+				this.dirtyTo = 0;
+			}
+			Bitmap bitmap = this.bitmap;
+			if (from < to && bitmap != null && Window.this.bitmap == bitmap)
+				bitmap.repaintPixels(new Rectangle(0, from,
+						bitmap.getSize().width, to - from));
+		}
+
+		/**
+		 * Odstrani z okna rozpracovanou bitmapu. Bitmapu neuvolni, dekoder
+		 * do ni muze stale zapisovat (viz release()).
+		 */
+		void discard() {
+			if (this.bitmap != null && Window.this.bitmap == this.bitmap) {
+				Window.this.bitmap = null;
+				Window.this.showBitmap(null);
+			}
+		}
+
+		/**
+		 * Vzda se nacitane bitmapy. Pokud dekoder uz skoncil, bitmapu
+		 * uvolni hned, jinak ji uvolni vlakno nacitani po jeho skonceni.
+		 * Pri chybe nebo zruseni ji uvolni uz dekoder.
+		 */
+		synchronized void release() {
+			this.released = true;
+			if (this.result != null) {
+				this.result.close();
+				this.result = null;
+			}
+		}
+
+		@Override
+		protected Bitmap doInBackground() throws Exception {
+			// Podle koncovky pouzit prislusny format
+			Bitmap bitmap;
+			String name = this.file.getName().toLowerCase();
+			if (name.endsWith(".bmp"))
+				bitmap = BMP.load(this.file, this);
+			else if (name.endsWith(".pcx"))
+				bitmap = PCX.load(this.file, this);
+			else
+				throw new Exception("Unsupported file type");
+
+			// Okno se mohlo nacitani mezitim vzdat
+			synchronized (this) {
+				if (!this.released) {
+					this.result = bitmap;
+					return bitmap;
+				}
+			}
+			bitmap.close();
+			throw new CancellationException("Loading cancelled");
+		}
+
+		@Override
+		public void started(final Bitmap bitmap) {
+			this.bitmap = bitmap;
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					// Nacitani mohlo byt mezitim zruseno
+					if (Window.this.loader == Loader.this)
+						Window.this.showBitmap(bitmap);
+				}
+			});
+		}
+
+		@Override
+		public synchronized void rowsDecoded(int from, int to) {
+			this.dirtyFrom = Math.min(this.dirtyFrom, from);
+			this.dirtyTo = Math.max(this.dirtyTo, to);
+		}
+
+		@Override
+		public void progress(int rows, int height, long bytes, long length) {
+			this.rows = rows;
+			this.height = height;
+			this.bytes = bytes;
+			this.length = length;
+		}
+
+		@Override
+		protected void done() {
+			this.timer.stop();
+			this.monitor.close();
+			// Nacitani zrusene otevrenim jineho souboru nebo zavrenim okna
+			// uz okno nemeni
+			if (Window.this.loader != this)
+				return;
+			// Zruseno v dialogu s prubehem, dekoder muze stale bezet
+			if (this.isCancelled()) {
+				Window.this.cancelLoading();
+				return;
+			}
+			Window.this.loader = null;
+
+			try {
+				// Bitmapa je zobrazena od zacatku nacitani, zbyva prekreslit
+				// posledni radky
+				Bitmap bitmap = this.get();
+				if (Window.this.bitmap != bitmap)
+					Window.this.showBitmap(bitmap);
+				else
+					this.repaintRows();
+				// Nactenou bitmapu uz lze upravovat
+				Window.this.updateEditMenu();
+			} catch (ExecutionException e) {
+				this.discard();
+				Throwable cause = e.getCause();
+				if (cause instanceof CancellationException)
+					return;
+				cause.printStackTrace();
+				JOptionPane.showMessageDialog(Window.this,
+						cause.getMessage(), "Error",
+						JOptionPane.ERROR_MESSAGE);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
 		}
 	}
 
@@ -1,11 +1,13 @@
 package com.bitmapview.format;
 
 import com.bitmapview.Bitmap;
+import com.bitmapview.io.CountingInputStream;
 import com.bitmapview.io.DataInputStreamLE;
 import com.bitmapview.io.DataOutputStreamLE;
 
 import java.awt.*;
 import java.io.*;
+import java.util.concurrent.CancellationException;
 
 /**
  * Trida pro praci s formatem BMP.
@@ -20,18 +22,135 @@ public class BMP {
 	 * @throws FileNotFoundException pokud nebyl soubor nalezen
 	 */
 	public static Bitmap load(File f) throws Exception {
+		return load(f, null);
+	}
+
+	/**
+	 * Precte BMP soubor a prubezne hlasi posluchaci pocet dekodovanych
+	 * radku a prectenych bytes.
+	 * @param f					objekt File reprezentujici BMP soubor
+	 * @param listener			posluchac prubehu nebo null
+	 * @return					objekt Bitmap s obrazkem nebo null
+	 * @throws FileNotFoundException pokud nebyl soubor nalezen
+	 * @throws CancellationException pokud posluchac nacitani zrusil
+	 */
+	public static Bitmap load(File f, LoadListener listener)
+			throws Exception {
 		// Pokud nebyl predan soubor neni treba cokoliv delat
 		if(f == null)
 			return null;
 
-		// Otevrit soubor pro binarni cteni
-		DataInputStreamLE reader = new DataInputStreamLE(
+		// Otevrit soubor pro binarni cteni (s pocitanim prectenych bytes)
+		CountingInputStream counter = new CountingInputStream(
 				new FileInputStream(f));
-		// Pomocna promenna pro ruzne odmerovani prectenych dat
-		int readBytes;
+		DataInputStreamLE reader = new DataInputStreamLE(
+				new BufferedInputStream(counter));
 
 		// Vytvorime objekt Bitmap
 		Bitmap bmp = new Bitmap(f.getName());
+		try {
+			read(bmp, reader, new Progress(listener, counter, f.length()));
+		} catch (Exception e) {
+			// Uvolnit pamet rozpracovane bitmapy
+			bmp.close();
+			throw e;
+		} finally {
+			// Zavrit soubor
+			reader.close();
+		}
+
+		return bmp;
+	}
+
+	/**
+	 * Ulozi objekt typu Bitmap do 24bpp BMP souboru. Pozn. pro funkci save
+	 * neuvazujeme zadnou kompresi, pouze jednu plane a vzdy 24bpp bez palety.
+	 * @param bmp				objekt Bitmap
+	 * @param f					objekt reprezentujici soubor kam ukladame
+	 */
+	public static void save(Bitmap bmp, File f) throws Exception {
+		if(bmp == null || f == null)
+			return;
+
+		// Rotace a zrcadleni jsou jen zmeny orientace, pred ukladanim
+		// pixely fyzicky preusporadame, aby se radky cetly souvisle
+		bmp.materialize();
+
+		// Po dobu ukladani nemuze bitmapu zmenit jine vlakno
+		long stamp = bmp.lockRead();
+		try {
+			DataOutputStreamLE writer = new DataOutputStreamLE(
+					new BufferedOutputStream(new FileOutputStream(f)));
+
+			// Tato metoda je pouze reverzi metody load a veskere potrebne
+			// informace jsou zdokumentovany jiz tam.
+
+			// Vypocteme delku souboru (14b + 40b + radky zarovnane na 4b)
+			long rawLength = (long) ((24 * bmp.getSize().width + 31) / 32) * 4
+					* bmp.getSize().height;
+			long length = 14 + 40 + rawLength;
+			// Offset pixeldat je vzdy 54
+			int offset = 54;
+
+			/* Hlavicka */
+			writer.write(new byte[] {0x42, 0x4D}); // BM
+			writer.writeInt((int) length); // delka bitmapy v bytes
+			writer.write(new byte[4]); // rezervovane bytes (4 x 0)
+			writer.writeInt(offset); // offset pixeldat
+
+			/* DIB hlavicka (BITMAPINFOHEADER) */
+			writer.writeInt(40); // delka hlavicky
+			// Rozmery bitmapy
+			writer.writeInt(bmp.getSize().width);
+			writer.writeInt(bmp.getSize().height);
+			writer.writeShort(1); // pocet planes
+			writer.writeShort(24); // bpp
+			writer.writeInt(0); // typ komprese BI_RGB
+			writer.writeInt((int) rawLength);
+			// Rozliseni (600x600dpi), neni dulezite
+			writer.writeInt(600);
+			writer.writeInt(600);
+			// Paletu nepouzivame
+			writer.writeInt(0); // pocet barev v palete
+			writer.writeInt(0); // pocet pouzitych barev
+
+			// Delka radku (zarovnano na 4 byte)
+			int rowLength = ((24 * bmp.getSize().width + 31) / 32) * 4;
+
+			/* Pixeldata */
+			// Radek pixelu a radek bytes vcetne zarovnani (vynulovane)
+			int row[] = new int[bmp.getSize().width];
+			byte rowBuffer[] = new byte[rowLength];
+			for (int y = bmp.getSize().height - 1; y >= 0; y--) {
+				// Zapsat radek
+				bmp.getRow(y, row, 0);
+				for (int x = 0, i = 0; x < row.length; x++, i += 3) {
+					rowBuffer[i] = (byte) row[x];
+					rowBuffer[i + 1] = (byte) (row[x] >> 8);
+					rowBuffer[i + 2] = (byte) (row[x] >> 16);
+				}
+				writer.write(rowBuffer);
+			}
+
+			// Zavrit soubor
+			writer.close();
+		} finally {
+			bmp.unlockRead(stamp);
+		}
+	}
+
+
+	// Privatni metody
+	/**
+	 * Dekoduje BMP ze streamu do bitmapy.
+	 * @param bmp				objekt Bitmap, do ktereho se obrazek nacte
+	 * @param reader			stream otevreneho souboru
+	 * @param progress			sledovani prubehu nacitani
+	 */
+	private static void read(Bitmap bmp, DataInputStreamLE reader,
+			Progress progress) throws Exception {
+		// Pomocna promenna pro ruzne odmerovani prectenych dat
+		int readBytes;
 
 		/* BMP ma nasledujici tvar:
 		 * Hlavicka (14b)
@@ -91,7 +210,7 @@ public class BMP {
 		Dimension dibImageSize = new Dimension(0, 0);
 		int dibPlanes = 1;
 		int dibBpp = 8;
-		int dibRawLength = 0;
+		long dibRawLength = 0;
 		int dibPaletteLength = 0;
 
 		readBytes = 4; // budeme si pocitat kolik z hlavicky uz mame
@@ -110,7 +229,6 @@ public class BMP {
 		}
 		bmp.addHeader("Size",
 				dibImageSize.width + "px * " + dibImageSize.height + "px");
-		bmp.setSize(dibImageSize);
 
 		// 2b planes (musi byt 1) + 2b bpp
 		if (reader.readShort() != 1)
@@ -125,9 +243,10 @@ public class BMP {
 			if (reader.readInt() != 0)
 				throw new Exception();
 			// 4b velikost bitmapovych dat (muze byt 0 u BI_RGB)
-			dibRawLength = reader.readInt();
+			dibRawLength = reader.readInt() & 0xFFFFFFFFL;
 			if (dibRawLength == 0) {
-				dibRawLength = dibImageSize.width * dibImageSize.height * dibBpp;
+				dibRawLength = (long) dibImageSize.width
+						* dibImageSize.height * dibBpp / 8;
 			}
 			// 4b horiz. + 4b vert. rozliseni (neni treba vedet)
 			reader.skipBytes(8);
@@ -162,7 +281,7 @@ public class BMP {
 
 		/* Paleta
 		 */
-		Color palette[] = null;
+		int palette[] = null;
 		// Obrazky s paletou a barevnou hloubkou vetsi nez 8bpp mohou mit
 		// paletu, ale my ji preskocime.
 		if (offset > 0 && dibBpp > 8) {
@@ -177,7 +296,7 @@ public class BMP {
 			if(dibPaletteLength == 0)
 				dibPaletteLength = (int) Math.pow(2, dibBpp);
 
-			palette = new Color[dibPaletteLength];
+			palette = new int[dibPaletteLength];
 
 			for (int i = 0; i < dibPaletteLength; i++) {
 				int b = reader.readByte() & 0xFF;
@@ -186,12 +305,12 @@ public class BMP {
 
 				// RGB24 (BITMAPCOREHEADER)
 				if (dibHeaderLength == 12 || dibHeaderLength == 64) {
-					palette[i] = new Color(r, g, b);
+					palette[i] = r << 16 | g << 8 | b;
 					readBytes += 3;
 				// RGBA32
 				} else {
 					int a = reader.readByte() & 0xFF;
-					palette[i] = new Color(r, g, b);
+					palette[i] = r << 16 | g << 8 | b;
 					readBytes += 4;
 				}
 			}
@@ -200,9 +319,9 @@ public class BMP {
 			/*
 			System.out.print("DEBUG palette [");
 			for (int i = 0; i < dibPaletteLength; i++) {
-				System.out.print(i + "=" + palette[i].getRed()
-						+ "," + palette[i].getGreen()
-						+ "," + palette[i].getBlue());
+				System.out.print(i + "=" + ((palette[i] >> 16) & 0xFF)
+						+ "," + ((palette[i] >> 8) & 0xFF)
+						+ "," + (palette[i] & 0xFF));
 				if(i < dibPaletteLength - 1)
 					System.out.print(";");
 			}
@@ -214,7 +333,13 @@ public class BMP {
 		// U bitmap, kde jsme si domysleli barvy je treba dopreskocit
 		if (offset != 0)
 			reader.skipBytes(offset);
-		// TODO nastavit paletu objektu Bitmap pro editace/export
+
+		// Obrazky s paletou ukladame jako indexy do palety, ostatni v plnych
+		// barvach
+		if (palette != null)
+			bmp.setIndexed(dibImageSize, palette, dibBpp);
+		else
+			bmp.setSize(dibImageSize);
 
 
 		/* Pixeldata
@@ -225,150 +350,39 @@ public class BMP {
 		// y-ova souradnice je v BMP inverzni
 		// FIXME vyska muze byt zaporna, pak to znamena neinverzni
 
-		for(int y = dibImageSize.height - 1; y >= 0; y--) {
-			readBytes = 0;
-
-			// Pro barevne hloubky mensi nez 8bpp
-			byte tmpByte = 0;
-			int tmpByteOffset = 0;
-
-			for (int x = 0; x < dibImageSize.width; x++) {
-				// Podporujeme pouze BI_RGB bez komprese
-
-				// 1bpp (paleta)
-				if (dibBpp == 1) {
-					// tmpByteOffset urcuje primon n-ty pixel v byte
-					if (tmpByteOffset == 0) {
-						tmpByte = reader.readByte();
-						// V nactenem byte postupujeme od nejmene duleziteho
-						// bitu az k nejdulezitejsimu
-						tmpByteOffset = 7;
-
-						readBytes += 1;
-					} else {
-						tmpByteOffset--;
-					}
-					// Zjistime pravdivostni hodnotu bitu na tmpByteOffset-te
-					// pozici coz je index bitu v palete.
-					int i = (tmpByte >> tmpByteOffset) & 0x01;
-					bmp.setPixel(x, y, palette[i]);
-				}
-				// 4bpp (paleta)
-				else if (dibBpp == 4) {
-					// tmpByteOffset je 0 pro prvni pixel (nibble) a 1 pro
-					// druhy ve smyslu ze mene dulezity nibble je ten vice
-					// vpravo (a tudiz bude nacten prvni)
-					if (tmpByteOffset == 0) {
-						tmpByte = reader.readByte();
-						tmpByteOffset = 1;
-
-						readBytes += 1;
-					} else {
-						tmpByteOffset--;
-					}
-					// Precteme cely nibble
-					int i = (tmpByte >> (tmpByteOffset * 4)) & 0x0F;
-					bmp.setPixel(x, y, palette[i]);
-				}
-				// 8bpp (paleta)
-				else if (dibBpp == 8) {
-					int i = reader.readByte() & 0xFF;
-					bmp.setPixel(x, y, palette[i]);
-
-					readBytes += 1;
-				}
-				// 24bpp 3 bytes na pixel 1b G, 1b B, 1b R
-				else if (dibBpp == 24) {
-					int b = reader.readByte() & 0xFF;
-					int g = reader.readByte() & 0xFF;
-					int r = reader.readByte() & 0xFF;
-
-					bmp.setPixel(x, y, new Color(r, g, b));
-					readBytes += 3;
-				} else {
-					throw new Exception("Unsupported BMP bpp");
-				}
-			}
-			// Preskocit data do konce radku
-			reader.skipBytes(rowLength - readBytes);
-		}
+		// Podporujeme pouze BI_RGB bez komprese
+		if (dibBpp != 1 && dibBpp != 4 && dibBpp != 8 && dibBpp != 24)
+			throw new Exception("Unsupported BMP bpp");
 
-		// Zavrit soubor
-		reader.close();
+		// Rozmery jsou zname, bitmapu lze zobrazit uz behem dekodovani
+		// (radky pribyvaji zdola nahoru)
+		progress.started(bmp);
 
-		return bmp;
-	}
+		// Cteme vzdy cely radek naraz
+		byte rowBuffer[] = new byte[rowLength];
+		int row[] = new int[dibImageSize.width];
 
-	/**
-	 * Ulozi objekt typu Bitmap do 24bpp BMP souboru. Pozn. pro funkci save
-	 * neuvazujeme zadnou kompresi, pouze jednu plane a vzdy 24bpp bez palety.
-	 * @param bmp				objekt Bitmap
-	 * @param f					objekt reprezentujici soubor kam ukladame
-	 */
-	public static void save(Bitmap bmp, File f) throws Exception {
-		if(bmp == null || f == null)
-			return;
+		for(int y = dibImageSize.height - 1; y >= 0; y--) {
+			reader.readFully(rowBuffer);
 
-		DataOutputStreamLE writer = new DataOutputStreamLE(
-				new FileOutputStream(f));
-
-		// Tato metoda je pouze reverzi metody load a veskere potrebne
-		// informace jsou zdokumentovany jiz tam.
-
-		// Vypocteme delku souboru (14b + 40b + 3*sirka*vyska)
-		int rawLength = 3 * (bmp.getSize().width * bmp.getSize().height);
-		int length = 14 + 40 + rawLength;
-		// Offset pixeldat je vzdy 54
-		int offset = 54;
-
-		/* Hlavicka */
-		writer.write(new byte[] {0x42, 0x4D}); // BM
-		writer.writeInt(length); // delka bitmapy v bytes
-		writer.write(new byte[4]); // rezervovane bytes (4 x 0)
-		writer.writeInt(offset); // offset pixeldat
-
-		/* DIB hlavicka (BITMAPINFOHEADER) */
-		writer.writeInt(40); // delka hlavicky
-		// Rozmery bitmapy
-		writer.writeInt(bmp.getSize().width);
-		writer.writeInt(bmp.getSize().height);
-		writer.writeShort(1); // pocet planes
-		writer.writeShort(24); // bpp
-		writer.writeInt(0); // typ komprese BI_RGB
-		writer.writeInt(rawLength);
-		// Rozliseni (600x600dpi), neni dulezite
-		writer.writeInt(600);
-		writer.writeInt(600);
-		// Paletu nepouzivame
-		writer.writeInt(0); // pocet barev v palete
-		writer.writeInt(0); // pocet pouzitych barev
-
-		// Delka radku (zarovnano na 4 byte)
-		int rowLength = ((24 * bmp.getSize().width + 31) / 32) * 4;
-
-		/* Pixeldata */
-		for (int y = bmp.getSize().height - 1; y >= 0; y--) {
-			// Pomocna promenna pro pocitani zapsanych bytes na radku kvuli
-			// zarovnani
-			int writtenBytes = 0;
-
-			// Zapsat radek
-			for (int x = 0; x < bmp.getSize().width; x++) {
-				int r = bmp.getPixel(x, y).getRed();
-				int g = bmp.getPixel(x, y).getGreen();
-				int b = bmp.getPixel(x, y).getBlue();
-
-				byte pixel[] = new byte[] {(byte) b, (byte) g, (byte) r};
-				writer.write(pixel);
-				writtenBytes += 3;
+			// 1bpp, 4bpp, 8bpp (paleta)
+			// Indexy jsou v radku zabaleny od nejvyznamnejsiho bitu stejne
+			// jako v Bitmap, radek tedy jen zkopirujeme.
+			if (dibBpp <= 8) {
+				bmp.setPackedRow(y, rowBuffer, 0);
 			}
-
-			// Zarovnani na delku radku
-			if (writtenBytes < rowLength)
-				writer.write(new byte[rowLength - writtenBytes]);
+			// 24bpp 3 bytes na pixel 1b G, 1b B, 1b R
+			else {
+				for (int x = 0, i = 0; x < dibImageSize.width; x++, i += 3) {
+					int b = rowBuffer[i] & 0xFF;
+					int g = rowBuffer[i + 1] & 0xFF;
+					int r = rowBuffer[i + 2] & 0xFF;
+					row[x] = r << 16 | g << 8 | b;
+				}
+				bmp.setRow(y, row, 0);
+			}
+			progress.rows(y, y + 1, dibImageSize.height - y,
+					dibImageSize.height);
 		}
-
-		// Zavrit soubor
-		writer.close();
 	}
 }
@@ -0,0 +1,40 @@
+package com.bitmapview.format;
+
+import com.bitmapview.Bitmap;
+
+/**
+ * Posluchac prubehu nacitani obrazku. Metody jsou volany z vlakna, ktere
+ * soubor dekoduje (typicky ne z vlakna udalosti Swingu).
+ */
+public interface LoadListener {
+
+	/**
+	 * Oznami, ze jsou zname rozmery obrazku. Bitmapa je od teto chvile
+	 * platna a lze ji zobrazit, radky do ni budou postupne dopisovany.
+	 * @param bitmap			nacitana bitmapa
+	 */
+	void started(Bitmap bitmap);
+
+	/**
+	 * Oznami, ze radky from az to - 1 bitmapy jsou dekodovane. BMP
+	 * dekoduje radky zdola nahoru, PCX shora dolu.
+	 * @param from				prvni radek (vcetne)
+	 * @param to				posledni radek (bez)
+	 */
+	void rowsDecoded(int from, int to);
+
+	/**
+	 * Oznami prubeh nacitani.
+	 * @param rows				pocet dekodovanych radku
+	 * @param height			celkovy pocet radku obrazku
+	 * @param bytes				pocet prectenych bytes
+	 * @param length			delka souboru v bytes
+	 */
+	void progress(int rows, int height, long bytes, long length);
+
+	/**
+	 * Zjisti, jestli ma byt nacitani preruseno.
+	 * @return					true pokud bylo nacitani zruseno
+	 */
+	boolean isCancelled();
+}
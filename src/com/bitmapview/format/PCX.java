@@ -1,13 +1,20 @@
 package com.bitmapview.format;
 
 import com.bitmapview.Bitmap;
+import com.bitmapview.io.CountingInputStream;
 import com.bitmapview.io.DataInputStreamLE;
 import com.bitmapview.io.DataOutputStreamLE;
 
 import java.awt.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
 
 
 /**
@@ -15,19 +22,174 @@ import java.io.FileOutputStream;
  */
 public class PCX {
 
+	// Verejne metody
+	/**
+	 * Precte PCX soubor a vrati objekt typu Bitmap obsahujici obrazek.
+	 * @param f					objekt File reprezentujici PCX soubor
+	 * @return					objekt Bitmap s obrazkem nebo null
+	 */
 	public static Bitmap load (File f) throws Exception {
+		return load(f, null);
+	}
+
+	/**
+	 * Precte PCX soubor a prubezne hlasi posluchaci pocet dekodovanych
+	 * radku a prectenych bytes.
+	 * @param f					objekt File reprezentujici PCX soubor
+	 * @param listener			posluchac prubehu nebo null
+	 * @return					objekt Bitmap s obrazkem nebo null
+	 * @throws CancellationException pokud posluchac nacitani zrusil
+	 */
+	public static Bitmap load(File f, LoadListener listener)
+			throws Exception {
 		// Pokud nebyl predan soubor neni treba cokoliv delat
 		if(f == null)
 			return null;
 
-		// Otevrit soubor pro binarni cteni
-		DataInputStreamLE reader = new DataInputStreamLE(
+		// Otevrit soubor pro binarni cteni (s pocitanim prectenych bytes)
+		CountingInputStream counter = new CountingInputStream(
 				new FileInputStream(f));
-		// Pomocna promenna pro ruzne odmerovani prectenych dat
-		int readBytes;
+		DataInputStreamLE reader = new DataInputStreamLE(
+				new BufferedInputStream(counter));
 
 		// Vytvorime objekt Bitmap
 		Bitmap pcx = new Bitmap(f.getName());
+		try {
+			read(pcx, reader, f, new Progress(listener, counter, f.length()));
+		} catch (Exception e) {
+			// Uvolnit pamet rozpracovane bitmapy
+			pcx.close();
+			throw e;
+		} finally {
+			// Zavrit soubor
+			reader.close();
+		}
+
+		return pcx;
+	}
+
+	/**
+	 * Ulozi objekt typu Bitmap do 24bpp (3 plane x 8bpp) PCX souboru. Vzdy
+	 * je uvazovana komprese RLE a nikdy neni obsazena paleta.
+	 * @param pcx				objekt Bitmap
+	 * @param f					objekt reprezentujici soubor kam ukladame
+	 */
+	public static void save(Bitmap pcx, File f) throws Exception {
+		if(pcx == null || f == null)
+			return;
+
+		// Rotace a zrcadleni jsou jen zmeny orientace, pred ukladanim
+		// pixely fyzicky preusporadame, aby se radky cetly souvisle
+		pcx.materialize();
+
+		// Po dobu ukladani nemuze bitmapu zmenit jine vlakno
+		long stamp = pcx.lockRead();
+		try {
+			DataOutputStreamLE writer = new DataOutputStreamLE(
+					new BufferedOutputStream(new FileOutputStream(f)));
+
+			// Pocet bytes na jednu radku
+			int bytesPerLine = pcx.getSize().width * 1; // 1 byte na plane
+
+			// Tato metoda je pouze reverzi metody load a veskere potrebne
+			// informace jsou zdokumentovany jiz tam.
+
+			/* Hlavicka */
+			writer.writeByte(0x0A); // identifikator PCX
+			writer.writeByte(5); // verze PCX je vzdy 5 (podpora 24bpp)
+			writer.writeByte(1); // RLE komprese
+			writer.writeByte(8); // bpp
+			// Rozmery obrazku
+			writer.writeShort(0); // xStart
+			writer.writeShort(0); // yStart
+			writer.writeShort(pcx.getSize().width - 1); // xEnd
+			writer.writeShort(pcx.getSize().height - 1); // yEnd
+			// Rozliseni 600x600 dpi (neni dulezite)
+			writer.writeShort(600);
+			writer.writeShort(600);
+			// EGA paleta (vse 0)
+			writer.write(new byte[48]);
+			writer.writeByte(0); // reserved
+			// Pocet planes - vzdy 3 pro kombinaci 8x3
+			writer.writeByte(3);
+			// Pocet bytes na jednu radku obrazku
+			writer.writeShort(bytesPerLine);
+			// Typ palety
+			writer.writeShort(1); // ignorovano
+			// Velikost obrazovky (vyrezu)
+			writer.writeShort(pcx.getSize().width); // sirka
+			writer.writeShort(pcx.getSize().height); // vyska
+			// Reserved
+			writer.write(new byte[54]); // 0
+
+			/* Pixeldata */
+			int scanLineLength = 3 * bytesPerLine;
+			int row[] = new int[pcx.getSize().width];
+			for (int l = 0; l < pcx.getSize().height; l++) {
+				// buffer pro jednu radku
+				byte[] buffer = new byte[scanLineLength];
+				// do promenne buffer nacteme celou radku z Bitmap objektu
+				// kazda barva je reprezentovana jednim byte v prislusne plane
+				// viz. nacitaci funkce pro PCX bez palety vyse
+				pcx.getRow(l, row, 0);
+				for (int x = 0; x < pcx.getSize().width; x++) {
+					buffer[0 + x] = (byte) (row[x] >> 16);
+					buffer[bytesPerLine + x] = (byte) (row[x] >> 8);
+					buffer[bytesPerLine * 2 + x ] = (byte) row[x];
+				}
+
+				// provedeme RLE kompresi a zapis do souboru
+				int i = 0;
+				do {
+					int runLength = 0;
+					// spocitame kolik (do 63 coz je maximalni delka runu) je
+					// stejnych byte vedle sebe
+					while (runLength < 62 && i + runLength + 1 < scanLineLength
+							&& buffer[i + runLength]
+									== buffer [i + runLength +	1])
+						runLength++;
+
+					// Pokud je run delsi nez jedna provedeme kompresi
+					if (runLength > 0) {
+						// zapiseme RLE byte s delkou runu
+						writer.writeByte(runLength + 1 | 0xC0);
+						// zapiseme opakujici se byte
+						writer.writeByte(buffer[i]);
+						// posuneme se v radce az za sekvenci, kterou jsme
+						// zapsali
+						i += runLength + 1;
+					} else {
+						// musime osetrit situaci kdy delka runu je 1 (pokud je
+						// hodnota 0xC0 to prijde na dva byte 0xC1 + hodnota
+						// co se opakuje 1x)
+						if ((buffer[i] & 0xC0) == 0xC0)
+							writer.writeByte(0xC1); // 1 opakovani nasled. byte
+						writer.writeByte(buffer[i++]);
+					}
+
+				} while (i < scanLineLength);
+			}
+
+			// Zavrit soubor
+			writer.close();
+		} finally {
+			pcx.unlockRead(stamp);
+		}
+	}
+
+
+	// Privatni metody
+	/**
+	 * Dekoduje PCX ze streamu do bitmapy.
+	 * @param pcx				objekt Bitmap, do ktereho se obrazek nacte
+	 * @param reader			stream otevreneho souboru
+	 * @param f					soubor (paleta se hleda od jeho konce)
+	 * @param progress			sledovani prubehu nacitani
+	 */
+	private static void read(Bitmap pcx, DataInputStreamLE reader, File f,
+			Progress progress) throws Exception {
+		// Pomocna promenna pro ruzne odmerovani prectenych dat
+		int readBytes;
 
 		/* PCX ma nasledujici tvar:
 		 * hlavicka (128b)
@@ -73,7 +235,6 @@ public class PCX {
 		Dimension imageSize = new Dimension(
 				xEnd - xStart + 1,
 				yEnd - yStart + 1);
-		pcx.setSize(imageSize);
 		pcx.addHeader("Size", imageSize.width + "px * "
 				+ imageSize.height + "px");
 		// Rozliseni (ignorujeme)
@@ -106,7 +267,53 @@ public class PCX {
 				+ "]");
 		*/
 
+     	/* Paleta
+     	 * U formatu PCX nastavaji 3 situace.
+     	 * 1/ obrazek je v EGA palete tj. max 16 barev, pak je paleta ulozena
+     	 * primo v hlavicce. Toto plati i pro CGA paletu, kterou nepodporujeme
+     	 * 2/ obrazek je ve VGA palete tj. max 256 barev. Tato paleta se do
+     	 * hlavicky nevejde a najde se na offsetu 768b (= 256b*3) od konce
+     	 * souboru signalizovana sekvenci 0C na offsetu 769b na tomto offsetu
+     	 * 3/ obrazek ma 3 planes a 8bpp a je tedy 24b, v takovem pripade
+     	 * neni paleta potreba
+		 * VGA paletu cteme predem primo z konce souboru, aby bylo mozne
+		 * radky zobrazovat uz behem dekodovani. Jestli za obrazovymi daty
+		 * opravdu zbyva 769 bytes se overi az po jejich dekodovani.
+		 */
+		int palette[] = null;
+		boolean hasVGApalette = false;
+
+
+		// Jedinny pripad kdy nenacitame zadnou paletu je 24b obrazek
+		if (!(bpp == 8 && planes == 3)) {
+			// VGA paleta
+			palette = readVGAPalette(f);
+			if (palette != null) {
+				// DEBUG
+				//System.out.println("DEBUG vga palette found");
+				hasVGApalette = true;
+			}
+			// EGA paleta
+			else {
+				palette = decodeEGAPalette(egaPalette);
+			}
+		}
+		// FIXME VGA paleta
+
+		// Obrazky s paletou ukladame jako indexy do palety, ostatni v plnych
+		// barvach
+		if (palette != null)
+			pcx.setIndexed(imageSize, palette, bpp);
+		else
+			pcx.setSize(imageSize);
+
+		// Rozmery jsou zname, bitmapu lze zobrazit uz behem dekodovani
+		progress.started(pcx);
+
+
 		/* Pixeldata
+		 * Radky jsou ulozeny shora dolu, kazdy radek se hned po dekodovani
+		 * zapise do bitmapy.
 		 */
 		readBytes = 128; // v readBytes budeme odmerovat offset 768b od konce,
 		// zatim mame prectenu hlavicku souboru
@@ -115,10 +322,11 @@ public class PCX {
 		int scanLineLength = planes * bytesPerLine;
 		int padding = (scanLineLength * (8 / bpp)) - imageSize.width;
 
-		// Buffer je 2d pole usporadane po radkach
-		byte[][] buffer = new byte[imageSize.height][scanLineLength];
+		// Buffer pro jednu dekodovanou radku
+		byte[] buffer = new byte[scanLineLength];
+		int row[] = new int[imageSize.width];
 
-		for (int l = 0; l < imageSize.height; l++) {
+		for (int y = 0; y < imageSize.height; y++) {
 			int i = 0;
 			do {
 				// Nacteme byte ze souboru
@@ -138,9 +346,42 @@ public class PCX {
 				}
 				// Zapsat cely beh do bufferu
 				for(int r = 0; r < runLength; r++)
-					buffer[l][i++] = runByte;
+					buffer[i++] = runByte;
 
 			} while (i < scanLineLength);
+
+			// 1bpp, 4bpp (EGA)
+			// co 1 resp. 4 bity to index v EGA palete. Indexy jsou v bufferu
+			// zabaleny od nejvyznamnejsiho bitu stejne jako v Bitmap, radek
+			// (prvni plane) tedy jen zkopirujeme.
+			if ((bpp == 1 || bpp == 4) && palette != null) {
+				pcx.setPackedRow(y, buffer, 0);
+			}
+			// 8bpp (EGA/VGA)
+			// index v palete
+			else if (bpp == 8 && planes == 1) {
+				if (hasVGApalette == false)
+					checkEGAIndexes(buffer, imageSize.width);
+				pcx.setPackedRow(y, buffer, 0);
+			}
+			// bez palety (24bpp)
+			// pixely jsou usporadany tak, ze v kazde plane je jedna
+			// barva. Tj. v bufferu je na indexech:
+			// 0 - bytesPerLine-1 cervena slozka
+			// bytesPerLine - bytesPerLine*2-1 zelena slozka
+			// bytesPerLine*2 - scanLineLength-1 modra slozka
+			else if (bpp == 8 && planes == 3) {
+				for (int x = 0; x < imageSize.width; x++) {
+					int r = buffer[0 + x] & 0xFF;
+					int g = buffer[bytesPerLine + x] & 0xFF;
+					int b = buffer[bytesPerLine * 2 + x] & 0xFF;
+					row[x] = r << 16 | g << 8 | b;
+				}
+				pcx.setRow(y, row, 0);
+			} else
+				throw new Exception("Invalid color encoding");
+
+			progress.rows(y, y + 1, y + 1, imageSize.height);
 		}
 
 		// DEBUG
@@ -151,224 +392,86 @@ public class PCX {
 				+ "]");
 		*/
 
-     	/* Paleta
-     	 * U formatu PCX nastavaji 3 situace.
-     	 * 1/ obrazek je v EGA palete tj. max 16 barev, pak je paleta ulozena
-     	 * primo v hlavicce. Toto plati i pro CGA paletu, kterou nepodporujeme
-     	 * 2/ obrazek je ve VGA palete tj. max 256 barev. Tato paleta se do
-     	 * hlavicky nevejde a najde se na offsetu 768b (= 256b*3) od konce
-     	 * souboru signalizovana sekvenci 0C na offsetu 769b na tomto offsetu
-     	 * 3/ obrazek ma 3 planes a 8bpp a je tedy 24b, v takovem pripade
-     	 * neni paleta potreba
-		 */
-		Color palette[] = null;
-		boolean hasVGApalette = false;
-
-
-		// Jedinny pripad kdy nenacitame zadnou paletu je 24b obrazek
-		if (!(bpp == 8 && planes == 3)) {
-			// Pokud zbyva vice nez 769 bytes od konce preskocit tolik bytes
-			// aby presne zbyvalo 769 bytes od konce.
-			long paletteOffset = f.length() - readBytes;
-			if(paletteOffset > 769) {
-				reader.skipBytes((int) (paletteOffset - 769));
-				paletteOffset = 769;
-			}
-			// Pokud je priznak 0x0C muzeme zacist cist VGA paletu
-			if ((paletteOffset == 769) && (reader.readByte() == 0x0C))
-				hasVGApalette = true;
-
-			// EGA paleta
-			if (!hasVGApalette) {
-				palette = new Color[16]; // 2, 4, 8 nebo 16 EGA barev
-				for (int i = 0; i < 48; i += 3) {
-					int r = (egaPalette[i] >> 6) & 0xFF;
-					int g = (egaPalette[i + 1] >> 6) & 0xFF;
-					int b = (egaPalette[i + 2] >> 6) & 0xFF;
-					palette[i / 3] = new Color(r, g, b);
+		// Pokud obrazova data zasahuji do poslednich 769 bytes, nejde o VGA
+		// paletu (priznak 0C byl jen soucasti dat) a plati EGA paleta
+		if (hasVGApalette && f.length() - readBytes < 769) {
+			hasVGApalette = false;
+			palette = decodeEGAPalette(egaPalette);
+			if (bpp == 8) {
+				byte indexes[] = new byte[imageSize.width];
+				for (int y = 0; y < imageSize.height; y++) {
+					for (int x = 0; x < imageSize.width; x++)
+						indexes[x] = (byte) pcx.getIndex(x, y);
+					checkEGAIndexes(indexes, imageSize.width);
 				}
-				pcx.addHeader("Palette", "EGA");
-			}
-			// VGA paleta
-			else {
-				// DEBUG
-				//System.out.println("DEBUG vga palette found");
-				palette = new Color[256];
-				for (int i = 0; i < 768; i += 3) {
-					int r = reader.readByte() & 0xFF;
-					int g = reader.readByte() & 0xFF;
-					int b = reader.readByte() & 0xFF;
-					palette[i / 3] = new Color(r, g, b);
-				}
-				pcx.addHeader("Palette", "EGA");
 			}
+			// Paleta bitmapy ma stale delku VGA palety
+			pcx.setPalette(Arrays.copyOf(palette, pcx.getPalette().length));
 		}
-		// TODO predat paletu do Bitmap objektu pro pripadne ukladani/export
-		// FIXME VGA paleta
+		if (palette != null)
+			pcx.addHeader("Palette", "EGA");
+	}
 
+	/**
+	 * Precte VGA paletu z konce souboru. Palete predchazi byte 0C na
+	 * offsetu 769b od konce souboru.
+	 * @param f					PCX soubor
+	 * @return					paleta (256 barev) nebo null pokud ji soubor
+	 *							nema
+	 */
+	private static int[] readVGAPalette(File f) throws IOException {
+		// Paleta nemuze zasahovat do hlavicky
+		long length = f.length();
+		if (length < 128 + 769)
+			return null;
 
-		// Zapsat vyslednou bitmapu
-		for (int y = 0; y < imageSize.height; y++) {
-			// Pro barevne hloubky mensi nez 8bpp
-			byte tmpByte = 0;
-			int tmpByteOffset = 0;
-			int tmpX = 0;
-
-			for (int x = 0; x < imageSize.width; x++) {
-				// 1bpp (EGA)
-				// co bit to index v EGA palete. V tmpByte mame ulozeny
-				// aktualni byte z bufferu, dalsi indexujeme pomoci tmpX coz
-				// je vlastne x/8 (na jeden byte je 8 pixelu). Pozici v
-				// aktualne zpracovavanem byte uchovavame v tmpByteOffset
-				if (bpp == 1 && palette != null) {
-					if (tmpByteOffset == 0) {
-						tmpByte = buffer[y][tmpX++];
-						tmpByteOffset = 7;
-					} else {
-						tmpByteOffset--;
-					}
-					int i = (tmpByte >> tmpByteOffset) & 0x01;
-					pcx.setPixel(x, y, palette[i]);
-				}
-				// 4bpp (EGA)
-				// co 4 bity to index v EGA palete. Analogicky ke zpracovani
-				// 1bit barevne hloubky pouzivame tmpByte a tmpX,
-				// tmpByteOffset = 0 znaci prvni nibble (pulka byte) s
-				// indexem v palete a tmpByteOffset = 1 druhy.
-				else if (bpp == 4 && palette != null) {
-					if (tmpByteOffset == 0) {
-						tmpByte = buffer[y][tmpX++];
-						tmpByteOffset = 1;
-					} else {
-						tmpByteOffset--;
-					}
-					int i = (tmpByte >> (tmpByteOffset * 4)) & 0x0F;
-					pcx.setPixel(x, y, palette[i]);
-				}
-				// 8bpp (EGA/VGA)
-				// index v palete
-				else if (bpp == 8 && planes == 1) {
-					int colorIndex = buffer[y][x] & 0xFF;
-					if (colorIndex > 15 && hasVGApalette == false)
-						throw new Exception("Missing VGA palette at 8bpp");
-					pcx.setPixel(x, y, palette[colorIndex]);
-				}
-				// bez palety (24bpp)
-				// pixely jsou usporadany tak, ze v kazde plane je jedna
-				// barva. Tj. v bufferu je na indexech:
-				// 0 - bytesPerLine-1 cervena slozka
-				// bytesPerLine - bytesPerLine*2-1 zelena slozka
-				// bytesPerLine*2 - scanLineLength-1 modra slozka
-				else if (bpp == 8 && planes == 3) {
-					int r = buffer[y][0 + x] & 0xFF;
-					int g = buffer[y][bytesPerLine + x] & 0xFF;
-					int b = buffer[y][bytesPerLine * 2 + x] & 0xFF;
-					pcx.setPixel(x, y, new Color(r, g, b));
-				} else
-					throw new Exception("Invalid color encoding");
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			file.seek(length - 769);
+			if (file.readByte() != 0x0C)
+				return null;
+			byte data[] = new byte[768];
+			file.readFully(data);
+
+			int palette[] = new int[256];
+			for (int i = 0; i < 768; i += 3) {
+				int r = data[i] & 0xFF;
+				int g = data[i + 1] & 0xFF;
+				int b = data[i + 2] & 0xFF;
+				palette[i / 3] = r << 16 | g << 8 | b;
 			}
+			return palette;
+		} finally {
+			file.close();
 		}
-
-		// Zavrit soubor
-		reader.close();
-
-		return pcx;
 	}
 
 	/**
-	 * Ulozi objekt typu Bitmap do 24bpp (3 plane x 8bpp) PCX souboru. Vzdy
-	 * je uvazovana komprese RLE a nikdy neni obsazena paleta.
-	 * @param pcx				objekt Bitmap
-	 * @param f					objekt reprezentujici soubor kam ukladame
+	 * Prevede EGA paletu z hlavicky na barvy.
+	 * @param egaPalette		48 bytes EGA palety z hlavicky
+	 * @return					paleta (16 barev)
 	 */
-	public static void save(Bitmap pcx, File f) throws Exception {
-		if(pcx == null || f == null)
-			return;
-
-		DataOutputStreamLE writer = new DataOutputStreamLE(
-				new FileOutputStream(f));
-
-		// Pocet bytes na jednu radku
-		int bytesPerLine = pcx.getSize().width * 1; // 1 byte na plane
-
-		// Tato metoda je pouze reverzi metody load a veskere potrebne
-		// informace jsou zdokumentovany jiz tam.
-
-		/* Hlavicka */
-		writer.writeByte(0x0A); // identifikator PCX
-		writer.writeByte(5); // verze PCX je vzdy 5 (podpora 24bpp)
-		writer.writeByte(1); // RLE komprese
-		writer.writeByte(8); // bpp
-		// Rozmery obrazku
-		writer.writeShort(0); // xStart
-		writer.writeShort(0); // yStart
-		writer.writeShort(pcx.getSize().width - 1); // xEnd
-		writer.writeShort(pcx.getSize().height - 1); // yEnd
-		// Rozliseni 600x600 dpi (neni dulezite)
-		writer.writeShort(600);
-		writer.writeShort(600);
-		// EGA paleta (vse 0)
-		writer.write(new byte[48]);
-		writer.writeByte(0); // reserved
-		// Pocet planes - vzdy 3 pro kombinaci 8x3
-		writer.writeByte(3);
-		// Pocet bytes na jednu radku obrazku
-		writer.writeShort(bytesPerLine);
-		// Typ palety
-		writer.writeShort(1); // ignorovano
-		// Velikost obrazovky (vyrezu)
-		writer.writeShort(pcx.getSize().width); // sirka
-		writer.writeShort(pcx.getSize().height); // vyska
-		// Reserved
-		writer.write(new byte[54]); // 0
-
-		/* Pixeldata */
-		int scanLineLength = 3 * bytesPerLine;
-		for (int l = 0; l < pcx.getSize().height; l++) {
-			// buffer pro jednu radku
-			byte[] buffer = new byte[scanLineLength];
-			// do promenne buffer nacteme celou radku z Bitmap objektu
-			// kazda barva je reprezentovana jednim byte v prislusne plane
-			// viz. nacitaci funkce pro PCX bez palety vyse
-			for (int x = 0; x < pcx.getSize().width; x++) {
-				buffer[0 + x] = (byte) pcx.getPixel(x, l).getRed();
-				buffer[bytesPerLine + x] = (byte) pcx.getPixel(x, l).getGreen();
-				buffer[bytesPerLine * 2 + x ]
-						= (byte) pcx.getPixel(x, l).getBlue();
-			}
-
-			// provedeme RLE kompresi a zapis do souboru
-			int i = 0;
-			do {
-				int runLength = 0;
-				// spocitame kolik (do 63 coz je maximalni delka runu) je
-				// stejnych byte vedle sebe
-				while (runLength < 62 && i + runLength + 1 < scanLineLength
-						&& buffer[i + runLength] == buffer [i + runLength +	1])
-					runLength++;
-
-				// Pokud je run delsi nez jedna provedeme kompresi
-				if (runLength > 0) {
-					// zapiseme RLE byte s delkou runu
-					writer.writeByte(runLength + 1 | 0xC0);
-					// zapiseme opakujici se byte
-					writer.writeByte(buffer[i]);
-					// posuneme se v radce az za sekvenci, kterou jsme zapsali
-					i += runLength + 1;
-				} else {
-					// musime osetrit situaci kdy delka runu je 1 (pokud je
-					// hodnota 0xC0 to prijde na dva byte 0xC1 + hodnota
-					// co se opakuje 1x)
-					if ((buffer[i] & 0xC0) == 0xC0)
-						writer.writeByte(0xC1); // 1 opakovani nasled. byte
-					writer.writeByte(buffer[i++]);
-				}
-
-			} while (i < scanLineLength);
+	private static int[] decodeEGAPalette(byte egaPalette[]) {
+		int palette[] = new int[16]; // 2, 4, 8 nebo 16 EGA barev
+		for (int i = 0; i < 48; i += 3) {
+			int r = (egaPalette[i] >> 6) & 0xFF;
+			int g = (egaPalette[i + 1] >> 6) & 0xFF;
+			int b = (egaPalette[i + 2] >> 6) & 0xFF;
+			palette[i / 3] = r << 16 | g << 8 | b;
 		}
-
-		// Zavrit soubor
-		writer.close();
+		return palette;
 	}
 
+	/**
+	 * Overi, ze 8bpp radek bez VGA palety pouziva jen 16 barev EGA palety.
+	 * @param indexes			indexy do palety
+	 * @param width				pocet pixelu radku
+	 * @throws Exception		pokud radek pouziva index vetsi nez 15
+	 */
+	private static void checkEGAIndexes(byte indexes[], int width)
+			throws Exception {
+		for (int x = 0; x < width; x++)
+			if ((indexes[x] & 0xFF) > 15)
+				throw new Exception("Missing VGA palette at 8bpp");
+	}
 }
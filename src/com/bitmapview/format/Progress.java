@@ -0,0 +1,61 @@
+package com.bitmapview.format;
+
+import com.bitmapview.Bitmap;
+import com.bitmapview.io.CountingInputStream;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Sledovani prubehu nacitani jednoho souboru. Predava posluchaci
+ * dekodovane radky a pocet prectenych bytes a prerusi nacitani, pokud jej
+ * posluchac zrusil. Bez posluchace nedela nic.
+ */
+class Progress {
+	private final LoadListener listener;
+	private final CountingInputStream counter;
+	private final long length;
+
+
+	// Konstruktor
+	/**
+	 * Vytvori sledovani prubehu.
+	 * @param listener			posluchac nebo null
+	 * @param counter			stream pocitajici prectene bytes
+	 * @param length			delka souboru v bytes
+	 */
+	Progress(LoadListener listener, CountingInputStream counter,
+			long length) {
+		this.listener = listener;
+		this.counter = counter;
+		this.length = length;
+	}
+
+
+	// Operace
+	/**
+	 * Oznami, ze bitmapa ma zname rozmery a lze ji zobrazit.
+	 * @param bitmap			nacitana bitmapa
+	 */
+	void started(Bitmap bitmap) {
+		if (this.listener != null)
+			this.listener.started(bitmap);
+	}
+
+	/**
+	 * Oznami dekodovane radky.
+	 * @param from				prvni dekodovany radek (vcetne)
+	 * @param to				posledni dekodovany radek (bez)
+	 * @param rows				celkovy pocet dekodovanych radku
+	 * @param height			celkovy pocet radku
+	 * @throws CancellationException pokud bylo nacitani zruseno
+	 */
+	void rows(int from, int to, int rows, int height) {
+		if (this.listener == null)
+			return;
+		if (this.listener.isCancelled())
+			throw new CancellationException("Loading cancelled");
+		this.listener.rowsDecoded(from, to);
+		this.listener.progress(rows, height, this.counter.getCount(),
+				this.length);
+	}
+}
@@ -0,0 +1,67 @@
+package com.bitmapview.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream, ktery pocita prectene (a preskocene) bytes. Pocet lze cist
+ * z jineho vlakna, napr. pro zobrazeni prubehu nacitani.
+ */
+public class CountingInputStream
+	extends FilterInputStream
+{
+	private volatile long count = 0;
+
+
+	// Konstruktor
+	/**
+	 * Vytvori novy pocitajici stream.
+	 * @param in				input stream, ze ktereho se bude cist
+	 */
+	public CountingInputStream(InputStream in) {
+		super(in);
+	}
+
+
+	// Verejne metody
+	/**
+	 * Vrati pocet dosud prectenych a preskocenych bytes.
+	 * @return					pocet bytes
+	 */
+	public long getCount() {
+		return this.count;
+	}
+
+
+	// Pretizeni metod
+	@Override
+	public int read() throws IOException {
+		int b = this.in.read();
+		if (b >= 0)
+			this.count++;
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = this.in.read(b, off, len);
+		if (n > 0)
+			this.count += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long s = this.in.skip(n);
+		if (s > 0)
+			this.count += s;
+		return s;
+	}
+
+	@Override
+	public boolean markSupported() {
+		// Po reset() by pocet nesouhlasil
+		return false;
+	}
+}
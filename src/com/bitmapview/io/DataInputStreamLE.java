@@ -24,27 +24,58 @@ public class DataInputStreamLE
 
 
 	// Pretizeni metod
+	/**
+	 * Precte ze streamu presne tolik bytes kolik je delka pole.
+	 * @param b					pole, do ktereho se bude cist
+	 * @throws EOFException		pokud stream skonci drive
+	 * @throws IOException		pokud nastane chyba cteni
+	 */
 	@Override
 	public void readFully(byte[] b) throws IOException {
-		// FIXME
-		throw new UnsupportedOperationException();
+		this.readFully(b, 0, b.length);
 	}
 
+	/**
+	 * Precte ze streamu presne len bytes (poradi bytes se u pole nemeni).
+	 * @param b					pole, do ktereho se bude cist
+	 * @param off				index prvniho byte v poli
+	 * @param len				pocet bytes
+	 * @throws EOFException		pokud stream skonci drive
+	 * @throws IOException		pokud nastane chyba cteni
+	 */
 	@Override
 	public void readFully(byte[] b, int off, int len) throws IOException {
-		// FIXME
-		throw new UnsupportedOperationException();
+		while (len > 0) {
+			int n = this.in.read(b, off, len);
+			if (n < 0)
+				throw new EOFException();
+			off += n;
+			len -= n;
+		}
 	}
 
 	/**
-	 * Preskoci n bytes ze streamu.
+	 * Preskoci n bytes ze streamu. Na rozdil od InputStream.skip() se
+	 * snazi preskocit vsech n bytes (bufferovane streamy preskakuji jen
+	 * v ramci bufferu).
 	 * @param n					pocet bytes k preskoceni
 	 * @return					pocet skutecne preskocenych bytes
 	 * @throws IOException		pokud nastane chyba cteni
 	 */
 	@Override
 	public int skipBytes(int n) throws IOException {
-		return (int) this.in.skip(n);
+		int skipped = 0;
+		while (skipped < n) {
+			long s = this.in.skip(n - skipped);
+			if (s <= 0) {
+				// skip() nemusi umet detekovat konec streamu
+				if (this.in.read() < 0)
+					break;
+				s = 1;
+			}
+			skipped += s;
+		}
+		return skipped;
 	}
 
 	/**
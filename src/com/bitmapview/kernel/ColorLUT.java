@@ -0,0 +1,425 @@
+package com.bitmapview.kernel;
+
+import java.util.Arrays;
+
+/**
+ * Barevna operace dana vyhledavacimi tabulkami (LUT) pro jednotlive slozky.
+ * Kazda vystupni slozka je hodnota z tabulky o 256 prvcich indexovane
+ * nekterou ze vstupnich slozek (tim lze slozky i prohazovat). Volitelne je
+ * vstup nejprve preveden na odstiny sedi. Navazne tabulky lze slozit do
+ * jedne, takze libovolny retezec uprav stoji stejne jako jedna uprava.
+ */
+public class ColorLUT
+	extends PixelKernel
+{
+	/**
+	 * Indexy slozek.
+	 */
+	public static final int RED = 0;
+	public static final int GREEN = 1;
+	public static final int BLUE = 2;
+
+	/**
+	 * Barevna inverze (255 - slozka).
+	 */
+	public static final ColorLUT INVERT = ColorLUT.invert();
+
+	boolean gray;
+	int source[];
+	int tables[][];
+
+	// Pokud tabulky jen invertuji vybrane slozky (t[v] = v nebo 255 - v),
+	// lze LUT provest bez tabulek (PackedOps) s timto XOR
+	boolean packed;
+	int mask;
+
+
+	// Konstruktory
+	/**
+	 * Vytvori LUT se stejnou tabulkou pro vsechny slozky.
+	 * @param table				tabulka o 256 prvcich (hodnoty 0 - 255)
+	 */
+	public ColorLUT(int table[]) {
+		this(table, table, table);
+	}
+
+	/**
+	 * Vytvori LUT s tabulkami pro jednotlive slozky.
+	 * @param red				tabulka pro cervenou slozku
+	 * @param green				tabulka pro zelenou slozku
+	 * @param blue				tabulka pro modrou slozku
+	 */
+	public ColorLUT(int red[], int green[], int blue[]) {
+		this(false, new int[] {RED, GREEN, BLUE},
+				new int[][] {red.clone(), green.clone(), blue.clone()});
+		for (int c = 0; c < 3; c++) {
+			if (this.tables[c].length != 256)
+				throw new IllegalArgumentException("LUT must have 256 entries");
+			for (int v = 0; v < 256; v++)
+				this.tables[c][v] = clamp(this.tables[c][v]);
+		}
+		this.classify();
+	}
+
+	/**
+	 * Vytvori LUT z hotovych dat (bez kopirovani).
+	 * @param gray				prevest vstup na odstiny sedi
+	 * @param source			vstupni slozka pro kazdou vystupni slozku
+	 * @param tables			tabulky pro vystupni slozky
+	 */
+	ColorLUT(boolean gray, int source[], int tables[][]) {
+		this.gray = gray;
+		this.source = source;
+		this.tables = tables;
+		this.classify();
+	}
+
+
+	// Predvolby
+	/**
+	 * Vrati LUT, ktera nic nemeni.
+	 * @return					LUT
+	 */
+	public static ColorLUT identity() {
+		int table[] = new int[256];
+		for (int v = 0; v < 256; v++)
+			table[v] = v;
+		return new ColorLUT(table);
+	}
+
+	/**
+	 * Vrati LUT pro barevnou inverzi (255 - slozka).
+	 * @return					LUT
+	 */
+	public static ColorLUT invert() {
+		int table[] = new int[256];
+		for (int v = 0; v < 256; v++)
+			table[v] = 255 - v;
+		return new ColorLUT(table);
+	}
+
+	/**
+	 * Vrati LUT pro zmenu jasu (pricteni hodnoty ke vsem slozkam).
+	 * @param delta				zmena jasu (-255 az 255)
+	 * @return					LUT
+	 */
+	public static ColorLUT brightness(int delta) {
+		int table[] = new int[256];
+		for (int v = 0; v < 256; v++)
+			table[v] = v + delta;
+		return new ColorLUT(table);
+	}
+
+	/**
+	 * Vrati LUT pro zmenu kontrastu (roztazeni slozek od stredni hodnoty).
+	 * @param factor			nasobek kontrastu (1 = beze zmeny)
+	 * @return					LUT
+	 */
+	public static ColorLUT contrast(double factor) {
+		int table[] = new int[256];
+		for (int v = 0; v < 256; v++)
+			table[v] = (int) Math.round((v - 128) * factor + 128);
+		return new ColorLUT(table);
+	}
+
+	/**
+	 * Vrati LUT pro gama korekci.
+	 * @param gamma				gama (1 = beze zmeny, vetsi zesvetli)
+	 * @return					LUT
+	 */
+	public static ColorLUT gamma(double gamma) {
+		if (gamma <= 0)
+			throw new IllegalArgumentException("Gamma must be positive");
+		int table[] = new int[256];
+		for (int v = 0; v < 256; v++)
+			table[v] = (int) Math.round(255 * Math.pow(v / 255.0, 1 / gamma));
+		return new ColorLUT(table);
+	}
+
+	/**
+	 * Vrati LUT pro prahovani. Obrazek je preveden na odstiny sedi a body
+	 * s jasem alespon level jsou bile, ostatni cerne.
+	 * @param level				prah (0 - 255)
+	 * @return					LUT
+	 */
+	public static ColorLUT threshold(int level) {
+		int table[] = new int[256];
+		for (int v = 0; v < 256; v++)
+			table[v] = v >= level ? 255 : 0;
+		return grayscale().then(new ColorLUT(table));
+	}
+
+	/**
+	 * Vrati LUT pro prevod na odstiny sedi (jas podle ITU-R BT.601).
+	 * @return					LUT
+	 */
+	public static ColorLUT grayscale() {
+		ColorLUT identity = identity();
+		return new ColorLUT(true, identity.source, identity.tables);
+	}
+
+	/**
+	 * Vrati LUT pro prohozeni slozek. Parametry urcuji ze ktere vstupni
+	 * slozky (RED, GREEN, BLUE) se vezme hodnota vystupni slozky, napr.
+	 * channels(BLUE, GREEN, RED) prohodi cervenou a modrou.
+	 * @param red				zdroj cervene slozky
+	 * @param green				zdroj zelene slozky
+	 * @param blue				zdroj modre slozky
+	 * @return					LUT
+	 */
+	public static ColorLUT channels(int red, int green, int blue) {
+		for (int c : new int[] {red, green, blue})
+			if (c < RED || c > BLUE)
+				throw new IllegalArgumentException("Invalid channel");
+		ColorLUT identity = identity();
+		return new ColorLUT(false, new int[] {red, green, blue},
+				identity.tables);
+	}
+
+
+	// Verejne metody
+	/**
+	 * Vrati LUT, ktera provede nejprve tuto LUT a pak next. Pokud next
+	 * neprevadi na odstiny sedi (nebo je tato LUT identita), vysledkem je
+	 * opet jedina LUT.
+	 * @param next				nasledujici operace
+	 * @return					slozena operace
+	 */
+	@Override
+	public PixelKernel then(PixelKernel next) {
+		if (next instanceof ColorLUT)
+			return this.then((ColorLUT) next);
+		return super.then(next);
+	}
+
+	/**
+	 * Slozi tuto LUT s nasledujici LUT.
+	 * @param next				nasledujici LUT
+	 * @return					slozena LUT
+	 */
+	public ColorLUT then(ColorLUT next) {
+		if (next instanceof ChainedLUT) {
+			ChainedLUT chain = (ChainedLUT) next;
+			return new ChainedLUT(this.then(chain.first), chain.second());
+		}
+		if (next.gray) {
+			// Prevod na sedou potrebuje vsechny slozky, slozit lze jen
+			// s identitou
+			if (this.isIdentity())
+				return next;
+			return new ChainedLUT(this, next);
+		}
+
+		// Vystupni slozka c = next.t[c][this.t[s][vstup[this.source[s]]]]
+		// kde s = next.source[c]
+		int source[] = new int[3];
+		int tables[][] = new int[3][256];
+		for (int c = 0; c < 3; c++) {
+			int s = next.source[c];
+			source[c] = this.source[s];
+			for (int v = 0; v < 256; v++)
+				tables[c][v] = next.tables[c][this.tables[s][v]];
+		}
+		return new ColorLUT(this.gray, source, tables);
+	}
+
+	/**
+	 * Vrati inverzni LUT, pokud existuje. LUT je invertovatelna, pokud
+	 * neprevadi na odstiny sedi, kazda slozka se bere z jine vstupni slozky
+	 * a kazda tabulka je permutace hodnot 0 - 255 (napr. inverze nebo
+	 * prohozeni slozek, ne vsak prahovani).
+	 * @return					inverzni LUT nebo null
+	 */
+	public ColorLUT inverse() {
+		if (this.gray)
+			return null;
+		int source[] = new int[3];
+		int tables[][] = new int[3][];
+		for (int c = 0; c < 3; c++) {
+			// Vstupni slozka s je obnovena z vystupni slozky c
+			int s = this.source[c];
+			if (tables[s] != null)
+				return null;
+			source[s] = c;
+			tables[s] = new int[256];
+			Arrays.fill(tables[s], -1);
+			for (int v = 0; v < 256; v++) {
+				if (tables[s][this.tables[c][v]] >= 0)
+					return null;
+				tables[s][this.tables[c][v]] = v;
+			}
+		}
+		return new ColorLUT(false, source, tables);
+	}
+
+	/**
+	 * Zjisti, jestli LUT nic nemeni.
+	 * @return					true pokud jde o identitu
+	 */
+	public boolean isIdentity() {
+		if (this.gray)
+			return false;
+		for (int c = 0; c < 3; c++) {
+			if (this.source[c] != c)
+				return false;
+			for (int v = 0; v < 256; v++)
+				if (this.tables[c][v] != v)
+					return false;
+		}
+		return true;
+	}
+
+
+	// Pretizeni metod
+	@Override
+	public int apply(int rgb) {
+		if (this.gray) {
+			int v = luminance(rgb);
+			return this.tables[0][v] << 16 | this.tables[1][v] << 8
+					| this.tables[2][v];
+		}
+		return this.tables[0][(rgb >> (16 - 8 * this.source[0])) & 0xFF] << 16
+				| this.tables[1][(rgb >> (16 - 8 * this.source[1])) & 0xFF] << 8
+				| this.tables[2][(rgb >> (16 - 8 * this.source[2])) & 0xFF];
+	}
+
+	@Override
+	public void apply(int pixels[], int off, int length) {
+		// Bez tabulek (vektorizovatelne smycky)
+		if (this.packed) {
+			if (this.gray)
+				PackedOps.gray(pixels, off, length, this.mask);
+			else if (this.source[0] == RED && this.source[1] == GREEN
+					&& this.source[2] == BLUE)
+				PackedOps.xor(pixels, off, length, this.mask);
+			else
+				PackedOps.permute(pixels, off, length, 16 - 8 * this.source[0],
+						16 - 8 * this.source[1], 16 - 8 * this.source[2],
+						this.mask);
+			return;
+		}
+
+		// Tabulky a posuny do lokalnich promennych kvuli tesne smycce
+		int tr[] = this.tables[0];
+		int tg[] = this.tables[1];
+		int tb[] = this.tables[2];
+		int end = off + length;
+		if (this.gray) {
+			for (int i = off; i < end; i++) {
+				int v = luminance(pixels[i]);
+				pixels[i] = tr[v] << 16 | tg[v] << 8 | tb[v];
+			}
+		} else {
+			int sr = 16 - 8 * this.source[0];
+			int sg = 16 - 8 * this.source[1];
+			int sb = 16 - 8 * this.source[2];
+			for (int i = off; i < end; i++) {
+				int p = pixels[i];
+				pixels[i] = tr[(p >> sr) & 0xFF] << 16
+						| tg[(p >> sg) & 0xFF] << 8
+						| tb[(p >> sb) & 0xFF];
+			}
+		}
+	}
+
+
+	// Pomocne metody
+	/**
+	 * Zjisti, jestli kazda tabulka je identita nebo inverze, a pripravi
+	 * odpovidajici XOR masku.
+	 */
+	private void classify() {
+		int mask = 0;
+		for (int c = 0; c < 3; c++) {
+			int m = this.tables[c][0];
+			if (m != 0 && m != 0xFF) {
+				this.packed = false;
+				return;
+			}
+			for (int v = 1; v < 256; v++) {
+				if (this.tables[c][v] != (v ^ m)) {
+					this.packed = false;
+					return;
+				}
+			}
+			mask |= m << (16 - 8 * c);
+		}
+		this.mask = mask;
+		this.packed = true;
+	}
+
+	/**
+	 * Vrati jas pixelu podle ITU-R BT.601 (0.299 R + 0.587 G + 0.114 B).
+	 * @param rgb				barva ve tvaru 0xRRGGBB
+	 * @return					jas (0 - 255)
+	 */
+	public static int luminance(int rgb) {
+		return (77 * ((rgb >> 16) & 0xFF) + 150 * ((rgb >> 8) & 0xFF)
+				+ 29 * (rgb & 0xFF)) >> 8;
+	}
+
+	/**
+	 * Omezi hodnotu na rozsah 0 - 255.
+	 * @param v					hodnota
+	 * @return					hodnota v rozsahu 0 - 255
+	 */
+	static int clamp(int v) {
+		return v < 0 ? 0 : (v > 255 ? 255 : v);
+	}
+
+
+	/**
+	 * Dve LUT, ktere nelze slozit do jedne (druha prevadi na odstiny sedi).
+	 * Dalsi navazane LUT bez prevodu na sedou se skladaji do druhe.
+	 */
+	static class ChainedLUT
+		extends ColorLUT
+	{
+		final ColorLUT first;
+
+		ChainedLUT(ColorLUT first, ColorLUT second) {
+			super(second.gray, second.source, second.tables);
+			this.first = first;
+		}
+
+		@Override
+		public ColorLUT then(ColorLUT next) {
+			if (next instanceof ChainedLUT) {
+				ChainedLUT chain = (ChainedLUT) next;
+				return new ChainedLUT(this.then(chain.first), chain.second());
+			}
+			if (next.gray)
+				return new ChainedLUT(this, next);
+			return new ChainedLUT(this.first, this.second().then(next));
+		}
+
+		@Override
+		public boolean isIdentity() {
+			return false;
+		}
+
+		@Override
+		public ColorLUT inverse() {
+			return null;
+		}
+
+		@Override
+		public int apply(int rgb) {
+			return super.apply(this.first.apply(rgb));
+		}
+
+		@Override
+		public void apply(int pixels[], int off, int length) {
+			this.first.apply(pixels, off, length);
+			super.apply(pixels, off, length);
+		}
+
+		/**
+		 * Vrati druhou LUT retezce (bez prvni).
+		 * @return					druha LUT
+		 */
+		ColorLUT second() {
+			return new ColorLUT(this.gray, this.source, this.tables);
+		}
+	}
+}
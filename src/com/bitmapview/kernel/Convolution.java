@@ -0,0 +1,644 @@
+package com.bitmapview.kernel;
+
+import com.bitmapview.storage.Storage;
+
+import java.util.ArrayList;
+
+/**
+ * Konvoluce obrazku (rozmazani, doostreni, detekce hran). Jadro se pri
+ * vytvoreni rozlozi na dva 1D vektory, pokud to jde (separabilni jadro),
+ * a konvoluce pak probiha ve dvou 1D pruchodech (radek, sloupec) s cenou
+ * w + h misto w * h na pixel. Krabicove rozmazani pocita s prubeznymi
+ * soucty nezavisle na polomeru. Obrazek je zpracovan paralelne po pasech
+ * radku, kazdy pas si nacte i okrajove radky sousednich pasu (halo).
+ * Pixely za okrajem obrazku maji barvu nejblizsiho okrajoveho pixelu.
+ */
+public class Convolution {
+	// Druhy konvoluce
+	static final int LINEAR = 0;
+	static final int BOX = 1;
+	static final int UNSHARP = 2;
+	static final int SOBEL = 3;
+
+	// Presnost, se kterou musi rozklad jadra odpovidat jadru
+	static final float EPSILON = 1e-5f;
+
+	// Pomocne buffery kazdeho vlakna, pouzivaji se znovu mezi pasy
+	static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	final int mode;
+	final int radiusX;
+	final int radiusY;
+	final float weights[];
+	final float row[];
+	final float column[];
+	final float amount;
+
+
+	// Konstruktor
+	/**
+	 * Vytvori konvoluci.
+	 * @param mode				druh konvoluce
+	 * @param radiusX			polomer jadra v ose X
+	 * @param radiusY			polomer jadra v ose Y
+	 * @param weights			vahy jadra po radcich nebo null
+	 * @param row				radkovy vektor rozkladu nebo null
+	 * @param column			sloupcovy vektor rozkladu nebo null
+	 * @param amount			sila doostreni (UNSHARP)
+	 */
+	Convolution(int mode, int radiusX, int radiusY, float weights[],
+			float row[], float column[], float amount) {
+		this.mode = mode;
+		this.radiusX = radiusX;
+		this.radiusY = radiusY;
+		this.weights = weights;
+		this.row = row;
+		this.column = column;
+		this.amount = amount;
+	}
+
+
+	// Predvolby
+	/**
+	 * Vrati konvoluci s obecnym jadrem. Pokud je jadro separabilni (ma
+	 * hodnost 1), konvoluce probehne ve dvou 1D pruchodech.
+	 * @param width				sirka jadra (liche cislo)
+	 * @param height			vyska jadra (liche cislo)
+	 * @param weights			vahy jadra po radcich
+	 * @return					konvoluce
+	 */
+	public static Convolution of(int width, int height, float weights[]) {
+		if (width % 2 == 0 || height % 2 == 0 || width < 1 || height < 1)
+			throw new IllegalArgumentException("Kernel size must be odd");
+		if (weights.length != width * height)
+			throw new IllegalArgumentException("Invalid kernel size");
+
+		weights = weights.clone();
+		float factors[][] = factorize(width, height, weights);
+		if (factors == null)
+			return new Convolution(LINEAR, width / 2, height / 2, weights,
+					null, null, 0);
+		return new Convolution(LINEAR, width / 2, height / 2, weights,
+				factors[0], factors[1], 0);
+	}
+
+	/**
+	 * Vrati konvoluci se separabilnim jadrem danym radkovym a sloupcovym
+	 * vektorem (jadro je jejich vnejsi soucin).
+	 * @param row				radkovy vektor (licha delka)
+	 * @param column			sloupcovy vektor (licha delka)
+	 * @return					konvoluce
+	 */
+	public static Convolution separable(float row[], float column[]) {
+		if (row.length % 2 == 0 || column.length % 2 == 0)
+			throw new IllegalArgumentException("Kernel size must be odd");
+		float weights[] = new float[row.length * column.length];
+		for (int j = 0; j < column.length; j++)
+			for (int i = 0; i < row.length; i++)
+				weights[j * row.length + i] = column[j] * row[i];
+		return new Convolution(LINEAR, row.length / 2, column.length / 2,
+				weights, row.clone(), column.clone(), 0);
+	}
+
+	/**
+	 * Vrati krabicove rozmazani (prumer ctverce 2r + 1 x 2r + 1 pixelu).
+	 * Cena na pixel nezavisi na polomeru.
+	 * @param radius			polomer v px
+	 * @return					konvoluce
+	 */
+	public static Convolution box(int radius) {
+		if (radius < 0)
+			throw new IllegalArgumentException("Invalid radius");
+		return new Convolution(BOX, radius, radius, null, null, null, 0);
+	}
+
+	/**
+	 * Vrati Gaussovo rozmazani (polomer jadra je 3 sigma).
+	 * @param sigma				smerodatna odchylka v px
+	 * @return					konvoluce
+	 */
+	public static Convolution gaussian(double sigma) {
+		float vector[] = gaussianVector(sigma);
+		return separable(vector, vector);
+	}
+
+	/**
+	 * Vrati doostreni neostrou maskou: k obrazku se pricte amount nasobek
+	 * rozdilu obrazku a jeho Gaussova rozmazani.
+	 * @param sigma				smerodatna odchylka rozmazani v px
+	 * @param amount			sila doostreni (napr. 1)
+	 * @return					konvoluce
+	 */
+	public static Convolution unsharpMask(double sigma, double amount) {
+		float vector[] = gaussianVector(sigma);
+		return new Convolution(UNSHARP, vector.length / 2, vector.length / 2,
+				null, vector, vector, (float) amount);
+	}
+
+	/**
+	 * Vrati detekci hran Sobelovym operatorem (velikost gradientu pro
+	 * kazdou slozku zvlast).
+	 * @return					konvoluce
+	 */
+	public static Convolution sobel() {
+		return new Convolution(SOBEL, 1, 1, null, null, null, 0);
+	}
+
+
+	// Verejne metody
+	/**
+	 * Zjisti, jestli konvoluce probiha ve dvou 1D pruchodech.
+	 * @return					true pokud je jadro separabilni
+	 */
+	public boolean isSeparable() {
+		return this.mode != LINEAR || this.row != null;
+	}
+
+	/**
+	 * Provede konvoluci pixelu zdrojoveho uloziste do ciloveho uloziste se
+	 * stejnymi rozmery (nelze provest na miste, okoli pixelu se cte ze
+	 * zdroje).
+	 * @param src				zdrojove uloziste
+	 * @param dst				cilove uloziste
+	 */
+	public void apply(final Storage src, final Storage dst) {
+		if (src == dst)
+			throw new IllegalArgumentException("Cannot convolve in place");
+		if (src.getWidth() != dst.getWidth()
+				|| src.getHeight() != dst.getHeight())
+			throw new IllegalArgumentException("Storage size mismatch");
+
+		final int width = src.getWidth();
+		final int height = src.getHeight();
+		if (width == 0 || height == 0)
+			return;
+
+		// Pas musi byt dost vysoky, aby halo nepredstavovalo vetsinu prace
+		final int stripe = Math.min(height, Math.max(
+				4 * (2 * this.radiusY + 1),
+				KernelExecutor.threshold / Math.max(1, width)));
+		int stripes = (height + stripe - 1) / stripe;
+		KernelExecutor.forRange(stripes, (long) stripe * width,
+				new RangeTask() {
+			@Override
+			public void run(int from, int to) {
+				int first = from * stripe;
+				int last = Math.min(height, to * stripe);
+				Convolution.this.run(src, dst, first, last);
+			}
+		}, src.isConcurrent() && dst.isConcurrent());
+	}
+
+
+	// Privatni metody
+	/**
+	 * Provede konvoluci radku first az last - 1.
+	 * @param src				zdrojove uloziste
+	 * @param dst				cilove uloziste
+	 * @param first				prvni radek
+	 * @param last				radek za poslednim radkem
+	 */
+	private void run(Storage src, Storage dst, int first, int last) {
+		int width = src.getWidth();
+		Scratch buffers = scratch.get();
+		buffers.reset();
+		int out[] = buffers.ints(width);
+
+		if (this.mode == SOBEL) {
+			// Gradient v ose X a Y, oba jsou separabilni
+			Filter gx = new SeparableFilter(src, buffers,
+					new float[] {-1, 0, 1}, new float[] {1, 2, 1}, first);
+			Filter gy = new SeparableFilter(src, buffers,
+					new float[] {1, 2, 1}, new float[] {-1, 0, 1}, first);
+			float x[] = buffers.floats(width * 3);
+			float y[] = buffers.floats(width * 3);
+			for (int j = first; j < last; j++) {
+				gx.filter(j, x);
+				gy.filter(j, y);
+				for (int i = 0; i < width * 3; i++)
+					x[i] = (float) Math.sqrt(x[i] * x[i] + y[i] * y[i]);
+				pack(x, out, width);
+				dst.setRow(j, out, 0);
+			}
+			return;
+		}
+
+		Filter filter;
+		if (this.mode == BOX)
+			filter = new BoxFilter(src, buffers, this.radiusX, first);
+		else if (this.row != null)
+			filter = new SeparableFilter(src, buffers, this.row, this.column,
+					first);
+		else
+			filter = new GeneralFilter(src, buffers, this.weights,
+					this.radiusX, this.radiusY, first);
+
+		float values[] = buffers.floats(width * 3);
+		int original[] = buffers.ints(width);
+		for (int j = first; j < last; j++) {
+			filter.filter(j, values);
+			if (this.mode == UNSHARP) {
+				// Puvodni + amount * (puvodni - rozmazany)
+				src.getRow(j, original, 0);
+				for (int i = 0, k = 0; i < width; i++) {
+					int p = original[i];
+					for (int shift = 16; shift >= 0; shift -= 8, k++) {
+						float v = (p >> shift) & 0xFF;
+						values[k] = v + this.amount * (v - values[k]);
+					}
+				}
+			}
+			pack(values, out, width);
+			dst.setRow(j, out, 0);
+		}
+	}
+
+	/**
+	 * Zabali slozky (R, G, B po sobe) do pixelu, zaokrouhli je a omezi na
+	 * rozsah 0 - 255.
+	 * @param values			slozky pixelu
+	 * @param out				pixely ve tvaru 0xRRGGBB
+	 * @param width				pocet pixelu
+	 */
+	static void pack(float values[], int out[], int width) {
+		for (int i = 0, k = 0; i < width; i++, k += 3)
+			out[i] = clamp(values[k]) << 16 | clamp(values[k + 1]) << 8
+					| clamp(values[k + 2]);
+	}
+
+	/**
+	 * Zaokrouhli slozku a omezi ji na rozsah 0 - 255.
+	 * @param v					hodnota slozky
+	 * @return					slozka 0 - 255
+	 */
+	static int clamp(float v) {
+		int c = (int) (v + 0.5f);
+		return c < 0 ? 0 : (c > 255 ? 255 : c);
+	}
+
+	/**
+	 * Rozlozi jadro na radkovy a sloupcovy vektor, pokud ma hodnost 1.
+	 * @param width				sirka jadra
+	 * @param height			vyska jadra
+	 * @param weights			vahy jadra po radcich
+	 * @return					{radek, sloupec} nebo null
+	 */
+	static float[][] factorize(int width, int height, float weights[]) {
+		// Radek s nejvetsim prvkem poslouzi jako radkovy vektor
+		int pivot = 0;
+		for (int i = 1; i < weights.length; i++)
+			if (Math.abs(weights[i]) > Math.abs(weights[pivot]))
+				pivot = i;
+		if (weights[pivot] == 0)
+			return null;
+		int pr = pivot / width;
+		int pc = pivot % width;
+
+		float row[] = new float[width];
+		float column[] = new float[height];
+		for (int i = 0; i < width; i++)
+			row[i] = weights[pr * width + i];
+		for (int j = 0; j < height; j++)
+			column[j] = weights[j * width + pc] / weights[pivot];
+
+		float scale = Math.abs(weights[pivot]);
+		for (int j = 0; j < height; j++)
+			for (int i = 0; i < width; i++)
+				if (Math.abs(column[j] * row[i] - weights[j * width + i])
+						> EPSILON * scale)
+					return null;
+		return new float[][] {row, column};
+	}
+
+	/**
+	 * Vrati normalizovany Gaussuv vektor s polomerem 3 sigma.
+	 * @param sigma				smerodatna odchylka v px
+	 * @return					vektor (licha delka)
+	 */
+	static float[] gaussianVector(double sigma) {
+		if (sigma <= 0)
+			throw new IllegalArgumentException("Sigma must be positive");
+		int radius = Math.max(1, (int) Math.ceil(3 * sigma));
+		float vector[] = new float[2 * radius + 1];
+		double sum = 0;
+		for (int i = -radius; i <= radius; i++)
+			sum += Math.exp(-i * i / (2 * sigma * sigma));
+		for (int i = -radius; i <= radius; i++)
+			vector[i + radius] = (float) (Math.exp(-i * i
+					/ (2 * sigma * sigma)) / sum);
+		return vector;
+	}
+
+
+	/**
+	 * Pomocne buffery jednoho vlakna. Buffery se prideluji postupne a po
+	 * reset() se v jakem poradi pridelily, v takovem se prideluji znovu
+	 * (pri stejnych rozmerech bez alokace).
+	 */
+	static class Scratch {
+		ArrayList<float[]> floatBuffers = new ArrayList<float[]>();
+		ArrayList<int[]> intBuffers = new ArrayList<int[]>();
+		int floatsUsed;
+		int intsUsed;
+
+		void reset() {
+			this.floatsUsed = 0;
+			this.intsUsed = 0;
+		}
+
+		float[] floats(int length) {
+			if (this.floatsUsed == this.floatBuffers.size())
+				this.floatBuffers.add(new float[length]);
+			float buffer[] = this.floatBuffers.get(this.floatsUsed);
+			if (buffer.length < length) {
+				buffer = new float[length];
+				this.floatBuffers.set(this.floatsUsed, buffer);
+			}
+			this.floatsUsed++;
+			return buffer;
+		}
+
+		int[] ints(int length) {
+			if (this.intsUsed == this.intBuffers.size())
+				this.intBuffers.add(new int[length]);
+			int buffer[] = this.intBuffers.get(this.intsUsed);
+			if (buffer.length < length) {
+				buffer = new int[length];
+				this.intBuffers.set(this.intsUsed, buffer);
+			}
+			this.intsUsed++;
+			return buffer;
+		}
+	}
+
+	/**
+	 * Vypocet jednoho vystupniho radku konvoluce (slozky R, G, B po sobe).
+	 * Radky musi byt pozadovany postupne, filtr si drzi kruhovy buffer
+	 * radku okoli.
+	 */
+	abstract static class Filter {
+		final Storage src;
+		final int width;
+		final int height;
+		int source[];
+
+		Filter(Storage src, Scratch buffers) {
+			this.src = src;
+			this.width = src.getWidth();
+			this.height = src.getHeight();
+			this.source = buffers.ints(this.width);
+		}
+
+		/**
+		 * Vypocte vystupni radek.
+		 * @param y				index radku
+		 * @param out			slozky vystupniho radku (sirka * 3)
+		 */
+		abstract void filter(int y, float out[]);
+
+		/**
+		 * Nacte zdrojovy radek (radky za okrajem nahradi okrajovym).
+		 * @param y				index radku (i mimo obrazek)
+		 * @return				pixely radku
+		 */
+		int[] load(int y) {
+			y = Math.max(0, Math.min(this.height - 1, y));
+			this.src.getRow(y, this.source, 0);
+			return this.source;
+		}
+	}
+
+	/**
+	 * Separabilni konvoluce: radky se nejprve prefiltruji radkovym
+	 * vektorem (drzi se kruhovy buffer 2r + 1 radku), sloupcovy vektor se
+	 * pak aplikuje na buffer.
+	 */
+	static class SeparableFilter
+		extends Filter
+	{
+		final float row[];
+		final float column[];
+		final int rx;
+		final int ry;
+		final float ring[][];
+		int next;
+
+		SeparableFilter(Storage src, Scratch buffers, float row[],
+				float column[], int first) {
+			super(src, buffers);
+			this.row = row;
+			this.column = column;
+			this.rx = row.length / 2;
+			this.ry = column.length / 2;
+			this.ring = new float[column.length][];
+			for (int i = 0; i < column.length; i++)
+				this.ring[i] = buffers.floats(this.width * 3);
+
+			// Halo nad prvnim radkem
+			this.next = first - this.ry;
+		}
+
+		@Override
+		void filter(int y, float out[]) {
+			while (this.next <= y + this.ry)
+				this.horizontal(this.next++);
+
+			int n = this.width * 3;
+			for (int i = 0; i < n; i++)
+				out[i] = 0;
+			for (int k = 0; k < this.column.length; k++) {
+				float weight = this.column[k];
+				if (weight == 0)
+					continue;
+				float line[] = this.ring[(y + k) % this.column.length];
+				for (int i = 0; i < n; i++)
+					out[i] += weight * line[i];
+			}
+		}
+
+		/**
+		 * Prefiltruje zdrojovy radek radkovym vektorem do bufferu.
+		 * @param y				index radku (i mimo obrazek)
+		 */
+		void horizontal(int y) {
+			int pixels[] = this.load(y);
+			float line[] = this.ring[(y + this.ry) % this.column.length];
+			int last = this.width - 1;
+			for (int x = 0, k = 0; x < this.width; x++, k += 3) {
+				float r = 0;
+				float g = 0;
+				float b = 0;
+				for (int i = 0; i < this.row.length; i++) {
+					int p = pixels[Math.max(0, Math.min(last,
+							x + i - this.rx))];
+					float weight = this.row[i];
+					r += weight * ((p >> 16) & 0xFF);
+					g += weight * ((p >> 8) & 0xFF);
+					b += weight * (p & 0xFF);
+				}
+				line[k] = r;
+				line[k + 1] = g;
+				line[k + 2] = b;
+			}
+		}
+	}
+
+	/**
+	 * Obecna (neseparabilni) konvoluce nad kruhovym bufferem 2r + 1
+	 * zdrojovych radku.
+	 */
+	static class GeneralFilter
+		extends Filter
+	{
+		final float weights[];
+		final int rx;
+		final int ry;
+		final int kw;
+		final int kh;
+		final int ring[][];
+		int next;
+
+		GeneralFilter(Storage src, Scratch buffers, float weights[],
+				int rx, int ry, int first) {
+			super(src, buffers);
+			this.weights = weights;
+			this.rx = rx;
+			this.ry = ry;
+			this.kw = 2 * rx + 1;
+			this.kh = 2 * ry + 1;
+			this.ring = new int[this.kh][];
+			for (int i = 0; i < this.kh; i++)
+				this.ring[i] = buffers.ints(this.width);
+			this.next = first - ry;
+		}
+
+		@Override
+		void filter(int y, float out[]) {
+			while (this.next <= y + this.ry) {
+				System.arraycopy(this.load(this.next), 0,
+						this.ring[(this.next + this.ry) % this.kh], 0,
+						this.width);
+				this.next++;
+			}
+
+			int last = this.width - 1;
+			for (int x = 0, k = 0; x < this.width; x++, k += 3) {
+				float r = 0;
+				float g = 0;
+				float b = 0;
+				for (int j = 0; j < this.kh; j++) {
+					int line[] = this.ring[(y + j) % this.kh];
+					for (int i = 0; i < this.kw; i++) {
+						float weight = this.weights[j * this.kw + i];
+						int p = line[Math.max(0, Math.min(last,
+								x + i - this.rx))];
+						r += weight * ((p >> 16) & 0xFF);
+						g += weight * ((p >> 8) & 0xFF);
+						b += weight * (p & 0xFF);
+					}
+				}
+				out[k] = r;
+				out[k + 1] = g;
+				out[k + 2] = b;
+			}
+		}
+	}
+
+	/**
+	 * Krabicove rozmazani s prubeznymi soucty: soucet okna v radku se pri
+	 * posunu o pixel zmeni o pixel pridany a odebrany, stejne tak soucty
+	 * ve sloupcich pri posunu o radek. Drzi se kruhovy buffer 2r + 2
+	 * radkovych souctu.
+	 */
+	static class BoxFilter
+		extends Filter
+	{
+		final int radius;
+		final int ring[][];
+		final int sums[];
+		final float scale;
+		int next;
+
+		BoxFilter(Storage src, Scratch buffers, int radius, int first) {
+			super(src, buffers);
+			this.radius = radius;
+			this.ring = new int[2 * radius + 2][];
+			for (int i = 0; i < this.ring.length; i++)
+				this.ring[i] = buffers.ints(this.width * 3);
+			this.sums = buffers.ints(this.width * 3);
+			this.scale = 1f / ((2 * radius + 1) * (2 * radius + 1));
+
+			// Soucet okna prvniho radku (vcetne hala)
+			int n = this.width * 3;
+			for (int i = 0; i < n; i++)
+				this.sums[i] = 0;
+			for (int y = first - radius; y <= first + radius; y++) {
+				int line[] = this.horizontal(y);
+				for (int i = 0; i < n; i++)
+					this.sums[i] += line[i];
+			}
+			this.next = first;
+		}
+
+		@Override
+		void filter(int y, float out[]) {
+			// Posunout okno ve sloupcich az k radku y
+			int n = this.width * 3;
+			while (this.next < y) {
+				int removed[] = this.slot(this.next - this.radius);
+				int added[] = this.horizontal(this.next + this.radius + 1);
+				for (int i = 0; i < n; i++)
+					this.sums[i] += added[i] - removed[i];
+				this.next++;
+			}
+			for (int i = 0; i < n; i++)
+				out[i] = this.sums[i] * this.scale;
+		}
+
+		/**
+		 * Vrati buffer pro radkovy soucet radku y.
+		 * @param y				index radku (i mimo obrazek)
+		 * @return				buffer
+		 */
+		int[] slot(int y) {
+			return this.ring[(y + this.radius + this.ring.length)
+					% this.ring.length];
+		}
+
+		/**
+		 * Spocita soucty oken v radku y (pro kazdou slozku).
+		 * @param y				index radku (i mimo obrazek)
+		 * @return				soucty (sirka * 3)
+		 */
+		int[] horizontal(int y) {
+			int pixels[] = this.load(y);
+			int line[] = this.slot(y);
+			int last = this.width - 1;
+			int r = 0;
+			int g = 0;
+			int b = 0;
+			for (int i = -this.radius; i <= this.radius; i++) {
+				int p = pixels[Math.max(0, Math.min(last, i))];
+				r += (p >> 16) & 0xFF;
+				g += (p >> 8) & 0xFF;
+				b += p & 0xFF;
+			}
+			for (int x = 0, k = 0; x < this.width; x++, k += 3) {
+				line[k] = r;
+				line[k + 1] = g;
+				line[k + 2] = b;
+				int p = pixels[Math.min(last, x + this.radius + 1)];
+				int q = pixels[Math.max(0, x - this.radius)];
+				r += ((p >> 16) & 0xFF) - ((q >> 16) & 0xFF);
+				g += ((p >> 8) & 0xFF) - ((q >> 8) & 0xFF);
+				b += (p & 0xFF) - (q & 0xFF);
+			}
+			return line;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package com.bitmapview.kernel;
+
+import com.bitmapview.storage.Storage;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Spousti operace nad pixely paralelne ve ForkJoinPool. Obrazek je rozdelen
+ * na pruhy radku, ktere jsou rekurzivne pulene dokud nejsou mensi nez
+ * prah paralelizace (pocet pixelu na jednu ulohu). Uloziste, ktera
+ * nepodporuji soubezny pristup, jsou zpracovana sekvencne.
+ */
+public class KernelExecutor {
+	/**
+	 * Pocet vlaken lze nastavit systemovou vlastnosti bitmapview.parallelism
+	 * (implicitne pocet procesoru).
+	 */
+	static ForkJoinPool pool = new ForkJoinPool(Integer.getInteger(
+			"bitmapview.parallelism",
+			Runtime.getRuntime().availableProcessors()));
+
+	/**
+	 * Minimalni pocet pixelu zpracovavanych jednou ulohou. Lze nastavit
+	 * systemovou vlastnosti bitmapview.parallel.threshold.
+	 */
+	static int threshold = Integer.getInteger(
+			"bitmapview.parallel.threshold", 64 * 1024);
+
+
+	/**
+	 * Uloha ForkJoinPool delici interval na poloviny.
+	 */
+	static class RangeAction
+		extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		final RangeTask task;
+		final int from;
+		final int to;
+		final int grain;
+
+		RangeAction(RangeTask task, int from, int to, int grain) {
+			this.task = task;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.to - this.from <= this.grain) {
+				this.task.run(this.from, this.to);
+			} else {
+				int middle = (this.from + this.to) >>> 1;
+				invokeAll(new RangeAction(this.task, this.from, middle,
+								this.grain),
+						new RangeAction(this.task, middle, this.to,
+								this.grain));
+			}
+		}
+	}
+
+
+	// Verejne metody
+	/**
+	 * Nastavi prah paralelizace.
+	 * @param pixels			minimalni pocet pixelu na jednu ulohu
+	 */
+	public static void setThreshold(int pixels) {
+		threshold = Math.max(1, pixels);
+	}
+
+	/**
+	 * Nastavi pocet vlaken pro paralelni zpracovani.
+	 * @param parallelism		pocet vlaken
+	 */
+	public static synchronized void setParallelism(int parallelism) {
+		ForkJoinPool old = pool;
+		pool = new ForkJoinPool(Math.max(1, parallelism));
+		old.shutdown();
+	}
+
+	/**
+	 * Vrati pocet vlaken pro paralelni zpracovani.
+	 * @return					pocet vlaken
+	 */
+	public static int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	/**
+	 * Zpracuje interval 0 az count - 1 po usecich. Useky jsou zpracovany
+	 * paralelne, pokud to parallel povoli a useku je vice nez jeden.
+	 * @param count				delka intervalu
+	 * @param unit				pocet pixelu odpovidajici jednomu indexu
+	 *							(napr. sirka radku)
+	 * @param task				uloha
+	 * @param parallel			povolit paralelni zpracovani
+	 */
+	public static void forRange(int count, long unit, RangeTask task,
+			boolean parallel) {
+		if (count <= 0)
+			return;
+		int grain = (int) Math.max(1, Math.min(count,
+				threshold / Math.max(1, unit)));
+		if (!parallel || grain >= count || pool.getParallelism() < 2)
+			task.run(0, count);
+		else
+			pool.invoke(new RangeAction(task, 0, count, grain));
+	}
+
+	/**
+	 * Aplikuje operaci na vsechny pixely uloziste (na miste).
+	 * @param storage			uloziste
+	 * @param kernel			operace
+	 */
+	public static void apply(final Storage storage, final PixelKernel kernel) {
+		final int width = storage.getWidth();
+		int tile = storage.getTileSize();
+
+		// Uloziste s dlazdicemi zpracujeme po dlazdicich
+		if (tile > 0) {
+			int buffer[] = new int[tile * tile];
+			for (int by = 0; by < storage.getHeight(); by += tile)
+				for (int bx = 0; bx < width; bx += tile) {
+					int w = Math.min(tile, width - bx);
+					int h = Math.min(tile, storage.getHeight() - by);
+					storage.getRegion(bx, by, w, h, buffer, 0, w);
+					kernel.apply(buffer, 0, w * h);
+					storage.setRegion(bx, by, w, h, buffer, 0, w);
+				}
+			return;
+		}
+
+		forRange(storage.getHeight(), width, new RangeTask() {
+			@Override
+			public void run(int from, int to) {
+				int row[] = new int[width];
+				for (int y = from; y < to; y++) {
+					storage.getRow(y, row, 0);
+					kernel.apply(row, 0, width);
+					storage.setRow(y, row, 0);
+				}
+			}
+		}, storage.isConcurrent());
+	}
+
+	/**
+	 * Aplikuje operaci na vsechny radky uloziste (na miste).
+	 * @param storage			uloziste
+	 * @param kernel			operace
+	 */
+	public static void apply(final Storage storage, final RowKernel kernel) {
+		final int width = storage.getWidth();
+		forRange(storage.getHeight(), width, new RangeTask() {
+			@Override
+			public void run(int from, int to) {
+				int row[] = new int[width];
+				for (int y = from; y < to; y++) {
+					storage.getRow(y, row, 0);
+					kernel.apply(y, row, width);
+					storage.setRow(y, row, 0);
+				}
+			}
+		}, storage.isConcurrent());
+	}
+}
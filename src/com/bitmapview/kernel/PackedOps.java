@@ -0,0 +1,174 @@
+package com.bitmapview.kernel;
+
+/**
+ * Smycky nad poli pixelu ve tvaru 0xRRGGBB, ktere zpracovavaji vsechny tri
+ * slozky najednou v jednom int (SWAR). Smycky neobsahuji vetveni ani
+ * neprime indexovani, takze je JIT (C2) automaticky vektorizuje a zpracuje
+ * nekolik pixelu jednou instrukci.
+ *
+ * Barevne operace maji i explicitne vektorizovanou implementaci (VectorOps,
+ * Vector API), ktera se pouzije, pokud je k dispozici modul
+ * jdk.incubator.vector (--add-modules jdk.incubator.vector). Jinak, nebo se
+ * systemovou vlastnosti bitmapview.scalar, zustavaji skalarni smycky teto
+ * tridy.
+ */
+public class PackedOps {
+	/**
+	 * Pouzivana implementace barevnych operaci.
+	 */
+	static final PackedOps ops = load();
+
+
+	// Konstruktor
+	PackedOps() {
+	}
+
+
+	// Verejne metody
+	/**
+	 * Zjisti, jestli se barevne operace provadeji pres Vector API.
+	 * @return					true pokud je pouzita VectorOps
+	 */
+	public static boolean isVectorized() {
+		return ops.getClass() != PackedOps.class;
+	}
+
+	/**
+	 * Provede XOR vsech pixelu s maskou (0xFFFFFF je inverze vsech slozek,
+	 * 0xFF0000 inverze cervene slozky apod.).
+	 * @param pixels			pole pixelu
+	 * @param off				index prvniho pixelu
+	 * @param length			pocet pixelu
+	 * @param mask				maska
+	 */
+	public static void xor(int pixels[], int off, int length, int mask) {
+		ops.applyXor(pixels, off, length, mask);
+	}
+
+	/**
+	 * Prohodi slozky pixelu a vysledek proXORuje s maskou.
+	 * @param pixels			pole pixelu
+	 * @param off				index prvniho pixelu
+	 * @param length			pocet pixelu
+	 * @param red				posun zdrojove slozky cervene (16, 8 nebo 0)
+	 * @param green				posun zdrojove slozky zelene
+	 * @param blue				posun zdrojove slozky modre
+	 * @param mask				maska
+	 */
+	public static void permute(int pixels[], int off, int length,
+			int red, int green, int blue, int mask) {
+		ops.applyPermute(pixels, off, length, red, green, blue, mask);
+	}
+
+	/**
+	 * Prevede pixely na odstiny sedi (jas podle ITU-R BT.601) a vysledek
+	 * proXORuje s maskou.
+	 * @param pixels			pole pixelu
+	 * @param off				index prvniho pixelu
+	 * @param length			pocet pixelu
+	 * @param mask				maska
+	 */
+	public static void gray(int pixels[], int off, int length, int mask) {
+		ops.applyGray(pixels, off, length, mask);
+	}
+
+	/**
+	 * Zmensi dva radky pixelu na polovinu v obou osach: kazdy vystupni
+	 * pixel je zaokrouhleny prumer ctverce 2x2 pixelu. Cervena a modra
+	 * slozka se scitaji spolu v jednom int, soucet ctyr slozek se do 16 bitu
+	 * vejde.
+	 * @param top				horni radek (alespon 2 * length pixelu)
+	 * @param bottom			dolni radek (alespon 2 * length pixelu)
+	 * @param out				vystupni radek
+	 * @param length			pocet vystupnich pixelu
+	 */
+	public static void halve(int top[], int bottom[], int out[], int length) {
+		for (int i = 0, j = 0; i < length; i++, j += 2) {
+			int a = top[j];
+			int b = top[j + 1];
+			int c = bottom[j];
+			int d = bottom[j + 1];
+			int rb = (a & 0xFF00FF) + (b & 0xFF00FF) + (c & 0xFF00FF)
+					+ (d & 0xFF00FF) + 0x020002;
+			int g = (a & 0x00FF00) + (b & 0x00FF00) + (c & 0x00FF00)
+					+ (d & 0x00FF00) + 0x000200;
+			out[i] = ((rb >>> 2) & 0xFF00FF) | ((g >>> 2) & 0x00FF00);
+		}
+	}
+
+
+	// Operace
+	/**
+	 * Provede XOR vsech pixelu s maskou (viz xor()).
+	 * @param pixels			pole pixelu
+	 * @param off				index prvniho pixelu
+	 * @param length			pocet pixelu
+	 * @param mask				maska
+	 */
+	void applyXor(int pixels[], int off, int length, int mask) {
+		int end = off + length;
+		for (int i = off; i < end; i++)
+			pixels[i] ^= mask;
+	}
+
+	/**
+	 * Prohodi slozky pixelu a proXORuje je s maskou (viz permute()).
+	 * @param pixels			pole pixelu
+	 * @param off				index prvniho pixelu
+	 * @param length			pocet pixelu
+	 * @param red				posun zdrojove slozky cervene (16, 8 nebo 0)
+	 * @param green				posun zdrojove slozky zelene
+	 * @param blue				posun zdrojove slozky modre
+	 * @param mask				maska
+	 */
+	void applyPermute(int pixels[], int off, int length,
+			int red, int green, int blue, int mask) {
+		int end = off + length;
+		for (int i = off; i < end; i++) {
+			int p = pixels[i];
+			pixels[i] = (((p >>> red) & 0xFF) << 16
+					| ((p >>> green) & 0xFF) << 8
+					| ((p >>> blue) & 0xFF)) ^ mask;
+		}
+	}
+
+	/**
+	 * Prevede pixely na odstiny sedi a proXORuje je s maskou (viz gray()).
+	 * @param pixels			pole pixelu
+	 * @param off				index prvniho pixelu
+	 * @param length			pocet pixelu
+	 * @param mask				maska
+	 */
+	void applyGray(int pixels[], int off, int length, int mask) {
+		int end = off + length;
+		for (int i = off; i < end; i++) {
+			int p = pixels[i];
+			int v = (77 * ((p >>> 16) & 0xFF) + 150 * ((p >>> 8) & 0xFF)
+					+ 29 * (p & 0xFF)) >>> 8;
+			pixels[i] = (v * 0x010101) ^ mask;
+		}
+	}
+
+
+	// Privatni metody
+	/**
+	 * Nacte implementaci nad Vector API, pokud je modul
+	 * jdk.incubator.vector k dispozici. Trida VectorOps se nacita az tady
+	 * (reflexi), bez modulu ji nelze ani nacist.
+	 * @return					implementace barevnych operaci
+	 */
+	private static PackedOps load() {
+		if (!Boolean.getBoolean("bitmapview.scalar")) {
+			try {
+				return (PackedOps) Class.forName(
+						"com.bitmapview.kernel.VectorOps")
+						.getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException e) {
+				// Trida neni k dispozici, zustaneme u skalarnich smycek
+			} catch (LinkageError e) {
+				// Modul jdk.incubator.vector neni nacten
+			}
+		}
+		return new PackedOps();
+	}
+}
@@ -0,0 +1,51 @@
+package com.bitmapview.kernel;
+
+/**
+ * Operace nad jednim pixelem, jejiz vysledek zavisi pouze na barve pixelu
+ * (ne na jeho poloze ani sousedech). Takovou operaci lze provadet v libovolnem
+ * poradi a na libovolnem poctu vlaken.
+ */
+public abstract class PixelKernel {
+	// Verejne metody
+	/**
+	 * Vrati novou barvu pixelu.
+	 * @param rgb				barva pixelu ve tvaru 0xRRGGBB
+	 * @return					nova barva ve tvaru 0xRRGGBB
+	 */
+	public abstract int apply(int rgb);
+
+	/**
+	 * Aplikuje operaci na usek pole pixelu. Potomci mohou pretizit
+	 * efektivnejsi smyckou.
+	 * @param pixels			pole pixelu
+	 * @param off				index prvniho pixelu
+	 * @param length			pocet pixelu
+	 */
+	public void apply(int pixels[], int off, int length) {
+		for (int i = off; i < off + length; i++)
+			pixels[i] = this.apply(pixels[i]);
+	}
+
+	/**
+	 * Vrati operaci, ktera provede nejprve tuto operaci a pak operaci next.
+	 * Obe operace jsou provedeny v jednom pruchodu pameti (nad stejnym
+	 * usekem pole).
+	 * @param next				nasledujici operace
+	 * @return					slozena operace
+	 */
+	public PixelKernel then(final PixelKernel next) {
+		final PixelKernel first = this;
+		return new PixelKernel() {
+			@Override
+			public int apply(int rgb) {
+				return next.apply(first.apply(rgb));
+			}
+
+			@Override
+			public void apply(int pixels[], int off, int length) {
+				first.apply(pixels, off, length);
+				next.apply(pixels, off, length);
+			}
+		};
+	}
+}
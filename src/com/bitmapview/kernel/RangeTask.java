@@ -0,0 +1,16 @@
+package com.bitmapview.kernel;
+
+/**
+ * Uloha zpracovavajici souvisly interval indexu (typicky radku bitmapy).
+ * Ruzne intervaly mohou byt zpracovavany soucasne z vice vlaken, uloha tedy
+ * nesmi sdilet menitelny stav mezi volanimi run().
+ */
+public abstract class RangeTask {
+
+	/**
+	 * Zpracuje indexy from az to - 1.
+	 * @param from				prvni index (vcetne)
+	 * @param to				posledni index (bez)
+	 */
+	public abstract void run(int from, int to);
+}
@@ -0,0 +1,354 @@
+package com.bitmapview.kernel;
+
+import com.bitmapview.storage.Storage;
+
+/**
+ * Zmena velikosti obrazku (prevzorkovani). Probiha ve dvou 1D pruchodech:
+ * radky se nejprve prevzorkuji vodorovne a vysledne radky se pak
+ * kombinuji svisle. Vahy zdrojovych pixelu pro kazdy vystupni pixel (a
+ * radek) jsou predem spocteny do tabulek. Pri zmenseni je filtr rozsiren
+ * na velikost zmenseneho pixelu, aby nevznikal alias. Vystupni radky jsou
+ * zpracovany paralelne po pasech.
+ */
+public class Resampler {
+	// Filtry
+	/** Nejblizsi soused (zachovava barvy, vhodne i pro obrazky s paletou). */
+	public static final int NEAREST = 0;
+	/** Bilinearni interpolace (pri zmenseni trojuhelnikovy filtr). */
+	public static final int BILINEAR = 1;
+	/** Prumer plochy pokryte vystupnim pixelem. */
+	public static final int BOX = 2;
+	/** Lanczosuv filtr s polomerem 3. */
+	public static final int LANCZOS = 3;
+
+	final int filter;
+
+
+	// Konstruktor
+	/**
+	 * Vytvori prevzorkovani s danym filtrem.
+	 * @param filter			filtr (NEAREST, BILINEAR, BOX nebo LANCZOS)
+	 */
+	public Resampler(int filter) {
+		if (filter < NEAREST || filter > LANCZOS)
+			throw new IllegalArgumentException("Invalid filter");
+		this.filter = filter;
+	}
+
+
+	// Verejne metody
+	/**
+	 * Prevzorkuje pixely zdrojoveho uloziste do ciloveho uloziste, jehoz
+	 * rozmery urcuji novou velikost.
+	 * @param src				zdrojove uloziste
+	 * @param dst				cilove uloziste
+	 */
+	public void apply(final Storage src, final Storage dst) {
+		if (src.getWidth() == 0 || src.getHeight() == 0
+				|| dst.getWidth() == 0 || dst.getHeight() == 0)
+			return;
+
+		final Weights columns = this.weights(src.getWidth(), dst.getWidth());
+		final Weights rows = this.weights(src.getHeight(), dst.getHeight());
+
+		// Pas musi byt dost vysoky, aby opakovane nacitani radku na jeho
+		// zacatku nepredstavovalo vetsinu prace
+		final int height = dst.getHeight();
+		final int stripe = (int) Math.min(height, Math.max(
+				8 * Math.ceil(radius(this.filter)),
+				KernelExecutor.threshold / Math.max(1, dst.getWidth())));
+		int stripes = (height + stripe - 1) / stripe;
+		KernelExecutor.forRange(stripes, (long) stripe * dst.getWidth(),
+				new RangeTask() {
+			@Override
+			public void run(int from, int to) {
+				int first = from * stripe;
+				int last = Math.min(height, to * stripe);
+				if (Resampler.this.filter == NEAREST)
+					nearest(src, dst, columns, rows, first, last);
+				else
+					resample(src, dst, columns, rows, first, last);
+			}
+		}, src.isConcurrent() && dst.isConcurrent());
+	}
+
+	/**
+	 * Zmensi obrazek na polovinu v obou osach (prumer ctverce 2x2 pixelu).
+	 * Je vyrazne rychlejsi nez obecne prevzorkovani, pri velkem zmenseni
+	 * je proto vhodne nejprve opakovane pulit a teprve zbytek prevzorkovat.
+	 * Lichy posledni sloupec nebo radek se prumeruje sam se sebou.
+	 * @param src				zdrojove uloziste
+	 * @param dst				cilove uloziste s rozmery (w + 1) / 2 a
+	 *							(h + 1) / 2
+	 */
+	public static void halve(final Storage src, final Storage dst) {
+		final int width = src.getWidth();
+		final int height = src.getHeight();
+		final int half = (width + 1) / 2;
+		if (dst.getWidth() != half || dst.getHeight() != (height + 1) / 2)
+			throw new IllegalArgumentException("Storage size mismatch");
+
+		KernelExecutor.forRange(dst.getHeight(), 4L * half, new RangeTask() {
+			@Override
+			public void run(int from, int to) {
+				// Radky o pixel delsi pro lichou sirku
+				int top[] = new int[2 * half];
+				int bottom[] = new int[2 * half];
+				int out[] = new int[half];
+				for (int y = from; y < to; y++) {
+					src.getRow(2 * y, top, 0);
+					src.getRow(Math.min(height - 1, 2 * y + 1), bottom, 0);
+					top[2 * half - 1] = top[width - 1];
+					bottom[2 * half - 1] = bottom[width - 1];
+					PackedOps.halve(top, bottom, out, half);
+					dst.setRow(y, out, 0);
+				}
+			}
+		}, src.isConcurrent() && dst.isConcurrent());
+	}
+
+	/**
+	 * Zjisti, jestli ma smysl pred prevzorkovanim obrazek zpulit (zmenseni
+	 * je i po zpuleni alespon dvojnasobne v obou osach).
+	 * @param width				sirka obrazku
+	 * @param height			vyska obrazku
+	 * @param newWidth			cilova sirka
+	 * @param newHeight			cilova vyska
+	 * @return					true pokud zpulit
+	 */
+	public boolean canHalve(int width, int height, int newWidth,
+			int newHeight) {
+		return this.filter != NEAREST
+				&& (width + 1) / 2 >= 2 * newWidth
+				&& (height + 1) / 2 >= 2 * newHeight;
+	}
+
+
+	// Privatni metody
+	/**
+	 * Prevzorkuje vystupni radky first az last - 1 filtrem.
+	 * @param src				zdrojove uloziste
+	 * @param dst				cilove uloziste
+	 * @param columns			vahy pro vodorovny pruchod
+	 * @param rows				vahy pro svisly pruchod
+	 * @param first				prvni radek
+	 * @param last				radek za poslednim radkem
+	 */
+	static void resample(Storage src, Storage dst, Weights columns,
+			Weights rows, int first, int last) {
+		int width = dst.getWidth();
+		int n = width * 3;
+
+		// Kruhovy buffer vodorovne prevzorkovanych radku. Okno zdrojovych
+		// radku se s vystupnim radkem jen posouva dolu a neni delsi nez
+		// rows.max, zdrojovy radek y ma proto v bufferu misto y % rows.max.
+		float ring[][] = new float[rows.max][n];
+		int source[] = new int[src.getWidth()];
+		int out[] = new int[width];
+		float line[] = new float[n];
+		int next = rows.start[first];
+
+		for (int y = first; y < last; y++) {
+			int start = rows.start[y];
+			int end = start + rows.count[y];
+			next = Math.max(next, start);
+			for (; next < end; next++) {
+				src.getRow(next, source, 0);
+				horizontal(source, columns, ring[next % rows.max]);
+			}
+
+			for (int i = 0; i < n; i++)
+				line[i] = 0;
+			for (int t = 0, w = y * rows.max; t < rows.count[y]; t++, w++) {
+				float weight = rows.weights[w];
+				float row[] = ring[(start + t) % rows.max];
+				for (int i = 0; i < n; i++)
+					line[i] += weight * row[i];
+			}
+			for (int x = 0, k = 0; x < width; x++, k += 3)
+				out[x] = clamp(line[k]) << 16 | clamp(line[k + 1]) << 8
+						| clamp(line[k + 2]);
+			dst.setRow(y, out, 0);
+		}
+	}
+
+	/**
+	 * Prevzorkuje jeden radek vodorovne.
+	 * @param source			zdrojovy radek
+	 * @param columns			vahy pro vodorovny pruchod
+	 * @param line				slozky vystupniho radku (R, G, B po sobe)
+	 */
+	static void horizontal(int source[], Weights columns, float line[]) {
+		int width = columns.start.length;
+		for (int x = 0, k = 0, w = 0; x < width; x++, k += 3,
+				w += columns.max) {
+			float r = 0;
+			float g = 0;
+			float b = 0;
+			int s = columns.start[x];
+			for (int t = 0; t < columns.count[x]; t++) {
+				int p = source[s + t];
+				float weight = columns.weights[w + t];
+				r += weight * ((p >> 16) & 0xFF);
+				g += weight * ((p >> 8) & 0xFF);
+				b += weight * (p & 0xFF);
+			}
+			line[k] = r;
+			line[k + 1] = g;
+			line[k + 2] = b;
+		}
+	}
+
+	/**
+	 * Prevzorkuje vystupni radky first az last - 1 nejblizsim sousedem
+	 * (pixely se jen kopiruji).
+	 * @param src				zdrojove uloziste
+	 * @param dst				cilove uloziste
+	 * @param columns			vahy pro vodorovny pruchod
+	 * @param rows				vahy pro svisly pruchod
+	 * @param first				prvni radek
+	 * @param last				radek za poslednim radkem
+	 */
+	static void nearest(Storage src, Storage dst, Weights columns,
+			Weights rows, int first, int last) {
+		int width = dst.getWidth();
+		int source[] = new int[src.getWidth()];
+		int out[] = new int[width];
+		int loaded = -1;
+		for (int y = first; y < last; y++) {
+			// Pri zvetseni se stejny zdrojovy radek opakuje
+			if (rows.start[y] != loaded) {
+				loaded = rows.start[y];
+				src.getRow(loaded, source, 0);
+				for (int x = 0; x < width; x++)
+					out[x] = source[columns.start[x]];
+			}
+			dst.setRow(y, out, 0);
+		}
+	}
+
+	/**
+	 * Spocita tabulku vah pro prevzorkovani jedne osy.
+	 * @param length			puvodni delka osy
+	 * @param newLength			nova delka osy
+	 * @return					tabulka vah
+	 */
+	Weights weights(int length, int newLength) {
+		double scale = (double) length / newLength;
+		if (this.filter == NEAREST) {
+			Weights table = new Weights(newLength, 1);
+			for (int i = 0; i < newLength; i++) {
+				table.start[i] = Math.min(length - 1,
+						(int) ((i + 0.5) * scale));
+				table.count[i] = 1;
+				table.weights[i] = 1;
+			}
+			return table;
+		}
+
+		// Pri zmenseni se filtr roztahne na velikost vystupniho pixelu
+		double stretch = Math.max(1, scale);
+		double support = radius(this.filter) * stretch;
+		int max = Math.min(length, (int) Math.ceil(2 * support) + 2);
+		Weights table = new Weights(newLength, max);
+		for (int i = 0; i < newLength; i++) {
+			// Stred vystupniho pixelu ve zdrojovych souradnicich
+			double center = (i + 0.5) * scale;
+			int left = Math.max(0, (int) Math.floor(center - support));
+			int right = Math.min(length, (int) Math.ceil(center + support));
+			right = Math.min(right, left + max);
+
+			double sum = 0;
+			int w = i * max;
+			for (int j = left; j < right; j++) {
+				double weight;
+				if (this.filter == BOX) {
+					// Prekryv zdrojoveho pixelu s plochou vystupniho pixelu
+					weight = Math.min(j + 1, center + support)
+							- Math.max(j, center - support);
+				} else {
+					weight = kernel(this.filter, (j + 0.5 - center) / stretch);
+				}
+				table.weights[w + j - left] = (float) weight;
+				sum += weight;
+			}
+
+			// Normalizace (soucet vah 1), na okrajich chybi cast filtru
+			if (sum == 0) {
+				// Filtr nezasahl zadny stred pixelu, pouzijeme nejblizsi
+				left = Math.min(length - 1, (int) center);
+				right = left + 1;
+				table.weights[w] = 1;
+				sum = 1;
+			}
+			for (int j = 0; j < right - left; j++)
+				table.weights[w + j] /= sum;
+			table.start[i] = left;
+			table.count[i] = right - left;
+		}
+		return table;
+	}
+
+	/**
+	 * Vrati polomer filtru (ve zdrojovych pixelech pri zvetseni).
+	 * @param filter			filtr
+	 * @return					polomer
+	 */
+	static double radius(int filter) {
+		switch (filter) {
+			case BILINEAR:
+				return 1;
+			case LANCZOS:
+				return 3;
+			default:
+				return 0.5;
+		}
+	}
+
+	/**
+	 * Vrati hodnotu filtru ve vzdalenosti x od stredu.
+	 * @param filter			filtr (BILINEAR nebo LANCZOS)
+	 * @param x					vzdalenost
+	 * @return					vaha
+	 */
+	static double kernel(int filter, double x) {
+		x = Math.abs(x);
+		if (filter == BILINEAR)
+			return x < 1 ? 1 - x : 0;
+		if (x >= 3)
+			return 0;
+		if (x < 1e-8)
+			return 1;
+		double px = Math.PI * x;
+		return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+	}
+
+	/**
+	 * Zaokrouhli slozku a omezi ji na rozsah 0 - 255.
+	 * @param v					hodnota slozky
+	 * @return					slozka 0 - 255
+	 */
+	static int clamp(float v) {
+		int c = (int) (v + 0.5f);
+		return c < 0 ? 0 : (c > 255 ? 255 : c);
+	}
+
+
+	/**
+	 * Tabulka vah pro jednu osu: vystupni pixel i je vazeny soucet count[i]
+	 * zdrojovych pixelu od start[i], vahy jsou ve weights od i * max.
+	 */
+	static class Weights {
+		final int start[];
+		final int count[];
+		final float weights[];
+		final int max;
+
+		Weights(int length, int max) {
+			this.start = new int[length];
+			this.count = new int[length];
+			this.weights = new float[length * max];
+			this.max = max;
+		}
+	}
+}
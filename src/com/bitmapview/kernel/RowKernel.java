@@ -0,0 +1,16 @@
+package com.bitmapview.kernel;
+
+/**
+ * Operace nad celym radkem pixelu. Radky jsou zpracovavany nezavisle a
+ * mohou byt zpracovavany soucasne z vice vlaken.
+ */
+public abstract class RowKernel {
+
+	/**
+	 * Zpracuje radek pixelu na miste.
+	 * @param y					index radku
+	 * @param row				pixely radku (ve tvaru 0xRRGGBB)
+	 * @param width				pocet pixelu v radku
+	 */
+	public abstract void apply(int y, int row[], int width);
+}
@@ -0,0 +1,183 @@
+package com.bitmapview.kernel;
+
+import com.bitmapview.storage.Storage;
+
+import java.util.ArrayList;
+
+/**
+ * Statistiky pixelu obrazku: histogramy slozek, minimum, maximum a prumer
+ * slozek a presny pocet ruznych barev. Vse se spocita jednim paralelnim
+ * pruchodem, kazda uloha ma vlastni histogramy a bitovou mnozinu barev
+ * (2^24 bitu = 2 MiB), ktere se nakonec sectou. Ulohy jsou jen tolik, kolik
+ * je vlaken.
+ */
+public class Statistics {
+	// Pocet ruznych barev, ktere se vejdou do 8bitove palety
+	public static final int PALETTE_SIZE = 256;
+
+	final long histogram[][] = new long[3][256];
+	final int min[] = new int[3];
+	final int max[] = new int[3];
+	final double mean[] = new double[3];
+	long pixelCount;
+	int colorCount;
+
+
+	// Konstruktor
+	private Statistics() {
+	}
+
+
+	// Tovarni metody
+	/**
+	 * Spocita statistiky pixelu uloziste.
+	 * @param storage			uloziste
+	 * @return					statistiky
+	 */
+	public static Statistics compute(final Storage storage) {
+		final int width = storage.getWidth();
+		final int height = storage.getHeight();
+		final int parts = Math.max(1, Math.min(height,
+				KernelExecutor.getParallelism()));
+		final ArrayList<Partial> partials = new ArrayList<Partial>();
+
+		KernelExecutor.forRange(parts, (long) width * height / parts,
+				new RangeTask() {
+			@Override
+			public void run(int from, int to) {
+				Partial partial = new Partial();
+				int row[] = new int[width];
+				int first = (int) ((long) height * from / parts);
+				int last = (int) ((long) height * to / parts);
+				for (int y = first; y < last; y++) {
+					storage.getRow(y, row, 0);
+					partial.add(row, width);
+				}
+				synchronized (partials) {
+					partials.add(partial);
+				}
+			}
+		}, storage.isConcurrent());
+
+		// Secist dilci vysledky
+		Statistics stats = new Statistics();
+		long colors[] = null;
+		for (Partial partial : partials) {
+			for (int c = 0; c < 3; c++)
+				for (int i = 0; i < 256; i++)
+					stats.histogram[c][i] += partial.histogram[c * 256 + i];
+			if (colors == null) {
+				colors = partial.colors;
+			} else {
+				for (int i = 0; i < colors.length; i++)
+					colors[i] |= partial.colors[i];
+			}
+		}
+		stats.pixelCount = (long) width * height;
+		if (colors != null)
+			for (int i = 0; i < colors.length; i++)
+				stats.colorCount += Long.bitCount(colors[i]);
+
+		// Minimum, maximum a prumer plynou z histogramu
+		for (int c = 0; c < 3; c++) {
+			long sum = 0;
+			stats.min[c] = -1;
+			for (int i = 0; i < 256; i++) {
+				long count = stats.histogram[c][i];
+				if (count == 0)
+					continue;
+				if (stats.min[c] < 0)
+					stats.min[c] = i;
+				stats.max[c] = i;
+				sum += count * i;
+			}
+			stats.min[c] = Math.max(0, stats.min[c]);
+			if (stats.pixelCount > 0)
+				stats.mean[c] = (double) sum / stats.pixelCount;
+		}
+		return stats;
+	}
+
+
+	// Verejne metody
+	/**
+	 * Vrati histogram slozky.
+	 * @param channel			slozka (ColorLUT.RED, GREEN nebo BLUE)
+	 * @return					kopie histogramu (pocet pixelu pro kazdou
+	 *							hodnotu 0 - 255)
+	 */
+	public long[] getHistogram(int channel) {
+		return this.histogram[channel].clone();
+	}
+
+	/**
+	 * Vrati nejmensi hodnotu slozky.
+	 * @param channel			slozka (ColorLUT.RED, GREEN nebo BLUE)
+	 * @return					hodnota 0 - 255
+	 */
+	public int getMin(int channel) {
+		return this.min[channel];
+	}
+
+	/**
+	 * Vrati nejvetsi hodnotu slozky.
+	 * @param channel			slozka (ColorLUT.RED, GREEN nebo BLUE)
+	 * @return					hodnota 0 - 255
+	 */
+	public int getMax(int channel) {
+		return this.max[channel];
+	}
+
+	/**
+	 * Vrati prumernou hodnotu slozky.
+	 * @param channel			slozka (ColorLUT.RED, GREEN nebo BLUE)
+	 * @return					prumer
+	 */
+	public double getMean(int channel) {
+		return this.mean[channel];
+	}
+
+	/**
+	 * Vrati pocet pixelu.
+	 * @return					pocet pixelu
+	 */
+	public long getPixelCount() {
+		return this.pixelCount;
+	}
+
+	/**
+	 * Vrati pocet ruznych barev.
+	 * @return					pocet barev
+	 */
+	public int getColorCount() {
+		return this.colorCount;
+	}
+
+	/**
+	 * Zjisti, jestli lze obrazek ulozit s 8bitovou paletou.
+	 * @return					true pokud obrazek nema vic nez 256 barev
+	 */
+	public boolean isIndexable() {
+		return this.colorCount <= PALETTE_SIZE;
+	}
+
+
+	/**
+	 * Dilci vysledek jedne ulohy.
+	 */
+	static class Partial {
+		// Histogramy slozek R, G, B za sebou
+		final long histogram[] = new long[3 * 256];
+		final long colors[] = new long[1 << 18];
+
+		void add(int row[], int width) {
+			for (int i = 0; i < width; i++) {
+				int p = row[i] & 0xFFFFFF;
+				this.histogram[p >>> 16]++;
+				this.histogram[256 + ((p >>> 8) & 0xFF)]++;
+				this.histogram[512 + (p & 0xFF)]++;
+				this.colors[p >>> 6] |= 1L << p;
+			}
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package com.bitmapview.kernel;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Barevne operace PackedOps explicitne vektorizovane pres Vector API
+ * (jdk.incubator.vector). Jednou instrukci se zpracuje tolik pixelu, kolik
+ * jich se vejde do nejsirsiho vektoru procesoru (napr. 8 pro AVX2, 16 pro
+ * AVX-512). Zbytek pole kratsi nez vektor zpracuji skalarni smycky predka.
+ *
+ * Preklad i spusteni vyzaduje --add-modules jdk.incubator.vector. Trida se
+ * nacita jen reflexi z PackedOps, bez modulu se tak pouziji skalarni
+ * smycky.
+ */
+final class VectorOps
+	extends PackedOps
+{
+	static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+
+	// Operace
+	@Override
+	void applyXor(int pixels[], int off, int length, int mask) {
+		int end = off + length;
+		int bound = off + SPECIES.loopBound(length);
+		int i = off;
+		for (; i < bound; i += SPECIES.length())
+			IntVector.fromArray(SPECIES, pixels, i)
+					.lanewise(VectorOperators.XOR, mask)
+					.intoArray(pixels, i);
+		super.applyXor(pixels, i, end - i, mask);
+	}
+
+	@Override
+	void applyPermute(int pixels[], int off, int length,
+			int red, int green, int blue, int mask) {
+		int end = off + length;
+		int bound = off + SPECIES.loopBound(length);
+		int i = off;
+		for (; i < bound; i += SPECIES.length()) {
+			IntVector p = IntVector.fromArray(SPECIES, pixels, i);
+			IntVector r = p.lanewise(VectorOperators.LSHR, red).and(0xFF)
+					.lanewise(VectorOperators.LSHL, 16);
+			IntVector g = p.lanewise(VectorOperators.LSHR, green).and(0xFF)
+					.lanewise(VectorOperators.LSHL, 8);
+			IntVector b = p.lanewise(VectorOperators.LSHR, blue).and(0xFF);
+			r.or(g).or(b).lanewise(VectorOperators.XOR, mask)
+					.intoArray(pixels, i);
+		}
+		super.applyPermute(pixels, i, end - i, red, green, blue, mask);
+	}
+
+	@Override
+	void applyGray(int pixels[], int off, int length, int mask) {
+		int end = off + length;
+		int bound = off + SPECIES.loopBound(length);
+		int i = off;
+		for (; i < bound; i += SPECIES.length()) {
+			IntVector p = IntVector.fromArray(SPECIES, pixels, i);
+			// Jas podle ITU-R BT.601 v pevne radove carce (x 256)
+			IntVector v = p.lanewise(VectorOperators.LSHR, 16).and(0xFF)
+					.mul(77)
+					.add(p.lanewise(VectorOperators.LSHR, 8).and(0xFF)
+							.mul(150))
+					.add(p.and(0xFF).mul(29))
+					.lanewise(VectorOperators.LSHR, 8);
+			v.mul(0x010101).lanewise(VectorOperators.XOR, mask)
+					.intoArray(pixels, i);
+		}
+		super.applyGray(pixels, i, end - i, mask);
+	}
+}
@@ -0,0 +1,172 @@
+package com.bitmapview.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Uloziste pixelu mimo haldu JVM v primych (direct) bufferech. Obrazek je
+ * rozdelen do bloku po nejvyse 2^28 pixelech (1 GiB), indexy pixelu jsou
+ * typu long a celkova velikost obrazku tak neni omezena rozsahem pole.
+ * Pamet neni zapocitana do -Xmx (jen do -XX:MaxDirectMemorySize) a
+ * nefragmentuje haldu. Po skonceni prace je treba zavolat close().
+ */
+public class DirectStorage
+	extends Storage
+{
+	// Pocet bitu indexu v ramci jednoho bloku
+	static final int CHUNK_BITS = 28;
+	static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+	IntBuffer chunks[];
+
+
+	// Konstruktor
+	/**
+	 * Vytvori uloziste o danych rozmerech vyplnene cernou barvou.
+	 * @param width				sirka v px
+	 * @param height			vyska v px
+	 */
+	public DirectStorage(int width, int height) {
+		super(width, height);
+
+		// Alokovat potrebny pocet bloku, posledni muze byt kratsi
+		long count = this.getPixelCount();
+		int n = (int) ((count + CHUNK_MASK) >>> CHUNK_BITS);
+		this.chunks = new IntBuffer[n];
+		for (int i = 0; i < n; i++) {
+			long length = Math.min(count - ((long) i << CHUNK_BITS),
+					1L << CHUNK_BITS);
+			this.chunks[i] = ByteBuffer.allocateDirect((int) length * 4)
+					.order(ByteOrder.nativeOrder())
+					.asIntBuffer();
+		}
+	}
+
+
+	// Pretizeni metod
+	@Override
+	public int getRGB(int x, int y) {
+		return this.get((long) y * this.width + x);
+	}
+
+	@Override
+	public void setRGB(int x, int y, int rgb) {
+		this.put((long) y * this.width + x, rgb & 0xFFFFFF);
+	}
+
+	@Override
+	public void getRegion(int x, int y, int w, int h,
+			int dst[], int off, int stride) {
+		for (int j = 0; j < h; j++)
+			this.transfer((long) (y + j) * this.width + x,
+					dst, off + j * stride, w, false);
+	}
+
+	@Override
+	public void setRegion(int x, int y, int w, int h,
+			int src[], int off, int stride) {
+		int row[] = new int[w];
+		for (int j = 0; j < h; j++) {
+			int q = off + j * stride;
+			for (int i = 0; i < w; i++)
+				row[i] = src[q + i] & 0xFFFFFF;
+			this.transfer((long) (y + j) * this.width + x, row, 0, w, true);
+		}
+	}
+
+	/**
+	 * Transponuje pixely na miste po blocich (viz Storage.transposeSquare()
+	 * a Storage.transposeShuffle()). Pokud je zapnuta transpozice do kopie
+	 * (viz Storage.setTransposeCopy()), kopiruji se nectvercova uloziste do
+	 * novych bufferu.
+	 */
+	@Override
+	public boolean transpose() {
+		if (this.width == this.height) {
+			this.transposeSquare();
+			return true;
+		}
+
+		if (transposeCopy) {
+			DirectStorage transposed = new DirectStorage(this.height,
+					this.width);
+			this.transposeInto(transposed);
+			this.chunks = transposed.chunks;
+			this.width = transposed.width;
+			this.height = transposed.height;
+			return true;
+		}
+
+		this.transposeShuffle();
+		return true;
+	}
+
+	@Override
+	public boolean isConcurrent() {
+		return true;
+	}
+
+	@Override
+	public Storage create(int width, int height) {
+		return new DirectStorage(width, height);
+	}
+
+	/**
+	 * Zahodi reference na prime buffery. Jejich pamet je vracena systemu
+	 * jakmile buffery posbira garbage collector.
+	 */
+	@Override
+	public void close() {
+		this.chunks = null;
+	}
+
+
+	// Privatni metody
+	/**
+	 * Vrati pixel na danem indexu.
+	 * @param i					index pixelu
+	 * @return					barva pixelu
+	 */
+	private int get(long i) {
+		return this.chunks[(int) (i >>> CHUNK_BITS)]
+				.get((int) (i & CHUNK_MASK));
+	}
+
+	/**
+	 * Nastavi pixel na danem indexu.
+	 * @param i					index pixelu
+	 * @param rgb				barva pixelu
+	 */
+	private void put(long i, int rgb) {
+		this.chunks[(int) (i >>> CHUNK_BITS)].put((int) (i & CHUNK_MASK), rgb);
+	}
+
+	/**
+	 * Zkopiruje souvisly usek pixelu mezi ulozistem a polem. Usek muze
+	 * prekracovat hranici bloku.
+	 * @param index				index prvniho pixelu v ulozisti
+	 * @param array				pole
+	 * @param off				index prvniho pixelu v poli
+	 * @param length			pocet pixelu
+	 * @param write				true pro zapis z pole do uloziste
+	 */
+	private void transfer(long index, int array[], int off, int length,
+			boolean write) {
+		while (length > 0) {
+			int i = (int) (index & CHUNK_MASK);
+			int n = Math.min(length, (1 << CHUNK_BITS) - i);
+			// duplicate() aby se nemenila pozice sdileneho bufferu
+			IntBuffer chunk = this.chunks[(int) (index >>> CHUNK_BITS)]
+					.duplicate();
+			chunk.position(i);
+			if (write)
+				chunk.put(array, off, n);
+			else
+				chunk.get(array, off, n);
+			index += n;
+			off += n;
+			length -= n;
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package com.bitmapview.storage;
+
+import com.bitmapview.kernel.KernelExecutor;
+import com.bitmapview.kernel.RangeTask;
+
+/**
+ * Uloziste pixelu v jednom poli int na halde JVM. Pixely jsou ulozeny po
+ * radcich, pixel [x, y] je na indexu y * sirka + x. Pocet pixelu je omezen
+ * maximalni delkou pole v Jave.
+ */
+public class HeapStorage
+	extends Storage
+{
+	/**
+	 * Maximalni pocet pixelu, ktery lze ulozit do jednoho pole.
+	 */
+	public static final long MAX_PIXELS = Integer.MAX_VALUE - 8;
+
+	int pixels[];
+
+
+	// Konstruktor
+	/**
+	 * Vytvori uloziste o danych rozmerech vyplnene cernou barvou.
+	 * @param width				sirka v px
+	 * @param height			vyska v px
+	 */
+	public HeapStorage(int width, int height) {
+		super(width, height);
+		if ((long) width * height > MAX_PIXELS)
+			throw new IllegalArgumentException("Image too large for heap");
+		this.pixels = new int[width * height];
+	}
+
+
+	// Pretizeni metod
+	@Override
+	public int getRGB(int x, int y) {
+		return this.pixels[y * this.width + x];
+	}
+
+	@Override
+	public void setRGB(int x, int y, int rgb) {
+		this.pixels[y * this.width + x] = rgb & 0xFFFFFF;
+	}
+
+	@Override
+	public void getRegion(int x, int y, int w, int h,
+			int dst[], int off, int stride) {
+		for (int j = 0; j < h; j++)
+			System.arraycopy(this.pixels, (y + j) * this.width + x,
+					dst, off + j * stride, w);
+	}
+
+	@Override
+	public void setRegion(int x, int y, int w, int h,
+			int src[], int off, int stride) {
+		for (int j = 0; j < h; j++) {
+			int p = (y + j) * this.width + x;
+			int q = off + j * stride;
+			for (int i = 0; i < w; i++)
+				this.pixels[p + i] = src[q + i] & 0xFFFFFF;
+		}
+	}
+
+	@Override
+	public void flipX() {
+		final int pixels[] = this.pixels;
+		final int width = this.width;
+		KernelExecutor.forRange(this.height, width, new RangeTask() {
+			@Override
+			public void run(int from, int to) {
+				for (int y = from; y < to; y++)
+					for (int i = y * width, j = i + width - 1; i < j;
+							i++, j--) {
+						int tmp = pixels[i];
+						pixels[i] = pixels[j];
+						pixels[j] = tmp;
+					}
+			}
+		}, true);
+	}
+
+	@Override
+	public void flipY() {
+		final int pixels[] = this.pixels;
+		final int width = this.width;
+		final int height = this.height;
+		KernelExecutor.forRange(height / 2, width, new RangeTask() {
+			@Override
+			public void run(int from, int to) {
+				for (int a = from; a < to; a++)
+					for (int i = a * width, j = (height - a - 1) * width,
+							end = i + width; i < end; i++, j++) {
+						int tmp = pixels[i];
+						pixels[i] = pixels[j];
+						pixels[j] = tmp;
+					}
+			}
+		}, true);
+	}
+
+	/**
+	 * Transponuje pixely na miste po blocich (viz Storage.transposeSquare()
+	 * a Storage.transposeShuffle()), bez dalsi pameti krome bufferu
+	 * jednotlivych vlaken. Pokud je zapnuta transpozice do kopie (viz
+	 * setTransposeCopy()), kopiruji se nectvercova pole po blocich do
+	 * noveho pole.
+	 */
+	@Override
+	public boolean transpose() {
+		if (this.width == this.height) {
+			this.transposeSquare();
+			return true;
+		}
+
+		if (transposeCopy) {
+			HeapStorage transposed = new HeapStorage(this.height, this.width);
+			this.transposeInto(transposed);
+			this.pixels = transposed.pixels;
+			this.width = transposed.width;
+			this.height = transposed.height;
+			return true;
+		}
+
+		this.transposeShuffle();
+		return true;
+	}
+
+	@Override
+	public boolean isConcurrent() {
+		return true;
+	}
+
+	@Override
+	public int[] getBuffer() {
+		return this.pixels;
+	}
+
+	@Override
+	public Storage create(int width, int height) {
+		return new HeapStorage(width, height);
+	}
+
+	@Override
+	public void close() {
+		this.pixels = null;
+	}
+}
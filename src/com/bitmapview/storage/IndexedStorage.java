@@ -0,0 +1,390 @@
+package com.bitmapview.storage;
+
+import com.bitmapview.kernel.KernelExecutor;
+import com.bitmapview.kernel.PixelKernel;
+import com.bitmapview.kernel.RangeTask;
+
+import java.util.HashMap;
+
+/**
+ * Uloziste pixelu s paletou (pro obrazky s 8bpp a mene). Misto barev se
+ * ukladaji pouze indexy do palety, zabalene po 1, 2, 4 nebo 8 bitech do
+ * pole byte. Kazdy radek zacina na celem byte a pixely jsou v byte
+ * usporadany od nejvyznamnejsiho bitu (stejne jako v BMP a PCX).
+ */
+public class IndexedStorage
+	extends Storage
+{
+	int bits;
+	int mask;
+	int stride;
+	byte indices[];
+	int palette[];
+
+	// Zpetne vyhledavani indexu podle barvy (pro setRGB)
+	HashMap<Integer, Integer> lookup;
+	int lastRGB = -1;
+	int lastIndex = -1;
+
+
+	// Konstruktor
+	/**
+	 * Vytvori uloziste o danych rozmerech, vsechny pixely maji index 0.
+	 * @param width				sirka v px
+	 * @param height			vyska v px
+	 * @param palette			paleta (nejvyse 2^bits barev)
+	 * @param bits				pocet bitu na index (1, 2, 4 nebo 8)
+	 */
+	public IndexedStorage(int width, int height, int palette[], int bits) {
+		super(width, height);
+		if (bits != 1 && bits != 2 && bits != 4 && bits != 8)
+			throw new IllegalArgumentException("Unsupported index size");
+		if (palette == null || palette.length == 0)
+			throw new IllegalArgumentException("Missing palette");
+
+		this.bits = bits;
+		this.mask = (1 << bits) - 1;
+		this.stride = (width * bits + 7) / 8;
+		if ((long) this.stride * height > HeapStorage.MAX_PIXELS)
+			throw new IllegalArgumentException("Image too large for heap");
+		this.indices = new byte[this.stride * height];
+
+		// Paleta delsi nez rozsah indexu nema smysl
+		int length = Math.min(palette.length, 1 << bits);
+		this.palette = new int[length];
+		for (int i = 0; i < length; i++)
+			this.palette[i] = palette[i] & 0xFFFFFF;
+		this.buildLookup();
+	}
+
+
+	// Verejne metody
+	/**
+	 * Vrati pocet bitu na jeden index.
+	 * @return					pocet bitu (1, 2, 4 nebo 8)
+	 */
+	public int getBits() {
+		return this.bits;
+	}
+
+	/**
+	 * Vrati kopii palety.
+	 * @return					paleta (barvy ve tvaru 0xRRGGBB)
+	 */
+	public int[] getPalette() {
+		return this.palette.clone();
+	}
+
+	/**
+	 * Nahradi paletu. Nova paleta musi mit stejny pocet barev.
+	 * @param palette			paleta (barvy ve tvaru 0xRRGGBB)
+	 */
+	public void setPalette(int palette[]) {
+		if (palette.length != this.palette.length)
+			throw new IllegalArgumentException("Invalid palette size");
+		int newPalette[] = new int[palette.length];
+		for (int i = 0; i < palette.length; i++)
+			newPalette[i] = palette[i] & 0xFFFFFF;
+		this.palette = newPalette;
+		this.buildLookup();
+	}
+
+	/**
+	 * Vrati index do palety pixelu na pozici x, y.
+	 * @param x					souradnice pixelu v ose X
+	 * @param y					souradnice pixelu v ose Y
+	 * @return					index do palety
+	 */
+	public int getIndex(int x, int y) {
+		int bit = x * this.bits;
+		int b = this.indices[y * this.stride + (bit >> 3)];
+		return (b >> (8 - this.bits - (bit & 7))) & this.mask;
+	}
+
+	/**
+	 * Nastavi index do palety pixelu na pozici x, y.
+	 * @param x					souradnice pixelu v ose X
+	 * @param y					souradnice pixelu v ose Y
+	 * @param index				index do palety
+	 */
+	public void setIndex(int x, int y, int index) {
+		if (index < 0 || index >= this.palette.length)
+			throw new IllegalArgumentException("Invalid palette index");
+
+		int bit = x * this.bits;
+		int i = y * this.stride + (bit >> 3);
+		int shift = 8 - this.bits - (bit & 7);
+		this.indices[i] = (byte) ((this.indices[i] & ~(this.mask << shift))
+				| (index << shift));
+	}
+
+
+	/**
+	 * Nacte cely radek indexu zabalenych stejne jako v ulozisti (od
+	 * nejvyznamnejsiho bitu, (sirka * bits + 7) / 8 bytes).
+	 * @param y					index radku
+	 * @param dst				cilove pole
+	 * @param off				index prvniho byte v cilovem poli
+	 */
+	public void getPackedRow(int y, byte dst[], int off) {
+		System.arraycopy(this.indices, y * this.stride, dst, off, this.stride);
+	}
+
+	/**
+	 * Zapise cely radek indexu zabalenych stejne jako v ulozisti. Jde
+	 * o pouhe zkopirovani, indexy jsou overeny jen pokud je paleta kratsi
+	 * nez rozsah indexu.
+	 * @param y					index radku
+	 * @param src				zdrojove pole
+	 * @param off				index prvniho byte ve zdrojovem poli
+	 */
+	public void setPackedRow(int y, byte src[], int off) {
+		System.arraycopy(src, off, this.indices, y * this.stride, this.stride);
+
+		if (this.palette.length <= this.mask)
+			for (int x = 0; x < this.width; x++)
+				if (this.getIndex(x, y) >= this.palette.length)
+					throw new IllegalArgumentException(
+							"Invalid palette index");
+	}
+
+
+	// Pretizeni metod
+	@Override
+	public int getRGB(int x, int y) {
+		return this.palette[this.getIndex(x, y)];
+	}
+
+	/**
+	 * Nastavi barvu pixelu. Barva musi byt v palete nebo v ni musi byt
+	 * misto, jinak je vyhozena vyjimka (viz accepts()).
+	 */
+	@Override
+	public void setRGB(int x, int y, int rgb) {
+		int index = this.indexOf(rgb & 0xFFFFFF);
+		if (index < 0) {
+			// Pridat barvu do palety pokud je misto
+			if (this.palette.length > this.mask)
+				throw new IllegalArgumentException("Color not in palette");
+			int newPalette[] = new int[this.palette.length + 1];
+			System.arraycopy(this.palette, 0, newPalette, 0,
+					this.palette.length);
+			index = this.palette.length;
+			newPalette[index] = rgb & 0xFFFFFF;
+			this.palette = newPalette;
+			this.buildLookup();
+		}
+		this.setIndex(x, y, index);
+	}
+
+	@Override
+	public void getRegion(int x, int y, int w, int h,
+			int dst[], int off, int stride) {
+		for (int j = 0; j < h; j++) {
+			int q = off + j * stride;
+			for (int i = 0; i < w; i++)
+				dst[q + i] = this.palette[this.getIndex(x + i, y + j)];
+		}
+	}
+
+	/**
+	 * Zrcadli radky paralelne (kazdy radek zacina na celem byte, radky jsou
+	 * tedy nezavisle). Indexy po 8 bitech se prohazuji primo v poli, mensi
+	 * indexy se rozbali do bufferu radku, obrati a zabali zpet.
+	 */
+	@Override
+	public void flipX() {
+		final IndexedStorage storage = this;
+		final byte indices[] = this.indices;
+		final int width = this.width;
+		final int stride = this.stride;
+		KernelExecutor.forRange(this.height, width, new RangeTask() {
+			@Override
+			public void run(int from, int to) {
+				if (storage.bits == 8) {
+					for (int y = from; y < to; y++)
+						for (int i = y * stride, j = i + width - 1; i < j;
+								i++, j--) {
+							byte tmp = indices[i];
+							indices[i] = indices[j];
+							indices[j] = tmp;
+						}
+					return;
+				}
+
+				int row[] = new int[width];
+				for (int y = from; y < to; y++) {
+					storage.getCells(0, y, width, 1, row, 0, width);
+					for (int i = 0, j = width - 1; i < j; i++, j--) {
+						int tmp = row[i];
+						row[i] = row[j];
+						row[j] = tmp;
+					}
+					storage.setCells(0, y, width, 1, row, 0, width);
+				}
+			}
+		}, true);
+	}
+
+	@Override
+	public void flipY() {
+		byte tmp[] = new byte[this.stride];
+		for (int a = 0, b = this.height - 1; a < b; a++, b--) {
+			System.arraycopy(this.indices, a * this.stride, tmp, 0,
+					this.stride);
+			System.arraycopy(this.indices, b * this.stride,
+					this.indices, a * this.stride, this.stride);
+			System.arraycopy(tmp, 0, this.indices, b * this.stride,
+					this.stride);
+		}
+	}
+
+	/**
+	 * Transponuje indexy. Ctvercove uloziste a uloziste, jehoz radky nemaji
+	 * pred ani po transpozici nevyuzite bity na konci (napr. vzdy pri 8bpp),
+	 * se transponuji na miste (viz Storage.transposeSquare() a
+	 * Storage.transposeShuffle()). Jinak se zmeni delka pole a indexy se
+	 * po blocich prevedou do noveho pole (jen zabalene indexy, ne barvy).
+	 */
+	@Override
+	public boolean transpose() {
+		if (this.width == this.height) {
+			this.transposeSquare();
+			return true;
+		}
+
+		if ((this.width * this.bits) % 8 == 0
+				&& (this.height * this.bits) % 8 == 0) {
+			this.transposeShuffle();
+			this.stride = this.width * this.bits / 8;
+			return true;
+		}
+
+		IndexedStorage transposed = new IndexedStorage(this.height,
+				this.width, this.palette, this.bits);
+		this.transposeInto(transposed);
+		this.indices = transposed.indices;
+		this.stride = transposed.stride;
+		this.width = transposed.width;
+		this.height = transposed.height;
+		return true;
+	}
+
+	/**
+	 * Barva pixelu zavisi jen na jeho barve, staci tedy zmenit paletu
+	 * (nejvyse 256 barev). Indexy zustavaji beze zmeny.
+	 */
+	@Override
+	public boolean applyColors(PixelKernel kernel) {
+		int newPalette[] = this.palette.clone();
+		kernel.apply(newPalette, 0, newPalette.length);
+		for (int i = 0; i < newPalette.length; i++)
+			newPalette[i] &= 0xFFFFFF;
+		this.palette = newPalette;
+		this.buildLookup();
+		return true;
+	}
+
+	@Override
+	public boolean accepts(int rgb) {
+		return this.palette.length <= this.mask
+				|| this.indexOf(rgb & 0xFFFFFF) >= 0;
+	}
+
+	@Override
+	public Storage create(int width, int height) {
+		return new IndexedStorage(width, height, this.palette, this.bits);
+	}
+
+	@Override
+	public Storage copy() {
+		IndexedStorage copy = new IndexedStorage(this.width, this.height,
+				this.palette, this.bits);
+		System.arraycopy(this.indices, 0, copy.indices, 0,
+				this.indices.length);
+		return copy;
+	}
+
+	@Override
+	public void close() {
+		this.indices = null;
+	}
+
+	/**
+	 * Nacte indexy do palety misto barev.
+	 */
+	@Override
+	protected void getCells(int x, int y, int w, int h,
+			int dst[], int off, int stride) {
+		for (int j = 0; j < h; j++) {
+			int q = off + j * stride;
+			if (this.bits == 8) {
+				int p = (y + j) * this.stride + x;
+				for (int i = 0; i < w; i++)
+					dst[q + i] = this.indices[p + i] & 0xFF;
+			} else {
+				for (int i = 0; i < w; i++)
+					dst[q + i] = this.getIndex(x + i, y + j);
+			}
+		}
+	}
+
+	/**
+	 * Zapise indexy do palety nactene getCells() (bez kontroly rozsahu,
+	 * jde o indexy z tohoto uloziste).
+	 */
+	@Override
+	protected void setCells(int x, int y, int w, int h,
+			int src[], int off, int stride) {
+		for (int j = 0; j < h; j++) {
+			int q = off + j * stride;
+			if (this.bits == 8) {
+				int p = (y + j) * this.stride + x;
+				for (int i = 0; i < w; i++)
+					this.indices[p + i] = (byte) src[q + i];
+			} else {
+				int row = (y + j) * this.stride;
+				for (int i = 0; i < w; i++) {
+					int bit = (x + i) * this.bits;
+					int k = row + (bit >> 3);
+					int shift = 8 - this.bits - (bit & 7);
+					this.indices[k] = (byte) ((this.indices[k]
+							& ~(this.mask << shift))
+							| ((src[q + i] & this.mask) << shift));
+				}
+			}
+		}
+	}
+
+
+	// Privatni metody
+	/**
+	 * Najde index barvy v palete.
+	 * @param rgb				barva ve tvaru 0xRRGGBB
+	 * @return					index nebo -1 pokud barva v palete neni
+	 */
+	private int indexOf(int rgb) {
+		// Sousedni pixely maji casto stejnou barvu
+		if (rgb == this.lastRGB)
+			return this.lastIndex;
+
+		Integer index = this.lookup.get(rgb);
+		if (index == null)
+			return -1;
+		this.lastRGB = rgb;
+		this.lastIndex = index;
+		return index;
+	}
+
+	/**
+	 * Sestavi tabulku pro zpetne vyhledavani indexu podle barvy. Pokud je
+	 * barva v palete vicekrat, pouzije se prvni vyskyt.
+	 */
+	private void buildLookup() {
+		this.lookup = new HashMap<Integer, Integer>();
+		for (int i = this.palette.length - 1; i >= 0; i--)
+			this.lookup.put(this.palette[i], i);
+		this.lastRGB = -1;
+		this.lastIndex = -1;
+	}
+}
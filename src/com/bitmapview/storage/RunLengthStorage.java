@@ -0,0 +1,342 @@
+package com.bitmapview.storage;
+
+import com.bitmapview.kernel.PixelKernel;
+
+import java.util.Arrays;
+
+/**
+ * Uloziste pixelu po behech stejne barvy (RLE). Kazdy radek je seznam behu
+ * danych koncem (souradnice X za poslednim pixelem behu) a barvou. Sousedni
+ * behy maji vzdy ruznou barvu. Pamet i cas operaci jako zrcadleni, barevne
+ * operace nebo orezani tak zavisi na slozitosti obrazku (poctu behu), ne na
+ * jeho plose. Vhodne pro perokresby a skeny s velkymi plochami jedne barvy.
+ */
+public class RunLengthStorage
+	extends Storage
+{
+	int ends[][];
+	int colors[][];
+	int counts[];
+
+
+	// Konstruktor
+	/**
+	 * Vytvori uloziste o danych rozmerech vyplnene cernou barvou.
+	 * @param width				sirka v px
+	 * @param height			vyska v px
+	 */
+	public RunLengthStorage(int width, int height) {
+		this(width, height, 0);
+	}
+
+	/**
+	 * Vytvori uloziste o danych rozmerech vyplnene danou barvou.
+	 * @param width				sirka v px
+	 * @param height			vyska v px
+	 * @param rgb				barva ve tvaru 0xRRGGBB
+	 */
+	public RunLengthStorage(int width, int height, int rgb) {
+		super(width, height);
+		this.ends = new int[height][];
+		this.colors = new int[height][];
+		this.counts = new int[height];
+		for (int y = 0; y < height; y++)
+			this.fillRow(y, rgb);
+	}
+
+
+	// Verejne metody
+	/**
+	 * Vrati pocet behu v radku.
+	 * @param y					index radku
+	 * @return					pocet behu
+	 */
+	public int getRunCount(int y) {
+		return this.counts[y];
+	}
+
+	/**
+	 * Vrati konec behu (souradnici X za jeho poslednim pixelem).
+	 * @param y					index radku
+	 * @param i					index behu v radku
+	 * @return					konec behu
+	 */
+	public int getRunEnd(int y, int i) {
+		return this.ends[y][i];
+	}
+
+	/**
+	 * Vrati barvu behu.
+	 * @param y					index radku
+	 * @param i					index behu v radku
+	 * @return					barva behu ve tvaru 0xRRGGBB
+	 */
+	public int getRunColor(int y, int i) {
+		return this.colors[y][i];
+	}
+
+	/**
+	 * Vrati celkovy pocet behu ve vsech radcich.
+	 * @return					pocet behu
+	 */
+	public long getRunTotal() {
+		long total = 0;
+		for (int y = 0; y < this.height; y++)
+			total += this.counts[y];
+		return total;
+	}
+
+	/**
+	 * Vytvori nove uloziste s levym hornim rohem tohoto uloziste (orezanim)
+	 * doplnenym danou barvou. Pracuje pouze s behy.
+	 * @param width				nova sirka v px
+	 * @param height			nova vyska v px
+	 * @param fill				barva pro doplneni ve tvaru 0xRRGGBB
+	 * @return					nove uloziste
+	 */
+	public RunLengthStorage resize(int width, int height, int fill) {
+		RunLengthStorage resized = new RunLengthStorage(width, height, fill);
+		int copyWidth = Math.min(width, this.width);
+		int copyHeight = Math.min(height, this.height);
+		if (copyWidth == 0)
+			return resized;
+
+		for (int y = 0; y < copyHeight; y++) {
+			// Behy do copyWidth, posledni zkracen
+			int n = this.find(y, copyWidth - 1) + 1;
+			int newEnds[] = Arrays.copyOf(this.ends[y], n + 1);
+			int newColors[] = Arrays.copyOf(this.colors[y], n + 1);
+			newEnds[n - 1] = copyWidth;
+			if (width > copyWidth) {
+				newEnds[n] = width;
+				newColors[n] = fill;
+				n++;
+			}
+			resized.setRuns(y, newEnds, newColors, n);
+		}
+		return resized;
+	}
+
+
+	// Pretizeni metod
+	@Override
+	public int getRGB(int x, int y) {
+		return this.colors[y][this.find(y, x)];
+	}
+
+	@Override
+	public void setRGB(int x, int y, int rgb) {
+		this.splice(y, x, new int[] {x + 1}, new int[] {rgb & 0xFFFFFF}, 1);
+	}
+
+	/**
+	 * Vyplni oblast pole cele behy najednou.
+	 */
+	@Override
+	public void getRegion(int x, int y, int w, int h,
+			int dst[], int off, int stride) {
+		if (w == 0)
+			return;
+		for (int j = 0; j < h; j++) {
+			int rowEnds[] = this.ends[y + j];
+			int rowColors[] = this.colors[y + j];
+			int q = off + j * stride - x;
+			for (int i = this.find(y + j, x), pos = x; pos < x + w; i++) {
+				int end = Math.min(rowEnds[i], x + w);
+				Arrays.fill(dst, q + pos, q + end, rowColors[i]);
+				pos = end;
+			}
+		}
+	}
+
+	@Override
+	public void setRegion(int x, int y, int w, int h,
+			int src[], int off, int stride) {
+		if (w == 0)
+			return;
+		int runEnds[] = new int[w];
+		int runColors[] = new int[w];
+		for (int j = 0; j < h; j++) {
+			// Zakodovat usek radku na behy
+			int q = off + j * stride;
+			int n = 0;
+			int color = src[q] & 0xFFFFFF;
+			for (int i = 1; i < w; i++) {
+				int c = src[q + i] & 0xFFFFFF;
+				if (c != color) {
+					runEnds[n] = x + i;
+					runColors[n++] = color;
+					color = c;
+				}
+			}
+			runEnds[n] = x + w;
+			runColors[n++] = color;
+			this.splice(y + j, x, runEnds, runColors, n);
+		}
+	}
+
+	/**
+	 * Obrati poradi behu v kazdem radku.
+	 */
+	@Override
+	public void flipX() {
+		for (int y = 0; y < this.height; y++) {
+			int n = this.counts[y];
+			int rowEnds[] = this.ends[y];
+			int rowColors[] = this.colors[y];
+			int newEnds[] = new int[n];
+			int newColors[] = new int[n];
+			for (int i = 0; i < n; i++) {
+				// Beh i konci v zrcadlenem radku tam, kde zacina beh n - i - 1
+				int k = n - i - 1;
+				newEnds[i] = this.width - (k > 0 ? rowEnds[k - 1] : 0);
+				newColors[i] = rowColors[k];
+			}
+			this.ends[y] = newEnds;
+			this.colors[y] = newColors;
+		}
+	}
+
+	/**
+	 * Prohodi reference na radky.
+	 */
+	@Override
+	public void flipY() {
+		for (int a = 0, b = this.height - 1; a < b; a++, b--) {
+			int tmpEnds[] = this.ends[a];
+			int tmpColors[] = this.colors[a];
+			int tmpCount = this.counts[a];
+			this.ends[a] = this.ends[b];
+			this.colors[a] = this.colors[b];
+			this.counts[a] = this.counts[b];
+			this.ends[b] = tmpEnds;
+			this.colors[b] = tmpColors;
+			this.counts[b] = tmpCount;
+		}
+	}
+
+	/**
+	 * Aplikuje operaci jen na barvy behu, sousedni behy se stejnou vyslednou
+	 * barvou jsou sloucene.
+	 */
+	@Override
+	public boolean applyColors(PixelKernel kernel) {
+		for (int y = 0; y < this.height; y++) {
+			kernel.apply(this.colors[y], 0, this.counts[y]);
+			for (int i = 0; i < this.counts[y]; i++)
+				this.colors[y][i] &= 0xFFFFFF;
+			this.setRuns(y, this.ends[y], this.colors[y], this.counts[y]);
+		}
+		return true;
+	}
+
+	/**
+	 * Kazdy radek ma vlastni pole behu, ruzne radky lze tedy menit soubezne.
+	 */
+	@Override
+	public boolean isConcurrent() {
+		return true;
+	}
+
+	@Override
+	public Storage create(int width, int height) {
+		return new RunLengthStorage(width, height);
+	}
+
+	@Override
+	public void close() {
+		this.ends = null;
+		this.colors = null;
+	}
+
+
+	// Privatni metody
+	/**
+	 * Najde beh obsahujici pixel (binarnim pulenim).
+	 * @param y					index radku
+	 * @param x					souradnice pixelu v ose X
+	 * @return					index behu
+	 */
+	private int find(int y, int x) {
+		int rowEnds[] = this.ends[y];
+		int low = 0;
+		int high = this.counts[y] - 1;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (rowEnds[middle] > x)
+				high = middle;
+			else
+				low = middle + 1;
+		}
+		return low;
+	}
+
+	/**
+	 * Vyplni cely radek jednou barvou.
+	 * @param y					index radku
+	 * @param rgb				barva ve tvaru 0xRRGGBB
+	 */
+	private void fillRow(int y, int rgb) {
+		int n = (this.width > 0) ? 1 : 0;
+		this.ends[y] = new int[] {this.width};
+		this.colors[y] = new int[] {rgb & 0xFFFFFF};
+		this.counts[y] = n;
+	}
+
+	/**
+	 * Nahradi usek radku od x zadanymi behy. Behy pred a za usekem jsou
+	 * zachovany (krajni zkraceny), sousedni behy stejne barvy slouceny.
+	 * @param y					index radku
+	 * @param x					zacatek useku
+	 * @param runEnds			konce novych behu (posledni je konec useku)
+	 * @param runColors			barvy novych behu
+	 * @param n					pocet novych behu
+	 */
+	private void splice(int y, int x, int runEnds[], int runColors[], int n) {
+		int rowEnds[] = this.ends[y];
+		int rowColors[] = this.colors[y];
+		int count = this.counts[y];
+		int end = runEnds[n - 1];
+
+		// Behy pred usekem (posledni zkraceny na x) a za nim
+		int before = (x > 0) ? this.find(y, x - 1) + 1 : 0;
+		int after = (end < this.width) ? this.find(y, end) : count;
+		int length = before + n + (count - after);
+		int newEnds[] = new int[length];
+		int newColors[] = new int[length];
+		System.arraycopy(rowEnds, 0, newEnds, 0, before);
+		System.arraycopy(rowColors, 0, newColors, 0, before);
+		if (before > 0)
+			newEnds[before - 1] = x;
+		System.arraycopy(runEnds, 0, newEnds, before, n);
+		System.arraycopy(runColors, 0, newColors, before, n);
+		System.arraycopy(rowEnds, after, newEnds, before + n, count - after);
+		System.arraycopy(rowColors, after, newColors, before + n,
+				count - after);
+		this.setRuns(y, newEnds, newColors, length);
+	}
+
+	/**
+	 * Nastavi behy radku a slouci sousedni behy stejne barvy. Pole jsou
+	 * prevzata (a upravena na miste).
+	 * @param y					index radku
+	 * @param runEnds			konce behu
+	 * @param runColors			barvy behu
+	 * @param n					pocet behu
+	 */
+	private void setRuns(int y, int runEnds[], int runColors[], int n) {
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			if (count > 0 && runColors[count - 1] == runColors[i]) {
+				runEnds[count - 1] = runEnds[i];
+			} else {
+				runEnds[count] = runEnds[i];
+				runColors[count] = runColors[i];
+				count++;
+			}
+		}
+		this.ends[y] = runEnds;
+		this.colors[y] = runColors;
+		this.counts[y] = count;
+	}
+}
@@ -0,0 +1,617 @@
+package com.bitmapview.storage;
+
+import com.bitmapview.kernel.KernelExecutor;
+import com.bitmapview.kernel.PixelKernel;
+import com.bitmapview.kernel.RangeTask;
+
+/**
+ * Abstraktni uloziste pixelu bitmapy. Pixely jsou adresovany souradnicemi
+ * x, y a jejich barva je zabalena do int ve tvaru 0x00RRGGBB. Konkretni
+ * potomci rozhoduji o tom kde a jak jsou pixely v pameti ulozeny.
+ */
+public abstract class Storage {
+	/**
+	 * Delka strany bloku pro operace prohazujici osy (transpozice). Blok
+	 * 64 x 64 pixelu (16 KiB) se i se svym protejskem vejde do L1/L2 cache.
+	 */
+	public static final int BLOCK_SIZE = 64;
+
+	/**
+	 * Pocet pixelu, do ktereho se snazi vejit buffer pruhu sloupcu pri
+	 * transpozici na miste (viz transposeShuffle()).
+	 */
+	static final int STRIP_PIXELS = 1 << 20;
+
+	/**
+	 * Nectvercova uloziste lze transponovat po blocich do nove kopie (jeden
+	 * pruchod misto tri, ale na chvili s dvojnasobnou pameti) misto na
+	 * miste (viz transposeShuffle()). Lze zapnout systemovou vlastnosti
+	 * bitmapview.transpose.copy.
+	 */
+	static boolean transposeCopy = Boolean.getBoolean(
+			"bitmapview.transpose.copy");
+
+	protected int width;
+	protected int height;
+
+	// Pocet pohledu (SubStorage) na toto uloziste a priznak, ze ho vlastnik
+	// uvolnil (close() je pak odlozeno az na zavreni posledniho pohledu)
+	int views;
+	boolean released;
+
+
+	// Konstruktor
+	/**
+	 * Vytvori uloziste o danych rozmerech.
+	 * @param width				sirka v px
+	 * @param height			vyska v px
+	 */
+	protected Storage(int width, int height) {
+		if (width < 0 || height < 0)
+			throw new IllegalArgumentException("Invalid storage size");
+		this.width = width;
+		this.height = height;
+	}
+
+
+	// Verejne metody
+	/**
+	 * Zapne nebo vypne transpozici nectvercovych ulozist do nove kopie.
+	 * @param enabled			true pro transpozici do kopie
+	 */
+	public static void setTransposeCopy(boolean enabled) {
+		transposeCopy = enabled;
+	}
+
+	/**
+	 * Vrati sirku uloziste.
+	 * @return					sirka v px
+	 */
+	public int getWidth() {
+		return this.width;
+	}
+
+	/**
+	 * Vrati vysku uloziste.
+	 * @return					vyska v px
+	 */
+	public int getHeight() {
+		return this.height;
+	}
+
+	/**
+	 * Vrati celkovy pocet pixelu (muze byt vetsi nez rozsah int).
+	 * @return					pocet pixelu
+	 */
+	public long getPixelCount() {
+		return (long) this.width * this.height;
+	}
+
+	/**
+	 * Vrati barvu pixelu na pozici x, y.
+	 * @param x					souradnice pixelu v ose X
+	 * @param y					souradnice pixelu v ose Y
+	 * @return					barva pixelu ve tvaru 0xRRGGBB
+	 */
+	public abstract int getRGB(int x, int y);
+
+	/**
+	 * Nastavi barvu pixelu na pozici x, y.
+	 * @param x					souradnice pixelu v ose X
+	 * @param y					souradnice pixelu v ose Y
+	 * @param rgb				barva pixelu ve tvaru 0xRRGGBB
+	 */
+	public abstract void setRGB(int x, int y, int rgb);
+
+	/**
+	 * Nacte obdelnikovou oblast pixelu do pole. Potomci by meli metodu
+	 * pretizit efektivnejsim blokovym kopirovanim.
+	 * @param x					levy okraj oblasti
+	 * @param y					horni okraj oblasti
+	 * @param w					sirka oblasti
+	 * @param h					vyska oblasti
+	 * @param dst				cilove pole
+	 * @param off				index prvniho pixelu v cilovem poli
+	 * @param stride			vzdalenost radku v cilovem poli
+	 */
+	public void getRegion(int x, int y, int w, int h,
+			int dst[], int off, int stride) {
+		for (int j = 0; j < h; j++)
+			for (int i = 0; i < w; i++)
+				dst[off + j * stride + i] = this.getRGB(x + i, y + j);
+	}
+
+	/**
+	 * Zapise obdelnikovou oblast pixelu z pole. Potomci by meli metodu
+	 * pretizit efektivnejsim blokovym kopirovanim.
+	 * @param x					levy okraj oblasti
+	 * @param y					horni okraj oblasti
+	 * @param w					sirka oblasti
+	 * @param h					vyska oblasti
+	 * @param src				zdrojove pole
+	 * @param off				index prvniho pixelu ve zdrojovem poli
+	 * @param stride			vzdalenost radku ve zdrojovem poli
+	 */
+	public void setRegion(int x, int y, int w, int h,
+			int src[], int off, int stride) {
+		for (int j = 0; j < h; j++)
+			for (int i = 0; i < w; i++)
+				this.setRGB(x + i, y + j, src[off + j * stride + i]);
+	}
+
+	/**
+	 * Nacte cely radek pixelu do pole.
+	 * @param y					index radku
+	 * @param dst				cilove pole (alespon off + sirka prvku)
+	 * @param off				index prvniho pixelu v cilovem poli
+	 */
+	public void getRow(int y, int dst[], int off) {
+		this.getRegion(0, y, this.width, 1, dst, off, this.width);
+	}
+
+	/**
+	 * Zapise cely radek pixelu z pole.
+	 * @param y					index radku
+	 * @param src				zdrojove pole (alespon off + sirka prvku)
+	 * @param off				index prvniho pixelu ve zdrojovem poli
+	 */
+	public void setRow(int y, int src[], int off) {
+		this.setRegion(0, y, this.width, 1, src, off, this.width);
+	}
+
+	/**
+	 * Zrcadli pixely uloziste v ose X na miste (obrati poradi pixelu v
+	 * kazdem radku). Kazde vlakno potrebuje pouze buffer na jeden radek.
+	 */
+	public void flipX() {
+		final Storage storage = this;
+		KernelExecutor.forRange(this.height, this.width, new RangeTask() {
+			@Override
+			public void run(int from, int to) {
+				int row[] = new int[storage.width];
+				for (int y = from; y < to; y++) {
+					storage.getRow(y, row, 0);
+					for (int i = 0, j = storage.width - 1; i < j; i++, j--) {
+						int tmp = row[i];
+						row[i] = row[j];
+						row[j] = tmp;
+					}
+					storage.setRow(y, row, 0);
+				}
+			}
+		}, this.isConcurrent());
+	}
+
+	/**
+	 * Zrcadli pixely uloziste v ose Y na miste (prohodi radky symetricke
+	 * podle prostredniho). Kazde vlakno potrebuje pouze buffer na dva radky.
+	 */
+	public void flipY() {
+		final Storage storage = this;
+		KernelExecutor.forRange(this.height / 2, this.width, new RangeTask() {
+			@Override
+			public void run(int from, int to) {
+				int top[] = new int[storage.width];
+				int bottom[] = new int[storage.width];
+				for (int i = from; i < to; i++) {
+					int j = storage.height - i - 1;
+					storage.getRow(i, top, 0);
+					storage.getRow(j, bottom, 0);
+					storage.setRow(i, bottom, 0);
+					storage.setRow(j, top, 0);
+				}
+			}
+		}, this.isConcurrent());
+	}
+
+	/**
+	 * Transponuje pixely uloziste na miste (prohodi osy, tj. i sirku a
+	 * vysku). Ne vsechna uloziste to umi, implicitne nedela nic.
+	 * @return					true pokud byla transpozice provedena
+	 */
+	public boolean transpose() {
+		return false;
+	}
+
+	/**
+	 * Aplikuje barevnou operaci jinak nez po jednotlivych pixelech (napr.
+	 * jen na paletu). Implicitne to uloziste neumi.
+	 * @param kernel			operace nad jednim pixelem
+	 * @return					true pokud byla operace provedena
+	 */
+	public boolean applyColors(PixelKernel kernel) {
+		return false;
+	}
+
+	/**
+	 * Zjisti, jestli lze s ruznymi radky uloziste pracovat soucasne z vice
+	 * vlaken. Implicitne ne.
+	 * @return					true pokud je soubezny pristup k ruznym
+	 *							radkum bezpecny
+	 */
+	public boolean isConcurrent() {
+		return false;
+	}
+
+	/**
+	 * Vrati delku strany dlazdice, po kterych je vhodne s ulozistem
+	 * pracovat (zpracovavat pixely po blocich teto velikosti).
+	 * @return					delka strany v px nebo 0 pokud uloziste neni
+	 *							rozdeleno na dlazdice
+	 */
+	public int getTileSize() {
+		return 0;
+	}
+
+	/**
+	 * Vrati pole, ve kterem uloziste drzi pixely, pokud jsou v jednom poli
+	 * po radcich bez mezer (napr. pro sdileni s BufferedImage bez
+	 * kopirovani). Zmeny pole se projevi v ulozisti.
+	 * @return					pole pixelu nebo null
+	 */
+	public int[] getBuffer() {
+		return null;
+	}
+
+	/**
+	 * Zjisti, jestli lze do uloziste ulozit danou barvu. Uloziste s plnou
+	 * barevnou hloubkou prijmou jakoukoliv barvu.
+	 * @param rgb				barva ve tvaru 0xRRGGBB
+	 * @return					true pokud lze barvu ulozit
+	 */
+	public boolean accepts(int rgb) {
+		return true;
+	}
+
+	/**
+	 * Vytvori nove uloziste stejneho typu (a pripadne se stejnou paletou)
+	 * o danych rozmerech.
+	 * @param width				sirka v px
+	 * @param height			vyska v px
+	 * @return					nove uloziste
+	 */
+	public abstract Storage create(int width, int height);
+
+	/**
+	 * Vytvori kopii uloziste stejneho typu (viz create()).
+	 * @return					nove uloziste se stejnymi pixely
+	 */
+	public Storage copy() {
+		final Storage storage = this;
+		final Storage copy = this.create(this.width, this.height);
+		KernelExecutor.forRange(this.height, this.width, new RangeTask() {
+			@Override
+			public void run(int from, int to) {
+				int row[] = new int[storage.width];
+				for (int y = from; y < to; y++) {
+					storage.getRow(y, row, 0);
+					copy.setRow(y, row, 0);
+				}
+			}
+		}, this.isConcurrent() && copy.isConcurrent());
+		return copy;
+	}
+
+	/**
+	 * Zjisti, jestli jde o pohled do jineho uloziste.
+	 * @return					true pokud jde o pohled (SubStorage)
+	 */
+	public boolean isView() {
+		return false;
+	}
+
+	/**
+	 * Zjisti, jestli na uloziste existuji pohledy. Takove uloziste je treba
+	 * pred zmenou pixelu zkopirovat, jinak by se zmena projevila i v nich.
+	 * @return					true pokud existuje alespon jeden pohled
+	 */
+	public synchronized boolean isShared() {
+		return this.views > 0;
+	}
+
+	/**
+	 * Uvolni uloziste vlastnikem. Pokud na nej existuji pohledy, je close()
+	 * odlozeno az na zavreni posledniho z nich.
+	 */
+	public synchronized void release() {
+		if (this.views > 0)
+			this.released = true;
+		else
+			this.close();
+	}
+
+	/**
+	 * Uvolni pamet drzenou ulozistem. Po zavolani uz neni mozne s ulozistem
+	 * pracovat. Implicitne nedela nic (pamet uvolni garbage collector).
+	 */
+	public void close() {
+	}
+
+
+	// Chranene metody
+	/**
+	 * Nacte obdelnikovou oblast pixelu tak, jak jsou ulozeny (napr. indexy
+	 * do palety misto barev). Slouzi operacim, ktere pixely jen presouvaji
+	 * (transpozice). Implicitne getRegion().
+	 * @param x					levy okraj oblasti
+	 * @param y					horni okraj oblasti
+	 * @param w					sirka oblasti
+	 * @param h					vyska oblasti
+	 * @param dst				cilove pole
+	 * @param off				index prvniho pixelu v cilovem poli
+	 * @param stride			vzdalenost radku v cilovem poli
+	 */
+	protected void getCells(int x, int y, int w, int h,
+			int dst[], int off, int stride) {
+		this.getRegion(x, y, w, h, dst, off, stride);
+	}
+
+	/**
+	 * Zapise obdelnikovou oblast pixelu nactenou getCells(). Implicitne
+	 * setRegion().
+	 * @param x					levy okraj oblasti
+	 * @param y					horni okraj oblasti
+	 * @param w					sirka oblasti
+	 * @param h					vyska oblasti
+	 * @param src				zdrojove pole
+	 * @param off				index prvniho pixelu ve zdrojovem poli
+	 * @param stride			vzdalenost radku ve zdrojovem poli
+	 */
+	protected void setCells(int x, int y, int w, int h,
+			int src[], int off, int stride) {
+		this.setRegion(x, y, w, h, src, off, stride);
+	}
+
+	/**
+	 * Zaregistruje novy pohled na uloziste.
+	 */
+	synchronized void addView() {
+		this.views++;
+	}
+
+	/**
+	 * Odregistruje pohled na uloziste. Pokud byl zavren posledni pohled
+	 * a vlastnik uz uloziste uvolnil, uloziste se zavre.
+	 */
+	synchronized void removeView() {
+		this.views--;
+		if (this.views == 0 && this.released)
+			this.close();
+	}
+
+	/**
+	 * Transponuje ctvercove uloziste na miste po blocich BLOCK_SIZE x
+	 * BLOCK_SIZE. Blok nad diagonalou se prohodi se svym transponovanym
+	 * protejskem pod diagonalou, takze se kazdy pixel cte i zapisuje jen
+	 * jednou a vzdy v ramci bloku, ktery je v cache. Radky bloku jsou
+	 * zpracovany paralelne (pokud je uloziste soubezne). Presouvaji se
+	 * hodnoty pixelu tak, jak jsou ulozeny (viz getCells()).
+	 */
+	protected void transposeSquare() {
+		if (this.width != this.height)
+			throw new IllegalStateException("Storage is not square");
+
+		final Storage storage = this;
+		final int n = this.width;
+		final int blocks = (n + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		KernelExecutor.forRange(blocks, (long) BLOCK_SIZE * n / 2,
+				new RangeTask() {
+			@Override
+			public void run(int from, int to) {
+				int a[] = new int[BLOCK_SIZE * BLOCK_SIZE];
+				int b[] = new int[BLOCK_SIZE * BLOCK_SIZE];
+				int t[] = new int[BLOCK_SIZE * BLOCK_SIZE];
+				for (int bi = from; bi < to; bi++) {
+					int y = bi * BLOCK_SIZE;
+					int h = Math.min(BLOCK_SIZE, n - y);
+					for (int bj = bi; bj < blocks; bj++) {
+						int x = bj * BLOCK_SIZE;
+						int w = Math.min(BLOCK_SIZE, n - x);
+
+						// Blok [x, y] (w x h) a jeho protejsek [y, x] (h x w)
+						storage.getCells(x, y, w, h, a, 0, BLOCK_SIZE);
+						if (bi != bj)
+							storage.getCells(y, x, h, w, b, 0, BLOCK_SIZE);
+						transposeBlock(a, t, w, h);
+						storage.setCells(y, x, h, w, t, 0, BLOCK_SIZE);
+						if (bi != bj) {
+							transposeBlock(b, t, h, w);
+							storage.setCells(x, y, w, h, t, 0, BLOCK_SIZE);
+						}
+					}
+				}
+			}
+		}, this.isConcurrent());
+	}
+
+	/**
+	 * Zkopiruje transponovane pixely do jineho uloziste (o rozmerech vyska x
+	 * sirka tohoto uloziste) po blocich BLOCK_SIZE x BLOCK_SIZE. Pasy bloku
+	 * jsou zpracovany paralelne (pokud jsou obe uloziste soubezna).
+	 * @param dst				cilove uloziste
+	 */
+	protected void transposeInto(final Storage dst) {
+		if (dst.width != this.height || dst.height != this.width)
+			throw new IllegalArgumentException("Invalid target size");
+
+		final Storage storage = this;
+		final int blocks = (this.height + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		KernelExecutor.forRange(blocks, (long) BLOCK_SIZE * this.width,
+				new RangeTask() {
+			@Override
+			public void run(int from, int to) {
+				int a[] = new int[BLOCK_SIZE * BLOCK_SIZE];
+				int t[] = new int[BLOCK_SIZE * BLOCK_SIZE];
+				for (int bi = from; bi < to; bi++) {
+					int y = bi * BLOCK_SIZE;
+					int h = Math.min(BLOCK_SIZE, storage.height - y);
+					for (int x = 0; x < storage.width; x += BLOCK_SIZE) {
+						int w = Math.min(BLOCK_SIZE, storage.width - x);
+						storage.getCells(x, y, w, h, a, 0, BLOCK_SIZE);
+						transposeBlock(a, t, w, h);
+						dst.setCells(y, x, h, w, t, 0, BLOCK_SIZE);
+					}
+				}
+			}
+		}, this.isConcurrent() && dst.isConcurrent());
+	}
+
+	/**
+	 * Transponuje nectvercove uloziste na miste. Transpozice obdelniku
+	 * m x n (vyska x sirka) je rozlozena na tri permutace, z nichz kazda
+	 * presouva pixely jen uvnitr sloupcu nebo jen uvnitr radku (Catanzaro
+	 * a kol., A Decomposition for In-place Matrix Transposition):
+	 * <ol>
+	 * <li>rotace sloupce j o j / b radku, kde b = n / gcd(m, n) (pro
+	 * nesoudelne rozmery odpada),</li>
+	 * <li>v kazdem radku presun pixelu ze sloupce j do sloupce
+	 * (j * m + i) mod n, kde i je jeho puvodni radek,</li>
+	 * <li>v kazdem sloupci presun pixelu na radek, kam patri v transpozici
+	 * ulozene po radcich o delce m.</li>
+	 * </ol>
+	 * Radky jsou zpracovany po jednom, sloupce po pruzich sirokych nejvyse
+	 * BLOCK_SIZE pixelu, takze se pamet cte i zapisuje souvisle. Radky
+	 * i pruhy jsou zpracovany paralelne (pokud je uloziste soubezne), kazde
+	 * vlakno potrebuje pouze buffer na dva radky nebo dva pruhy. Uloziste
+	 * musi mit pixely po radcich bez mezer, aby po prohozeni rozmeru
+	 * odpovidaly transpozici.
+	 */
+	protected void transposeShuffle() {
+		final Storage storage = this;
+		final int m = this.height;
+		final int n = this.width;
+		if (m > 1 && n > 1) {
+			// Nejvetsi spolecny delitel rozmeru
+			int c = m;
+			for (int r = n; r != 0; ) {
+				int tmp = c % r;
+				c = r;
+				r = tmp;
+			}
+			final int b = n / c;
+			// Sirka pruhu, aby buffer pruhu nebyl prilis velky, ale radek
+			// pruhu vyplnil alespon radek cache
+			final int strip = Math.min(n, Math.max(16,
+					Math.min(BLOCK_SIZE, STRIP_PIXELS / m)));
+			final int strips = (n + strip - 1) / strip;
+
+			// Rotace sloupcu
+			if (c > 1)
+				KernelExecutor.forRange(strips, (long) strip * m,
+						new RangeTask() {
+					@Override
+					public void run(int from, int to) {
+						int src[] = new int[strip * m];
+						int dst[] = new int[strip * m];
+						for (int s = from; s < to; s++) {
+							int x = s * strip;
+							int w = Math.min(strip, n - x);
+							storage.getCells(x, 0, w, m, src, 0, w);
+							// Radek p sloupce j je radek p + j / b (mod m)
+							// puvodniho sloupce (j / b < c <= m)
+							for (int p = 0; p < m; p++) {
+								int i = p + x / b;
+								if (i >= m)
+									i -= m;
+								for (int k = 0; k < w; ) {
+									int end = Math.min(w,
+											((x + k) / b + 1) * b - x);
+									int row = i * w;
+									for (; k < end; k++)
+										dst[p * w + k] = src[row + k];
+									if (++i == m)
+										i = 0;
+								}
+							}
+							storage.setCells(x, 0, w, m, dst, 0, w);
+						}
+					}
+				}, this.isConcurrent());
+
+			// Presun uvnitr radku
+			KernelExecutor.forRange(m, n, new RangeTask() {
+				@Override
+				public void run(int from, int to) {
+					int src[] = new int[n];
+					int dst[] = new int[n];
+					int step = m % n;
+					for (int p = from; p < to; p++) {
+						storage.getCells(0, p, n, 1, src, 0, n);
+						// Pixel ze sloupce j patri do sloupce
+						// q = (j * m + i) mod n, kde i = p + j / b (mod m)
+						// je spolecny pro useky b sloupcu (bez deleni)
+						int jm = 0;
+						int i = p;
+						int io = p % n;
+						for (int j = 0; j < n; ) {
+							for (int end = j + b; j < end; j++) {
+								int q = jm + io;
+								dst[q >= n ? q - n : q] = src[j];
+								jm += step;
+								if (jm >= n)
+									jm -= n;
+							}
+							if (++i == m) {
+								i = 0;
+								io = 0;
+							} else if (++io == n) {
+								io = 0;
+							}
+						}
+						storage.setCells(0, p, n, 1, dst, 0, n);
+					}
+				}
+			}, this.isConcurrent());
+
+			// Presun uvnitr sloupcu
+			KernelExecutor.forRange(strips, (long) strip * m,
+					new RangeTask() {
+				@Override
+				public void run(int from, int to) {
+					int src[] = new int[strip * m];
+					int dst[] = new int[strip * m];
+					for (int s = from; s < to; s++) {
+						int x = s * strip;
+						int w = Math.min(strip, n - x);
+						storage.getCells(x, 0, w, m, src, 0, w);
+						for (int r = 0; r < m; r++) {
+							// Na radek r patri pixely transpozice od
+							// indexu l, puvodne na [j, i], po rotaci na
+							// radku p = i - j / b (mod m)
+							long l = (long) r * n + x;
+							int j = (int) (l / m);
+							int i = (int) (l % m);
+							int shift = j / b;
+							for (int k = 0; k < w; k++) {
+								int p = i - shift;
+								dst[r * w + k] = src[(p < 0 ? p + m : p) * w
+										+ k];
+								if (++i == m) {
+									i = 0;
+									shift = ++j / b;
+								}
+							}
+						}
+						storage.setCells(x, 0, w, m, dst, 0, w);
+					}
+				}
+			}, this.isConcurrent());
+		}
+
+		this.width = m;
+		this.height = n;
+	}
+
+	/**
+	 * Transponuje blok v poli s radky dlouhymi BLOCK_SIZE.
+	 * @param src				zdrojovy blok
+	 * @param dst				cilovy blok (h x w)
+	 * @param w					sirka zdrojoveho bloku
+	 * @param h					vyska zdrojoveho bloku
+	 */
+	protected static void transposeBlock(int src[], int dst[], int w, int h) {
+		for (int j = 0; j < h; j++)
+			for (int i = 0; i < w; i++)
+				dst[i * BLOCK_SIZE + j] = src[j * BLOCK_SIZE + i];
+	}
+}
@@ -0,0 +1,134 @@
+package com.bitmapview.storage;
+
+/**
+ * Pohled na obdelnikovou oblast jineho uloziste. Pixely nejsou kopirovany,
+ * pohled jen posouva souradnice do puvodniho uloziste. Vytvoreni pohledu
+ * (vyrez obrazku) tak nestoji zadnou pamet ani cas. Zmeny pixelu v
+ * puvodnim ulozisti jsou v pohledu videt, proto je treba puvodni uloziste
+ * pred zmenou zkopirovat (viz isShared()). Puvodni uloziste je zavreno az
+ * po zavreni vsech pohledu.
+ */
+public class SubStorage
+	extends Storage
+{
+	Storage parent;
+	int left;
+	int top;
+
+
+	// Konstruktor
+	/**
+	 * Vytvori pohled na oblast uloziste.
+	 * @param parent			puvodni uloziste
+	 * @param x					souradnice leveho horniho rohu oblasti v ose X
+	 * @param y					souradnice leveho horniho rohu oblasti v ose Y
+	 * @param width				sirka oblasti v px
+	 * @param height			vyska oblasti v px
+	 */
+	public SubStorage(Storage parent, int x, int y, int width, int height) {
+		super(width, height);
+		if (x < 0 || y < 0 || (long) x + width > parent.getWidth()
+				|| (long) y + height > parent.getHeight())
+			throw new IllegalArgumentException("Region out of bounds");
+
+		// Pohled na pohled ukazuje primo do puvodniho uloziste
+		if (parent instanceof SubStorage) {
+			SubStorage sub = (SubStorage) parent;
+			x += sub.left;
+			y += sub.top;
+			parent = sub.parent;
+		}
+		this.parent = parent;
+		this.left = x;
+		this.top = y;
+		this.parent.addView();
+	}
+
+
+	// Verejne metody
+	/**
+	 * Vrati puvodni uloziste.
+	 * @return					uloziste, do ktereho pohled ukazuje
+	 */
+	public Storage getParent() {
+		return this.parent;
+	}
+
+	/**
+	 * Vrati souradnici leveho okraje oblasti v puvodnim ulozisti.
+	 * @return					souradnice v ose X
+	 */
+	public int getLeft() {
+		return this.left;
+	}
+
+	/**
+	 * Vrati souradnici horniho okraje oblasti v puvodnim ulozisti.
+	 * @return					souradnice v ose Y
+	 */
+	public int getTop() {
+		return this.top;
+	}
+
+
+	// Pretizeni metod
+	@Override
+	public int getRGB(int x, int y) {
+		return this.parent.getRGB(this.left + x, this.top + y);
+	}
+
+	@Override
+	public void setRGB(int x, int y, int rgb) {
+		this.parent.setRGB(this.left + x, this.top + y, rgb);
+	}
+
+	@Override
+	public void getRegion(int x, int y, int w, int h,
+			int dst[], int off, int stride) {
+		this.parent.getRegion(this.left + x, this.top + y, w, h,
+				dst, off, stride);
+	}
+
+	@Override
+	public void setRegion(int x, int y, int w, int h,
+			int src[], int off, int stride) {
+		this.parent.setRegion(this.left + x, this.top + y, w, h,
+				src, off, stride);
+	}
+
+	@Override
+	public boolean isConcurrent() {
+		return this.parent.isConcurrent();
+	}
+
+	@Override
+	public int getTileSize() {
+		return this.parent.getTileSize();
+	}
+
+	@Override
+	public boolean accepts(int rgb) {
+		return this.parent.accepts(rgb);
+	}
+
+	@Override
+	public boolean isView() {
+		return true;
+	}
+
+	/**
+	 * Vytvori uloziste stejneho typu jako puvodni uloziste (u uloziste
+	 * s paletou se stejnou paletou).
+	 */
+	@Override
+	public Storage create(int width, int height) {
+		return this.parent.create(width, height);
+	}
+
+	@Override
+	public void close() {
+		if (this.parent != null)
+			this.parent.removeView();
+		this.parent = null;
+	}
+}
@@ -0,0 +1,271 @@
+package com.bitmapview.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Uloziste pixelu rozdelene na ctvercove dlazdice (tiles), ktere jsou
+ * v pameti drzeny jen pokud se s nimi pracuje. Dlazdice vznikaji az pri
+ * prvnim pristupu, a pokud je prekrocen pametovy rozpocet, jsou nejdele
+ * nepouzite dlazdice odlozeny do docasneho souboru na disku a pri dalsim
+ * pristupu znovu nacteny. Pametove naroky tak odpovidaji tomu s cim se
+ * prave pracuje, ne velikosti obrazku.
+ *
+ * I cteni meni stav uloziste (poradi dlazdic, posledni dlazdice, odkladani
+ * na disk), sprava dlazdic je proto synchronizovana. Cist tak muze vice
+ * vlaken soucasne, zapis ale musi byt vyhradni (uloziste neni soubezne).
+ */
+public class TiledStorage
+	extends Storage
+{
+	/**
+	 * Delka strany dlazdice v px.
+	 */
+	public static final int TILE_SIZE = 256;
+	static final int TILE_SHIFT = 8;
+	static final int TILE_MASK = TILE_SIZE - 1;
+	static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 4;
+
+	/**
+	 * Dlazdice nactena v pameti.
+	 */
+	static class Tile {
+		int pixels[] = new int[TILE_SIZE * TILE_SIZE];
+		boolean dirty = false;
+	}
+
+	long tilesX;
+	int maxTiles;
+	LinkedHashMap<Long, Tile> tiles;
+	// Dlazdice, ktere jsou ulozene v odkladacim souboru
+	HashSet<Long> spilled;
+	File spillFile;
+	RandomAccessFile spill;
+
+	// Posledni pouzita dlazdice (sousedni pixely lezi vetsinou ve stejne)
+	long lastKey = -1;
+	Tile lastTile;
+
+
+	// Konstruktor
+	/**
+	 * Vytvori uloziste o danych rozmerech vyplnene cernou barvou.
+	 * @param width				sirka v px
+	 * @param height			vyska v px
+	 * @param budget			pametovy rozpocet pro dlazdice v bytes
+	 */
+	public TiledStorage(int width, int height, long budget) {
+		super(width, height);
+		this.tilesX = (width + TILE_MASK) >> TILE_SHIFT;
+		this.maxTiles = (int) Math.max(1,
+				Math.min(Integer.MAX_VALUE, budget / TILE_BYTES));
+		this.spilled = new HashSet<Long>();
+		this.tiles = new LinkedHashMap<Long, Tile>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Tile> e) {
+				if (this.size() <= TiledStorage.this.maxTiles)
+					return false;
+				TiledStorage.this.evict(e.getKey(), e.getValue());
+				return true;
+			}
+		};
+	}
+
+
+	// Verejne metody
+	/**
+	 * Vrati pametovy rozpocet uloziste.
+	 * @return					rozpocet v bytes
+	 */
+	public long getBudget() {
+		return (long) this.maxTiles * TILE_BYTES;
+	}
+
+
+	// Pretizeni metod
+	@Override
+	public int getRGB(int x, int y) {
+		Tile tile = this.getTile(x >> TILE_SHIFT, y >> TILE_SHIFT);
+		return tile.pixels[(y & TILE_MASK) << TILE_SHIFT | (x & TILE_MASK)];
+	}
+
+	@Override
+	public void setRGB(int x, int y, int rgb) {
+		Tile tile = this.getTile(x >> TILE_SHIFT, y >> TILE_SHIFT);
+		tile.pixels[(y & TILE_MASK) << TILE_SHIFT | (x & TILE_MASK)]
+				= rgb & 0xFFFFFF;
+		tile.dirty = true;
+	}
+
+	@Override
+	public void getRegion(int x, int y, int w, int h,
+			int dst[], int off, int stride) {
+		// Kopirujeme po prunicich oblasti s jednotlivymi dlazdicemi
+		for (int ty = y >> TILE_SHIFT; ty <= (y + h - 1) >> TILE_SHIFT; ty++)
+			for (int tx = x >> TILE_SHIFT; tx <= (x + w - 1) >> TILE_SHIFT;
+					tx++) {
+				Tile tile = this.getTile(tx, ty);
+				int x0 = Math.max(x, tx << TILE_SHIFT);
+				int x1 = Math.min(x + w, (tx + 1) << TILE_SHIFT);
+				int y0 = Math.max(y, ty << TILE_SHIFT);
+				int y1 = Math.min(y + h, (ty + 1) << TILE_SHIFT);
+				for (int j = y0; j < y1; j++)
+					System.arraycopy(tile.pixels,
+							(j & TILE_MASK) << TILE_SHIFT | (x0 & TILE_MASK),
+							dst, off + (j - y) * stride + (x0 - x), x1 - x0);
+			}
+	}
+
+	@Override
+	public void setRegion(int x, int y, int w, int h,
+			int src[], int off, int stride) {
+		for (int ty = y >> TILE_SHIFT; ty <= (y + h - 1) >> TILE_SHIFT; ty++)
+			for (int tx = x >> TILE_SHIFT; tx <= (x + w - 1) >> TILE_SHIFT;
+					tx++) {
+				Tile tile = this.getTile(tx, ty);
+				int x0 = Math.max(x, tx << TILE_SHIFT);
+				int x1 = Math.min(x + w, (tx + 1) << TILE_SHIFT);
+				int y0 = Math.max(y, ty << TILE_SHIFT);
+				int y1 = Math.min(y + h, (ty + 1) << TILE_SHIFT);
+				for (int j = y0; j < y1; j++) {
+					int p = (j & TILE_MASK) << TILE_SHIFT | (x0 & TILE_MASK);
+					int q = off + (j - y) * stride + (x0 - x);
+					for (int i = 0; i < x1 - x0; i++)
+						tile.pixels[p + i] = src[q + i] & 0xFFFFFF;
+				}
+				tile.dirty = true;
+			}
+	}
+
+	@Override
+	public int getTileSize() {
+		return TILE_SIZE;
+	}
+
+	@Override
+	public Storage create(int width, int height) {
+		return new TiledStorage(width, height, this.getBudget());
+	}
+
+	/**
+	 * Zahodi vsechny dlazdice a smaze odkladaci soubor.
+	 */
+	@Override
+	public synchronized void close() {
+		this.tiles.clear();
+		this.spilled.clear();
+		this.lastKey = -1;
+		this.lastTile = null;
+		try {
+			if (this.spill != null)
+				this.spill.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (this.spillFile != null)
+			this.spillFile.delete();
+		this.spill = null;
+		this.spillFile = null;
+	}
+
+
+	// Privatni metody
+	/**
+	 * Vrati dlazdici se souradnicemi tx, ty. Pokud neni v pameti, nacte ji
+	 * z odkladaciho souboru, pripadne vytvori novou.
+	 * @param tx				index dlazdice v ose X
+	 * @param ty				index dlazdice v ose Y
+	 * @return					dlazdice
+	 */
+	private synchronized Tile getTile(int tx, int ty) {
+		long key = ty * this.tilesX + tx;
+		if (key == this.lastKey)
+			return this.lastTile;
+
+		Tile tile = this.tiles.get(key);
+		if (tile == null) {
+			tile = new Tile();
+			if (this.spilled.contains(key))
+				this.read(key, tile);
+			this.tiles.put(key, tile);
+		}
+		this.lastKey = key;
+		this.lastTile = tile;
+		return tile;
+	}
+
+	/**
+	 * Odlozi dlazdici vyhazovanou z pameti. Zmenene dlazdice jsou zapsany
+	 * do odkladaciho souboru, nezmenene jsou tam uz ulozene (nebo jsou
+	 * prazdne) a neni je treba zapisovat.
+	 * @param key				klic dlazdice
+	 * @param tile				dlazdice
+	 */
+	private void evict(long key, Tile tile) {
+		if (key == this.lastKey) {
+			this.lastKey = -1;
+			this.lastTile = null;
+		}
+		if (!tile.dirty)
+			return;
+
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(TILE_BYTES)
+					.order(ByteOrder.nativeOrder());
+			buffer.asIntBuffer().put(tile.pixels);
+			FileChannel channel = this.getSpill().getChannel();
+			long position = key * TILE_BYTES;
+			while (buffer.hasRemaining())
+				position += channel.write(buffer, position);
+			this.spilled.add(key);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Nacte dlazdici z odkladaciho souboru.
+	 * @param key				klic dlazdice
+	 * @param tile				dlazdice, do ktere budou data nactena
+	 */
+	private void read(long key, Tile tile) {
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(TILE_BYTES)
+					.order(ByteOrder.nativeOrder());
+			FileChannel channel = this.getSpill().getChannel();
+			long position = key * TILE_BYTES;
+			while (buffer.hasRemaining()) {
+				int n = channel.read(buffer, position);
+				if (n < 0)
+					break;
+				position += n;
+			}
+			buffer.flip();
+			buffer.asIntBuffer().get(tile.pixels, 0, buffer.remaining() / 4);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Vrati odkladaci soubor, pri prvnim pouziti ho vytvori.
+	 * @return					odkladaci soubor
+	 * @throws IOException		pokud soubor nelze vytvorit
+	 */
+	private RandomAccessFile getSpill() throws IOException {
+		if (this.spill == null) {
+			this.spillFile = File.createTempFile("bitmapview", ".tiles");
+			this.spillFile.deleteOnExit();
+			this.spill = new RandomAccessFile(this.spillFile, "rw");
+		}
+		return this.spill;
+	}
+}